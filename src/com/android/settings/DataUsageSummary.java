@@ -43,8 +43,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.telephony.TelephonyManager.PHONE_TYPE_CDMA;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
@@ -79,7 +77,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -102,7 +99,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -144,6 +140,7 @@ import com.android.settings.net.NetworkPolicyEditor;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
+import com.android.settings.net.UidUsageSummary;
 import com.android.settings.widget.ChartDataUsageView;
 import com.android.settings.widget.ChartDataUsageView.DataUsageChartListener;
 import com.android.settings.widget.PieChartView;
@@ -152,7 +149,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -200,6 +196,7 @@ public class DataUsageSummary extends Fragment {
     private ConnectivityManager mConnService;
 
     private INetworkStatsSession mStatsSession;
+    private final UidUsageSummary.Cache mSummaryCache = new UidUsageSummary.Cache();
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -443,6 +440,8 @@ public class DataUsageSummary extends Fragment {
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    // summaries read before the update are out of date now
+                    mSummaryCache.invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -1315,15 +1314,15 @@ public class DataUsageSummary extends Fragment {
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<UidUsageSummary> mSummaryCallbacks = new LoaderCallbacks<
+            UidUsageSummary>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+        public Loader<UidUsageSummary> onCreateLoader(int id, Bundle args) {
+            return new SummaryForAllUidLoader(getActivity(), mStatsSession, mSummaryCache, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
+        public void onLoadFinished(Loader<UidUsageSummary> loader, UidUsageSummary data) {
             final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
                     POLICY_REJECT_METERED_BACKGROUND);
             mAdapter.bindStats(data, restrictedUids);
@@ -1331,7 +1330,7 @@ public class DataUsageSummary extends Fragment {
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
+        public void onLoaderReset(Loader<UidUsageSummary> loader) {
             mAdapter.bindStats(null, new int[0]);
             updateEmptyVisible();
         }
@@ -1577,59 +1576,41 @@ public class DataUsageSummary extends Fragment {
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link UidUsageSummary}, or {@code null} to clear list.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
+        public void bindStats(UidUsageSummary summary, int[] restrictedUids) {
             mItems.clear();
 
             final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
+            final int size = summary != null ? summary.size() : 0;
+            mItems.ensureCapacity(size);
             for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-                final int collapseKey;
-                if (UserHandle.isApp(uid)) {
-                    if (UserHandle.getUserId(uid) == currentUserId) {
-                        collapseKey = uid;
-                    } else {
-                        collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
+                final AppItem item = new AppItem(summary.getKey(i));
+                final int uidCount = summary.getUidCount(i);
+                for (int j = 0; j < uidCount; j++) {
+                    item.addUid(summary.getUid(i, j));
                 }
-
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
+                item.total = summary.getTotal(i);
+                mItems.add(item);
             }
 
+            // summary is already sorted; restricted apps without usage go last
             for (int uid : restrictedUids) {
                 // Only splice in restricted state for current user
                 if (UserHandle.getUserId(uid) != currentUserId) continue;
 
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
+                final int index = summary != null ? summary.indexOfKey(uid) : -1;
+                final AppItem item;
+                if (index >= 0) {
+                    item = mItems.get(index);
+                } else {
                     item = new AppItem(uid);
                     item.total = -1;
                     mItems.add(item);
-                    knownItems.put(item.key, item);
                 }
                 item.restricted = true;
             }
 
-            Collections.sort(mItems);
             mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
             notifyDataSetChanged();
         }
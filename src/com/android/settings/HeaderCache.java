@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import android.os.INetworkManagementService;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.UserHandle;
+import android.preference.PreferenceActivity.Header;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The parts of the top-level header list that take PackageManager or other
+ * service queries to decide: which headers are replaced by an activity of
+ * the system image, and whether the home, voice wakeup and data usage
+ * headers are shown.
+ *
+ * These are computed off the main thread and kept, in memory and on disk,
+ * so that {@link Settings#onBuildHeaders} can use them without blocking.
+ * A cache written for another build, locale or user is ignored. Since
+ * packages can change while Settings isn't running, the cache is computed
+ * again whenever the top-level list resumes, and the list is rebuilt only
+ * if something changed.  While it runs, only changes to the packages the
+ * cache depends on, see {@link #dependsOn}, compute it again.
+ */
+final class HeaderCache {
+    private static final String TAG = "HeaderCache";
+
+    private static final String PREFS_NAME = "header_cache";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_HOME = "home";
+    private static final String KEY_HOME_PACKAGES = "home_packages";
+    private static final String KEY_VOICE_WAKEUP = "voice_wakeup";
+    private static final String KEY_BANDWIDTH_CONTROL = "bandwidth_control";
+    private static final String KEY_ACTIVITY_PREFIX = "activity_";
+
+    static final String VOICE_WAKEUP_PACKAGE_NAME = "com.cyanogenmod.voicewakeup";
+
+    /** Headers that are replaced by an activity of the system image, or removed. */
+    static final int[] ACTIVITY_HEADERS = {
+            R.id.operator_settings,
+            R.id.manufacturer_settings,
+            R.id.device_specific_gesture_settings
+    };
+
+    private static HeaderCache sInstance;
+
+    private final String mFingerprint;
+
+    /** Activities replacing {@link #ACTIVITY_HEADERS}; missing if removed. */
+    private final SparseArray<ActivityHeader> mActivityHeaders = new SparseArray<ActivityHeader>();
+    /** Packages with a home activity. */
+    private final HashSet<String> mHomePackages = new HashSet<String>();
+    boolean mHasHomeSettings;
+    boolean mHasVoiceWakeup;
+    boolean mBandwidthControlEnabled;
+
+    private static class ActivityHeader {
+        String packageName;
+        String className;
+        String title;
+        String summary;
+
+        boolean sameAs(ActivityHeader other) {
+            return TextUtils.equals(packageName, other.packageName)
+                    && TextUtils.equals(className, other.className)
+                    && TextUtils.equals(title, other.title)
+                    && TextUtils.equals(summary, other.summary);
+        }
+    }
+
+    private HeaderCache(String fingerprint) {
+        mFingerprint = fingerprint;
+    }
+
+    private static String getFingerprint() {
+        return Build.FINGERPRINT + "|" + Locale.getDefault() + "|" + UserHandle.myUserId();
+    }
+
+    /**
+     * Returns the cache for the current build, locale and user, reading it
+     * from disk if needed, or null if there is none yet.
+     */
+    static synchronized HeaderCache get(Context context) {
+        final String fingerprint = getFingerprint();
+        if (sInstance == null || !sInstance.mFingerprint.equals(fingerprint)) {
+            sInstance = load(context, fingerprint);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replaces the cache with the given one.  Returns false if it was the
+     * same, so that the headers don't need rebuilding.
+     */
+    static synchronized boolean set(Context context, HeaderCache cache) {
+        if (sInstance != null && sInstance.sameAs(cache)) {
+            return false;
+        }
+        sInstance = cache;
+        cache.save(context);
+        return true;
+    }
+
+    /**
+     * Computes the cache, given the intents of the {@link #ACTIVITY_HEADERS}
+     * as inflated.  Queries PackageManager; don't call it from the main
+     * thread.
+     */
+    static HeaderCache compute(Context context, SparseArray<Intent> intents) {
+        final HeaderCache cache = new HeaderCache(getFingerprint());
+
+        for (int i = 0; i < intents.size(); i++) {
+            final Header header = new Header();
+            header.intent = new Intent(intents.valueAt(i));
+            final List<Header> target = new ArrayList<Header>(1);
+            target.add(header);
+            Utils.updateHeaderToSpecificActivityFromMetaDataOrRemove(context, target, header);
+            if (!target.isEmpty() && header.intent.getComponent() != null) {
+                final ActivityHeader activity = new ActivityHeader();
+                activity.packageName = header.intent.getComponent().getPackageName();
+                activity.className = header.intent.getComponent().getClassName();
+                activity.title = header.title != null ? header.title.toString() : null;
+                activity.summary = header.summary != null ? header.summary.toString() : null;
+                cache.mActivityHeaders.put(intents.keyAt(i), activity);
+            }
+        }
+
+        cache.mHasHomeSettings = hasHomeSettings(context.getPackageManager(),
+                cache.mHomePackages);
+        cache.mHasVoiceWakeup = Utils.isPackageInstalled(context, VOICE_WAKEUP_PACKAGE_NAME);
+
+        final INetworkManagementService netManager = INetworkManagementService.Stub
+                .asInterface(ServiceManager.getService(Context.NETWORKMANAGEMENT_SERVICE));
+        try {
+            cache.mBandwidthControlEnabled = netManager.isBandwidthControlEnabled();
+        } catch (RemoteException e) {
+            // Keep the header, as before
+            cache.mBandwidthControlEnabled = true;
+        }
+        return cache;
+    }
+
+    /**
+     * Returns whether a change to the given package may change the cache:
+     * when it provides one of the activity headers or a home activity, as
+     * cached or now, or is the voice wakeup package.  Queries
+     * PackageManager; don't call it from the main thread.
+     */
+    static boolean dependsOn(Context context, String packageName, SparseArray<Intent> intents) {
+        if (VOICE_WAKEUP_PACKAGE_NAME.equals(packageName)) {
+            return true;
+        }
+        final HeaderCache cache = get(context);
+        if (cache == null || cache.mHomePackages.contains(packageName)) {
+            return true;
+        }
+        for (int i = 0; i < cache.mActivityHeaders.size(); i++) {
+            if (packageName.equals(cache.mActivityHeaders.valueAt(i).packageName)) {
+                return true;
+            }
+        }
+
+        final PackageManager pm = context.getPackageManager();
+        final Intent homeIntent = new Intent(Intent.ACTION_MAIN);
+        homeIntent.addCategory(Intent.CATEGORY_HOME);
+        homeIntent.setPackage(packageName);
+        if (!pm.queryIntentActivities(homeIntent, 0).isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < intents.size(); i++) {
+            final Intent intent = new Intent(intents.valueAt(i));
+            intent.setPackage(packageName);
+            if (!pm.queryIntentActivities(intent, 0).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Points the given header of {@link #ACTIVITY_HEADERS} to its system
+     * activity.  Returns false if it should be removed.
+     */
+    boolean updateActivityHeader(Header header) {
+        final ActivityHeader activity = mActivityHeaders.get((int) header.id);
+        if (activity == null) {
+            return false;
+        }
+        header.title = activity.title;
+        header.summary = activity.summary;
+        header.intent = new Intent().setClassName(activity.packageName, activity.className);
+        return true;
+    }
+
+    /**
+     * Returns whether the home settings should be shown: when there is more
+     * than one home app, or the only one has preferences of its own.  Adds
+     * the packages of the home apps to the given set.
+     */
+    private static boolean hasHomeSettings(PackageManager pm, HashSet<String> homePackages) {
+        try {
+            final ArrayList<ResolveInfo> homeApps = new ArrayList<ResolveInfo>();
+            pm.getHomeActivities(homeApps);
+            for (ResolveInfo info : homeApps) {
+                homePackages.add(info.activityInfo.packageName);
+            }
+            if (homeApps.size() >= 2) {
+                return true;
+            }
+
+            Intent prefsIntent = new Intent(Intent.ACTION_MAIN);
+            prefsIntent.addCategory("com.cyanogenmod.category.LAUNCHER_PREFERENCES");
+            List<ResolveInfo> prefsActivities = pm.queryIntentActivities(prefsIntent, 0);
+            for (ResolveInfo info : homeApps) {
+                for (ResolveInfo activityInfo : prefsActivities) {
+                    if (info.activityInfo.packageName
+                            .equals(activityInfo.activityInfo.packageName)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } catch (Exception e) {
+            // Can't look up the home activity; keep the header
+            Log.w(TAG, "Problem looking up home activity!", e);
+            return true;
+        }
+    }
+
+    private boolean sameAs(HeaderCache other) {
+        if (!mFingerprint.equals(other.mFingerprint)
+                || mHasHomeSettings != other.mHasHomeSettings
+                || mHasVoiceWakeup != other.mHasVoiceWakeup
+                || mBandwidthControlEnabled != other.mBandwidthControlEnabled
+                || !mHomePackages.equals(other.mHomePackages)
+                || mActivityHeaders.size() != other.mActivityHeaders.size()) {
+            return false;
+        }
+        for (int i = 0; i < mActivityHeaders.size(); i++) {
+            final ActivityHeader otherActivity = other.mActivityHeaders.get(
+                    mActivityHeaders.keyAt(i));
+            if (otherActivity == null || !mActivityHeaders.valueAt(i).sameAs(otherActivity)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static HeaderCache load(Context context, String fingerprint) {
+        final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        if (!fingerprint.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            return null;
+        }
+
+        final Set<String> homePackages = prefs.getStringSet(KEY_HOME_PACKAGES, null);
+        if (homePackages == null) {
+            // Written before the home packages were kept
+            return null;
+        }
+
+        final HeaderCache cache = new HeaderCache(fingerprint);
+        cache.mHomePackages.addAll(homePackages);
+        cache.mHasHomeSettings = prefs.getBoolean(KEY_HOME, true);
+        cache.mHasVoiceWakeup = prefs.getBoolean(KEY_VOICE_WAKEUP, false);
+        cache.mBandwidthControlEnabled = prefs.getBoolean(KEY_BANDWIDTH_CONTROL, true);
+        for (int id : ACTIVITY_HEADERS) {
+            final String key = KEY_ACTIVITY_PREFIX + id;
+            final String className = prefs.getString(key + "_class", null);
+            if (className != null) {
+                final ActivityHeader activity = new ActivityHeader();
+                activity.packageName = prefs.getString(key + "_package", null);
+                activity.className = className;
+                activity.title = prefs.getString(key + "_title", null);
+                activity.summary = prefs.getString(key + "_summary", null);
+                cache.mActivityHeaders.put(id, activity);
+            }
+        }
+        return cache;
+    }
+
+    private void save(Context context) {
+        final SharedPreferences.Editor editor = context.getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE).edit();
+        editor.clear();
+        editor.putString(KEY_FINGERPRINT, mFingerprint);
+        editor.putBoolean(KEY_HOME, mHasHomeSettings);
+        editor.putStringSet(KEY_HOME_PACKAGES, mHomePackages);
+        editor.putBoolean(KEY_VOICE_WAKEUP, mHasVoiceWakeup);
+        editor.putBoolean(KEY_BANDWIDTH_CONTROL, mBandwidthControlEnabled);
+        for (int i = 0; i < mActivityHeaders.size(); i++) {
+            final String key = KEY_ACTIVITY_PREFIX + mActivityHeaders.keyAt(i);
+            final ActivityHeader activity = mActivityHeaders.valueAt(i);
+            editor.putString(key + "_package", activity.packageName);
+            editor.putString(key + "_class", activity.className);
+            editor.putString(key + "_title", activity.title);
+            editor.putString(key + "_summary", activity.summary);
+        }
+        editor.apply();
+    }
+}
@@ -35,15 +35,13 @@ import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.nfc.NfcAdapter;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.INetworkManagementService;
-import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.Preference;
@@ -52,6 +50,7 @@ import android.preference.PreferenceFragment;
 import android.text.TextUtils;
 import android.telephony.MSimTelephonyManager;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -161,7 +160,6 @@ public class Settings extends PreferenceActivity
     private static final String SAVE_KEY_CURRENT_HEADER = "com.android.settings.CURRENT_HEADER";
     private static final String SAVE_KEY_PARENT_HEADER = "com.android.settings.PARENT_HEADER";
 
-    private static final String VOICE_WAKEUP_PACKAGE_NAME = "com.cyanogenmod.voicewakeup";
     private static final String GESTURE_SETTINGS_PACKAGE_NAME = "com.cyanogenmod.settings";
 
     static final int DIALOG_ONLY_ONE_HOME = 1;
@@ -224,6 +222,24 @@ public class Settings extends PreferenceActivity
     private MenuItem mSearchItem;
     private SettingsAutoCompleteTextView mSearchBar;
 
+    // Whether the header cache should be computed again on the next header build
+    private boolean mHeaderCacheStale = true;
+    // Intents of the activity headers, as of the last header build
+    private SparseArray<Intent> mActivityIntents;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (mActivityIntents == null || data == null) {
+                mHeaderCacheStale = true;
+                invalidateHeaders();
+                return;
+            }
+            refreshHeaderCache(mActivityIntents, data.getSchemeSpecificPart());
+        }
+    };
+
     private boolean mBatteryPresent = true;
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -372,9 +388,16 @@ public class Settings extends PreferenceActivity
         if (listAdapter instanceof HeaderAdapter) {
             ((HeaderAdapter) listAdapter).resume();
         }
+        mHeaderCacheStale = true;
         invalidateHeaders();
 
         registerReceiver(mBatteryInfoReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+        IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, packageFilter);
     }
 
     @Override
@@ -399,6 +422,7 @@ public class Settings extends PreferenceActivity
         }
 
         unregisterReceiver(mBatteryInfoReceiver);
+        unregisterReceiver(mPackageReceiver);
 
         ListAdapter listAdapter = getListAdapter();
         if (listAdapter instanceof HeaderAdapter) {
@@ -690,6 +714,8 @@ public class Settings extends PreferenceActivity
         int i = 0;
 
         final UserManager um = (UserManager) getSystemService(Context.USER_SERVICE);
+        final HeaderCache cache = HeaderCache.get(this);
+        final SparseArray<Intent> activityIntents = new SparseArray<Intent>();
         mHeaderIndexMap.clear();
         while (i < target.size()) {
             Header header = target.get(i);
@@ -697,7 +723,12 @@ public class Settings extends PreferenceActivity
             int id = (int) header.id;
             if (id == R.id.operator_settings || id == R.id.manufacturer_settings
                     || id == R.id.device_specific_gesture_settings) {
-                Utils.updateHeaderToSpecificActivityFromMetaDataOrRemove(this, target, header);
+                if (header.intent != null) {
+                    activityIntents.put(id, header.intent);
+                }
+                if (cache == null || !cache.updateActivityHeader(header)) {
+                    target.remove(i);
+                }
             } else if (id == R.id.wifi_settings) {
                 // Remove WiFi Settings if WiFi service is not available.
                 if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI)) {
@@ -715,14 +746,8 @@ public class Settings extends PreferenceActivity
                 }
             } else if (id == R.id.data_usage_settings) {
                 // Remove data usage when kernel module not enabled
-                final INetworkManagementService netManager = INetworkManagementService.Stub
-                        .asInterface(ServiceManager.getService(Context.NETWORKMANAGEMENT_SERVICE));
-                try {
-                    if (!netManager.isBandwidthControlEnabled()) {
-                        target.remove(i);
-                    }
-                } catch (RemoteException e) {
-                    // ignored
+                if (cache != null && !cache.mBandwidthControlEnabled) {
+                    target.remove(i);
                 }
             } else if (id == R.id.battery_settings) {
                 // Remove battery settings when battery is not available. (e.g. TV)
@@ -742,7 +767,7 @@ public class Settings extends PreferenceActivity
                 int headerIndex = i + 1;
                 i = insertAccountsHeaders(target, headerIndex);
             } else if (id == R.id.home_settings) {
-                if (!updateHomeSettingHeaders(header)) {
+                if (!updateHomeSettingHeaders(header, cache == null || cache.mHasHomeSettings)) {
                     target.remove(i);
                 }
             } else if (id == R.id.user_settings) {
@@ -780,7 +805,7 @@ public class Settings extends PreferenceActivity
                 if (!MSimTelephonyManager.getDefault().isMultiSimEnabled())
                     target.remove(header);
             } else if (id == R.id.voice_wakeup_settings) {
-                if(!Utils.isPackageInstalled(this, VOICE_WAKEUP_PACKAGE_NAME)) {
+                if (cache == null || !cache.mHasVoiceWakeup) {
                     target.remove(header);
                 }
             }
@@ -802,12 +827,52 @@ public class Settings extends PreferenceActivity
                 i++;
             }
         }
+
+        mActivityIntents = activityIntents;
+        if (mHeaderCacheStale) {
+            mHeaderCacheStale = false;
+            refreshHeaderCache(activityIntents, null);
+        }
+    }
+
+    /**
+     * Computes the header cache again in the background, and rebuilds the
+     * headers if it changed.  If a package is given, this is skipped unless
+     * the cache depends on it.
+     */
+    private void refreshHeaderCache(final SparseArray<Intent> activityIntents,
+            final String packageName) {
+        final Context context = getApplicationContext();
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                if (packageName != null
+                        && !HeaderCache.dependsOn(context, packageName, activityIntents)) {
+                    return false;
+                }
+                return HeaderCache.set(context, HeaderCache.compute(context, activityIntents));
+            }
+
+            @Override
+            protected void onPostExecute(Boolean changed) {
+                if (changed && !isDestroyed()) {
+                    invalidateHeaders();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     private int insertAccountsHeaders(List<Header> target, int headerIndex) {
         String[] accountTypes = mAuthenticatorHelper.getEnabledAccountTypes();
         List<Header> accountHeaders = new ArrayList<Header>(accountTypes.length);
+        List<String> unloadedTypes = new ArrayList<String>();
         for (String accountType : accountTypes) {
+            // Shown once loaded in the background, so that building the headers
+            // doesn't create the authenticator package contexts
+            if (!mAuthenticatorHelper.isLoaded(this, accountType)) {
+                unloadedTypes.add(accountType);
+                continue;
+            }
             CharSequence label = mAuthenticatorHelper.getLabelForType(this, accountType);
             if (label == null) {
                 continue;
@@ -845,7 +910,17 @@ public class Settings extends PreferenceActivity
                 }
             }
             accountHeaders.add(accHeader);
-            mAuthenticatorHelper.preloadDrawableForType(this, accountType);
+        }
+        if (!unloadedTypes.isEmpty()) {
+            mAuthenticatorHelper.preloadForTypes(this,
+                    unloadedTypes.toArray(new String[unloadedTypes.size()]), new Runnable() {
+                @Override
+                public void run() {
+                    if (!isDestroyed()) {
+                        invalidateHeaders();
+                    }
+                }
+            });
         }
 
         // Sort by label
@@ -866,52 +941,26 @@ public class Settings extends PreferenceActivity
         return headerIndex;
     }
 
-    private boolean updateHomeSettingHeaders(Header header) {
-        try {
-            PackageManager pm = getPackageManager();
-            final ArrayList<ResolveInfo> homeApps = new ArrayList<ResolveInfo>();
-            pm.getHomeActivities(homeApps);
-
-            if (homeApps.size() < 2) {
-                Intent prefsIntent = new Intent(Intent.ACTION_MAIN);
-                prefsIntent.addCategory("com.cyanogenmod.category.LAUNCHER_PREFERENCES");
-                List<ResolveInfo> prefsActivities = pm.queryIntentActivities(prefsIntent, 0);
-
-                boolean hasAtleastOneSettings = false;
-                for (ResolveInfo info : homeApps) {
-                    for (ResolveInfo activityInfo : prefsActivities) {
-                        if (info.activityInfo.packageName
-                                .equals(activityInfo.activityInfo.packageName)) {
-                            hasAtleastOneSettings = true;
-                            break;
-                        }
-                    }
-                }
-                if (!hasAtleastOneSettings) {
-                    // When there's only one available home app, omit this settings
-                    // category entirely at the top level UI.  If the user just
-                    // uninstalled the penultimate home app candidiate, we also
-                    // now tell them about why they aren't seeing 'Home' in the list.
-                    if (sShowNoHomeNotice) {
-                        sShowNoHomeNotice = false;
-                        NoHomeDialogFragment.show(this);
-                    }
-                    return false;
-                }
-            }
-
-            // Okay, we're allowing the Home settings category.  Tell it, when
-            // invoked via this front door, that we'll need to be told about the
-            // case when the user uninstalls all but one home app.
-            if (header.fragmentArguments == null) {
-                header.fragmentArguments = new Bundle();
+    private boolean updateHomeSettingHeaders(Header header, boolean hasHomeSettings) {
+        if (!hasHomeSettings) {
+            // When there's only one available home app, omit this settings
+            // category entirely at the top level UI.  If the user just
+            // uninstalled the penultimate home app candidiate, we also
+            // now tell them about why they aren't seeing 'Home' in the list.
+            if (sShowNoHomeNotice) {
+                sShowNoHomeNotice = false;
+                NoHomeDialogFragment.show(this);
             }
-            header.fragmentArguments.putBoolean(HomeSettings.HOME_SHOW_NOTICE, true);
-        } catch (Exception e) {
-            // Can't look up the home activity; bail on configuring the icon
-            Log.w(LOG_TAG, "Problem looking up home activity!", e);
+            return false;
         }
 
+        // Okay, we're allowing the Home settings category.  Tell it, when
+        // invoked via this front door, that we'll need to be told about the
+        // case when the user uninstalls all but one home app.
+        if (header.fragmentArguments == null) {
+            header.fragmentArguments = new Bundle();
+        }
+        header.fragmentArguments.putBoolean(HomeSettings.HOME_SHOW_NOTICE, true);
         return true;
     }
 
@@ -955,15 +1004,16 @@ public class Settings extends PreferenceActivity
         mSearchBar.clearFocus();
         mSearchItem.collapseActionView();;
 
-        if (info.level == 0) {
-            Bundle args = info.header.fragmentArguments;
+        Header header = info.loadHeader(this);
+        if (header != null) {
+            Bundle args = header.fragmentArguments;
             if (args == null) {
-                args = info.header.fragmentArguments = new Bundle();
+                args = header.fragmentArguments = new Bundle();
             }
             if (info.key != null && !args.containsKey(SearchPopulator.EXTRA_PREF_KEY)) {
                 args.putString(SearchPopulator.EXTRA_PREF_KEY, info.key);
             }
-            onHeaderClick(info.header, 0);
+            onHeaderClick(header, 0);
         } else {
             Intent i = new Intent(this, SubSettings.class);
             i.putExtra(EXTRA_SHOW_FRAGMENT, info.fragment);
@@ -1301,7 +1351,6 @@ public class Settings extends PreferenceActivity
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-        // TODO: watch for package upgrades to invalidate cache; see 7206643
         mAuthenticatorHelper.updateAuthDescriptions(this);
         mAuthenticatorHelper.onAccountsUpdated(this, accounts);
         invalidateHeaders();
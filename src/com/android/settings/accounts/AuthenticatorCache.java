@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.accounts;
+
+import android.accounts.AuthenticatorDescription;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Icons and labels of account authenticators, shared by every
+ * {@link AuthenticatorHelper} in the process.
+ *
+ * Loading them means creating a context for the authenticator package, so
+ * they are loaded once per account type and package version, preferably in
+ * the background through {@link #preload}. An entry is dropped when its
+ * package is removed or replaced, or changed to another version; it is
+ * also ignored if the authenticator now points to other resources.  Labels
+ * are localized, so everything is dropped when the locale changes.
+ */
+final class AuthenticatorCache {
+    private static final String TAG = "AuthenticatorCache";
+
+    private static AuthenticatorCache sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by mEntries
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private int mGeneration;
+
+    private static class Entry {
+        String packageName;
+        int versionCode;
+        long lastUpdateTime;
+        int iconId;
+        int labelId;
+        Drawable.ConstantState icon;
+        CharSequence label;
+
+        boolean matches(AuthenticatorDescription desc) {
+            return packageName.equals(desc.packageName)
+                    && iconId == desc.iconId && labelId == desc.labelId;
+        }
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data != null) {
+                // Enabling or disabling components doesn't change resources
+                invalidate(data.getSchemeSpecificPart(),
+                        Intent.ACTION_PACKAGE_CHANGED.equals(intent.getAction()));
+            }
+        }
+    };
+
+    private final BroadcastReceiver mLocaleReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mEntries) {
+                mEntries.clear();
+                mGeneration++;
+            }
+        }
+    };
+
+    private AuthenticatorCache(Context context) {
+        mContext = context;
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        context.registerReceiver(mLocaleReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
+    static synchronized AuthenticatorCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AuthenticatorCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the icon of the given authenticator, loading it if needed, or
+     * null if it has none.
+     */
+    Drawable getIcon(Context context, AuthenticatorDescription desc) {
+        final Entry entry = get(context, desc, true);
+        return entry.icon != null ? entry.icon.newDrawable(context.getResources()) : null;
+    }
+
+    /**
+     * Returns the label of the given authenticator, loading it if needed, or
+     * null if it has none.
+     */
+    CharSequence getLabel(Context context, AuthenticatorDescription desc) {
+        return get(context, desc, true).label;
+    }
+
+    /**
+     * Returns whether the given authenticator is loaded, so that
+     * {@link #getIcon} and {@link #getLabel} return without blocking.
+     */
+    boolean isLoaded(AuthenticatorDescription desc) {
+        return get(null, desc, false) != null;
+    }
+
+    /**
+     * Loads the given authenticators in parallel in the background, then
+     * runs the given callback, if any, on the main thread.
+     */
+    void preload(final AuthenticatorDescription[] descs, final Runnable callback) {
+        final AtomicInteger remaining = new AtomicInteger(descs.length);
+        final Runnable onLoaded = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() <= 0 && callback != null) {
+                    mHandler.post(callback);
+                }
+            }
+        };
+        if (descs.length == 0) {
+            onLoaded.run();
+            return;
+        }
+        for (final AuthenticatorDescription desc : descs) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        get(mContext, desc, true);
+                    } finally {
+                        onLoaded.run();
+                    }
+                }
+            });
+        }
+    }
+
+    private Entry get(Context context, AuthenticatorDescription desc, boolean load) {
+        final int generation;
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(desc.type);
+            if (entry != null && entry.matches(desc)) {
+                return entry;
+            }
+            generation = mGeneration;
+        }
+        if (!load) {
+            return null;
+        }
+
+        final Entry entry = load(context, desc);
+        synchronized (mEntries) {
+            // Don't keep a label loaded for the previous locale
+            if (generation == mGeneration) {
+                mEntries.put(desc.type, entry);
+            }
+        }
+        return entry;
+    }
+
+    private static Entry load(Context context, AuthenticatorDescription desc) {
+        final Entry entry = new Entry();
+        entry.packageName = desc.packageName;
+        entry.iconId = desc.iconId;
+        entry.labelId = desc.labelId;
+        try {
+            final PackageInfo info = context.getPackageManager().getPackageInfo(
+                    desc.packageName, 0);
+            entry.versionCode = info.versionCode;
+            entry.lastUpdateTime = info.lastUpdateTime;
+
+            final Context authContext = context.createPackageContext(desc.packageName, 0);
+            final Resources res = authContext.getResources();
+            try {
+                final Drawable icon = res.getDrawable(desc.iconId);
+                entry.icon = icon != null ? icon.getConstantState() : null;
+            } catch (Resources.NotFoundException e) {
+            }
+            try {
+                entry.label = res.getText(desc.labelId);
+            } catch (Resources.NotFoundException e) {
+                Log.w(TAG, "No label for account type " + desc.type);
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "No package " + desc.packageName + " for account type " + desc.type);
+        }
+        return entry;
+    }
+
+    private void invalidate(String packageName, boolean checkVersion) {
+        synchronized (mEntries) {
+            if (!hasPackageLocked(packageName)) {
+                return;
+            }
+        }
+
+        PackageInfo info = null;
+        if (checkVersion) {
+            try {
+                info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                // Drop its entries
+            }
+        }
+        synchronized (mEntries) {
+            final Iterator<Entry> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                final Entry entry = it.next();
+                if (entry.packageName.equals(packageName)
+                        && (info == null || info.versionCode != entry.versionCode
+                                || info.lastUpdateTime != entry.lastUpdateTime)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private boolean hasPackageLocked(String packageName) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.packageName.equals(packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -20,11 +20,7 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AuthenticatorDescription;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -32,12 +28,10 @@ import java.util.Map;
 
 public class AuthenticatorHelper {
 
-    private static final String TAG = "AuthenticatorHelper";
     private Map<String, AuthenticatorDescription> mTypeToAuthDescription
             = new HashMap<String, AuthenticatorDescription>();
     private AuthenticatorDescription[] mAuthDescs;
     private ArrayList<String> mEnabledAccountTypes = new ArrayList<String>();
-    private Map<String, Drawable> mAccTypeIconCache = new HashMap<String, Drawable>();
 
     public AuthenticatorHelper() {
     }
@@ -46,14 +40,30 @@ public class AuthenticatorHelper {
         return mEnabledAccountTypes.toArray(new String[mEnabledAccountTypes.size()]);
     }
 
-    public void preloadDrawableForType(final Context context, final String accountType) {
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                getDrawableForType(context, accountType);
-                return null;
+    /**
+     * Returns whether the icon and label of the given account type are
+     * loaded, so that {@link #getDrawableForType} and {@link #getLabelForType}
+     * don't need to create a context for the authenticator package.
+     */
+    public boolean isLoaded(Context context, final String accountType) {
+        final AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
+        return desc == null || AuthenticatorCache.getInstance(context).isLoaded(desc);
+    }
+
+    /**
+     * Loads the icons and labels of the given account types in parallel in the
+     * background, then runs the given callback, if any, on the main thread.
+     */
+    public void preloadForTypes(Context context, String[] accountTypes, Runnable callback) {
+        final ArrayList<AuthenticatorDescription> descs = new ArrayList<AuthenticatorDescription>();
+        for (String accountType : accountTypes) {
+            final AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
+            if (desc != null) {
+                descs.add(desc);
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[]) null);
+        }
+        AuthenticatorCache.getInstance(context).preload(
+                descs.toArray(new AuthenticatorDescription[descs.size()]), callback);
     }
 
     /**
@@ -63,22 +73,9 @@ public class AuthenticatorHelper {
      */
     public Drawable getDrawableForType(Context context, final String accountType) {
         Drawable icon = null;
-        synchronized (mAccTypeIconCache) {
-            if (mAccTypeIconCache.containsKey(accountType)) {
-                return mAccTypeIconCache.get(accountType);
-            }
-        }
-        if (mTypeToAuthDescription.containsKey(accountType)) {
-            try {
-                AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
-                Context authContext = context.createPackageContext(desc.packageName, 0);
-                icon = authContext.getResources().getDrawable(desc.iconId);
-                synchronized (mAccTypeIconCache) {
-                    mAccTypeIconCache.put(accountType, icon);
-                }
-            } catch (PackageManager.NameNotFoundException e) {
-            } catch (Resources.NotFoundException e) {
-            }
+        final AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
+        if (desc != null) {
+            icon = AuthenticatorCache.getInstance(context).getIcon(context, desc);
         }
         if (icon == null) {
             icon = context.getPackageManager().getDefaultActivityIcon();
@@ -92,19 +89,11 @@ public class AuthenticatorHelper {
      * @return a CharSequence for the label or null if one cannot be found.
      */
     public CharSequence getLabelForType(Context context, final String accountType) {
-        CharSequence label = null;
-        if (mTypeToAuthDescription.containsKey(accountType)) {
-            try {
-                AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
-                Context authContext = context.createPackageContext(desc.packageName, 0);
-                label = authContext.getResources().getText(desc.labelId);
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.w(TAG, "No label name for account type " + accountType);
-            } catch (Resources.NotFoundException e) {
-                Log.w(TAG, "No label icon for account type " + accountType);
-            }
+        final AuthenticatorDescription desc = mTypeToAuthDescription.get(accountType);
+        if (desc == null) {
+            return null;
         }
-        return label;
+        return AuthenticatorCache.getInstance(context).getLabel(context, desc);
     }
 
     /**
@@ -123,7 +112,6 @@ public class AuthenticatorHelper {
             accounts = AccountManager.get(context).getAccounts();
         }
         mEnabledAccountTypes.clear();
-        mAccTypeIconCache.clear();
         for (Account account: accounts) {
             if (!mEnabledAccountTypes.contains(account.type)) {
                 mEnabledAccountTypes.add(account.type);
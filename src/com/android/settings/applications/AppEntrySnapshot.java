@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the {@link ApplicationsState.AppEntry} list, so that a
+ * cold start of the application list can show labels and sizes before the
+ * package manager has been queried for them again.
+ *
+ * The file is memory-mapped on load and read sequentially; it is rewritten
+ * atomically whenever the background loader has finished computing sizes.
+ */
+class AppEntrySnapshot {
+    static final String TAG = "AppEntrySnapshot";
+    static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "app_entries.snapshot";
+
+    private static final int MAGIC = 0x41505053; // "APPS"
+    private static final int VERSION = 1;
+
+    /**
+     * Cached state of one application, keyed by package name.
+     */
+    static class Record {
+        String packageName;
+        long lastUpdateTime;
+        String label;
+        String normalizedLabel;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+    }
+
+    private final AtomicFile mFile;
+
+    AppEntrySnapshot(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Reads the snapshot.  Returns null if there is no snapshot, or if it was
+     * written by a different version or for a different locale, in which
+     * case the labels it holds can't be used.
+     */
+    HashMap<String, Record> load(String locale) {
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                Log.w(TAG, "Discarding snapshot with unknown format");
+                return null;
+            }
+            if (!locale.equals(readString(buf))) {
+                if (DEBUG) Log.i(TAG, "Discarding snapshot for another locale");
+                return null;
+            }
+            final int count = buf.getInt();
+            HashMap<String, Record> records = new HashMap<String, Record>(count);
+            for (int i=0; i<count; i++) {
+                Record r = new Record();
+                r.packageName = readString(buf);
+                r.lastUpdateTime = buf.getLong();
+                r.label = readString(buf);
+                r.normalizedLabel = readString(buf);
+                r.size = buf.getLong();
+                r.internalSize = buf.getLong();
+                r.externalSize = buf.getLong();
+                r.cacheSize = buf.getLong();
+                r.codeSize = buf.getLong();
+                r.dataSize = buf.getLong();
+                r.externalCodeSize = buf.getLong();
+                r.externalDataSize = buf.getLong();
+                r.externalCacheSize = buf.getLong();
+                records.put(r.packageName, r);
+            }
+            if (DEBUG) Log.i(TAG, "Loaded " + count + " entries");
+            return records;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+            return null;
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    void save(String locale, List<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, locale);
+            out.writeInt(records.size());
+            for (int i=0; i<records.size(); i++) {
+                Record r = records.get(i);
+                writeString(out, r.packageName);
+                out.writeLong(r.lastUpdateTime);
+                writeString(out, r.label);
+                writeString(out, r.normalizedLabel);
+                out.writeLong(r.size);
+                out.writeLong(r.internalSize);
+                out.writeLong(r.externalSize);
+                out.writeLong(r.cacheSize);
+                out.writeLong(r.codeSize);
+                out.writeLong(r.dataSize);
+                out.writeLong(r.externalCodeSize);
+                out.writeLong(r.externalDataSize);
+                out.writeLong(r.externalCacheSize);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Saved " + records.size() + " entries");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static String readString(MappedByteBuffer buf) {
+        final int len = buf.getShort() & 0xffff;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = (str != null ? str : "").getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new IOException("String too long: " + bytes.length);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Process-wide cache of application icons, shared by the app list screens.
+ *
+ * Icons are scaled down to the size of a list row icon before they are
+ * cached, and the least recently used ones are evicted once the cache
+ * exceeds its byte budget.  Every caller gets its own {@link Drawable},
+ * backed by the cached bitmap.  The icons of a package are dropped when it
+ * is added, removed or changed, or its storage comes or goes.
+ */
+public final class AppIconCache {
+    static final String TAG = "AppIconCache";
+    static final boolean DEBUG = false;
+
+    // Share of the app's memory class that cached icons may use.
+    private static final int MEMORY_CLASS_FRACTION = 16;
+
+    private static final Object sLock = new Object();
+    private static AppIconCache sInstance;
+
+    private final Resources mRes;
+    private final PackageManager mPm;
+    private final int mIconSize;
+    private final LruCache<String, BitmapDrawable> mCache;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packages =
+                        intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packages != null) {
+                    for (String packageName : packages) {
+                        invalidate(packageName);
+                    }
+                }
+            } else {
+                final Uri data = intent.getData();
+                if (data != null) {
+                    invalidate(data.getSchemeSpecificPart());
+                }
+            }
+        }
+    };
+
+    public static AppIconCache getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new AppIconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private AppIconCache(Context context) {
+        mRes = context.getResources();
+        mPm = context.getPackageManager();
+        mIconSize = mRes.getDimensionPixelSize(android.R.dimen.app_icon_size);
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+        mCache = new LruCache<String, BitmapDrawable>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, BitmapDrawable value) {
+                return value.getBitmap().getByteCount();
+            }
+        };
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, sdFilter);
+    }
+
+    private static String keyFor(String packageName, int userId) {
+        return packageName + ":" + userId;
+    }
+
+    /**
+     * Returns the icon of the given application if it is already cached,
+     * or null otherwise.  Never does any loading, so it is cheap enough to
+     * call while binding a list row.
+     */
+    public Drawable peekIcon(String packageName, int userId) {
+        BitmapDrawable cached = mCache.get(keyFor(packageName, userId));
+        return cached != null ? newDrawable(cached) : null;
+    }
+
+    /**
+     * Returns the icon of the given application, loading and caching it if
+     * necessary.  May block on the package manager; don't call it from the
+     * main thread for icons that aren't cached yet.
+     */
+    public Drawable getIcon(ApplicationInfo info) {
+        final String key = keyFor(info.packageName, UserHandle.getUserId(info.uid));
+        BitmapDrawable cached = mCache.get(key);
+        if (cached == null) {
+            Drawable icon = info.loadIcon(mPm);
+            if (icon == null) {
+                return null;
+            }
+            cached = scaleIcon(icon);
+            if (cached == null) {
+                // Nothing we can make a bitmap out of; use it as is.
+                return icon;
+            }
+            mCache.put(key, cached);
+            if (DEBUG) Log.i(TAG, "Cached " + key + ", " + mCache.size() + " bytes in use");
+        }
+        return newDrawable(cached);
+    }
+
+    /**
+     * Drops the icons of a package for all users, for example because it
+     * was updated or removed.
+     */
+    public void invalidate(String packageName) {
+        final String prefix = packageName + ":";
+        Map<String, BitmapDrawable> snapshot = mCache.snapshot();
+        for (String key : snapshot.keySet()) {
+            if (key.startsWith(prefix)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    private Drawable newDrawable(BitmapDrawable cached) {
+        return cached.getConstantState().newDrawable(mRes);
+    }
+
+    private BitmapDrawable scaleIcon(Drawable icon) {
+        int width = icon.getIntrinsicWidth();
+        int height = icon.getIntrinsicHeight();
+        if (icon instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap.getWidth() <= mIconSize && bitmap.getHeight() <= mIconSize) {
+                return (BitmapDrawable) icon;
+            }
+        }
+        if (width <= 0 || height <= 0) {
+            width = height = mIconSize;
+        }
+        final float scale = Math.min(1f, (float) mIconSize / Math.max(width, height));
+        width = Math.max(1, Math.round(width * scale));
+        height = Math.max(1, Math.round(height * scale));
+
+        final Bitmap bitmap;
+        try {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Unable to allocate icon bitmap", e);
+            return null;
+        }
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, width, height);
+        icon.draw(canvas);
+        canvas.setBitmap(null);
+        return new BitmapDrawable(mRes, bitmap);
+    }
+}
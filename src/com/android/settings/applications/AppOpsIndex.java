@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Process-wide index of the installed packages and the ops they hold a
+ * permission for, shared by the app ops tabs.
+ *
+ * The index is built from a single package manager query the first time
+ * a tab needs it, instead of one query per tab, and is then kept up to
+ * date one package at a time from package broadcasts.  Looking up which
+ * ops a package holds the permission of is a bit test.
+ */
+final class AppOpsIndex {
+    static final String TAG = "AppOpsIndex";
+    static final boolean DEBUG = false;
+
+    private static final int PACKAGE_FLAGS = PackageManager.GET_PERMISSIONS
+            | PackageManager.GET_DISABLED_COMPONENTS | PackageManager.GET_UNINSTALLED_PACKAGES;
+
+    private static final Object sLock = new Object();
+    private static AppOpsIndex sInstance;
+
+    /** The ops guarded by each permission. */
+    private static HashMap<String, int[]> sPermissionToOps;
+
+    /** Op entries standing for ops that were never noted, by op. */
+    private static final AppOpsManager.OpEntry[] sUnusedOps =
+            new AppOpsManager.OpEntry[AppOpsManager._NUM_OP];
+
+    private final PackageManager mPm;
+
+    // Guarded by this
+    private final HashMap<String, Package> mPackages = new HashMap<String, Package>();
+    private final HashSet<String> mChangedPackages = new HashSet<String>();
+    private boolean mBuilt;
+
+    /**
+     * An installed package and the ops it holds a granted permission for.
+     */
+    static final class Package {
+        final ApplicationInfo info;
+        final BitSet permissionOps;
+
+        Package(ApplicationInfo info, BitSet permissionOps) {
+            this.info = info;
+            this.permissionOps = permissionOps;
+        }
+
+        boolean isInstalled() {
+            return (info.flags & ApplicationInfo.FLAG_INSTALLED) != 0;
+        }
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            synchronized (AppOpsIndex.this) {
+                if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                        || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                    final String[] packages =
+                            intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                    if (packages != null) {
+                        for (String packageName : packages) {
+                            mChangedPackages.add(packageName);
+                        }
+                    }
+                } else {
+                    final Uri data = intent.getData();
+                    if (data != null) {
+                        mChangedPackages.add(data.getSchemeSpecificPart());
+                    }
+                }
+            }
+        }
+    };
+
+    static AppOpsIndex getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new AppOpsIndex(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private AppOpsIndex(Context context) {
+        mPm = context.getPackageManager();
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, sdFilter);
+    }
+
+    /**
+     * Returns the installed packages, building or updating the index first
+     * if needed.  Queries the package manager; don't call it from the main
+     * thread.
+     */
+    synchronized List<Package> getPackages() {
+        update();
+        final ArrayList<Package> packages = new ArrayList<Package>(mPackages.size());
+        for (Package pkg : mPackages.values()) {
+            if (pkg.isInstalled()) {
+                packages.add(pkg);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Returns the given package, installed or not, or null if it doesn't
+     * exist.  Same threading rules as {@link #getPackages}.
+     */
+    synchronized Package getPackage(String packageName) {
+        update();
+        return mPackages.get(packageName);
+    }
+
+    /**
+     * Returns an op entry for an op that the package holds the permission
+     * of but never used.  The entries are immutable and shared.
+     */
+    static AppOpsManager.OpEntry getUnusedOp(int op) {
+        synchronized (sUnusedOps) {
+            if (sUnusedOps[op] == null) {
+                sUnusedOps[op] = new AppOpsManager.OpEntry(
+                        op, AppOpsManager.MODE_ALLOWED, 0, 0, 0, 0, 0);
+            }
+            return sUnusedOps[op];
+        }
+    }
+
+    private void update() {
+        if (!mBuilt) {
+            final List<PackageInfo> infos = mPm.getInstalledPackages(PACKAGE_FLAGS);
+            for (PackageInfo info : infos) {
+                mPackages.put(info.packageName, newPackage(info));
+            }
+            mChangedPackages.clear();
+            mBuilt = true;
+            if (DEBUG) Log.d(TAG, "Indexed " + mPackages.size() + " packages");
+            return;
+        }
+
+        for (String packageName : mChangedPackages) {
+            try {
+                mPackages.put(packageName,
+                        newPackage(mPm.getPackageInfo(packageName, PACKAGE_FLAGS)));
+                if (DEBUG) Log.d(TAG, "Updated " + packageName);
+            } catch (PackageManager.NameNotFoundException e) {
+                mPackages.remove(packageName);
+                if (DEBUG) Log.d(TAG, "Removed " + packageName);
+            }
+        }
+        mChangedPackages.clear();
+    }
+
+    private static Package newPackage(PackageInfo info) {
+        final HashMap<String, int[]> permissionToOps = getPermissionToOps();
+        final BitSet ops = new BitSet(AppOpsManager._NUM_OP);
+        if (info.requestedPermissions != null) {
+            for (int i = 0; i < info.requestedPermissions.length; i++) {
+                if (info.requestedPermissionsFlags != null
+                        && (info.requestedPermissionsFlags[i]
+                                & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
+                    continue;
+                }
+                final int[] permissionOps = permissionToOps.get(info.requestedPermissions[i]);
+                if (permissionOps != null) {
+                    for (int op : permissionOps) {
+                        ops.set(op);
+                    }
+                }
+            }
+        }
+        return new Package(info.applicationInfo, ops);
+    }
+
+    private static HashMap<String, int[]> getPermissionToOps() {
+        synchronized (sLock) {
+            if (sPermissionToOps == null) {
+                final HashMap<String, int[]> permissionToOps = new HashMap<String, int[]>();
+                for (int op = 0; op < AppOpsManager._NUM_OP; op++) {
+                    final String permission = AppOpsManager.opToPermission(op);
+                    if (permission == null) {
+                        continue;
+                    }
+                    final int[] ops = permissionToOps.get(permission);
+                    final int[] newOps;
+                    if (ops == null) {
+                        newOps = new int[] { op };
+                    } else {
+                        newOps = new int[ops.length + 1];
+                        System.arraycopy(ops, 0, newOps, 0, ops.length);
+                        newOps[ops.length] = op;
+                    }
+                    permissionToOps.put(permission, newOps);
+                }
+                sPermissionToOps = permissionToOps;
+            }
+            return sPermissionToOps;
+        }
+    }
+}
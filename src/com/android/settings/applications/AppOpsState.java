@@ -20,9 +20,7 @@ import android.app.Activity;
 import android.app.AppOpsManager;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Drawable;
@@ -52,6 +50,8 @@ public class AppOpsState {
     final CharSequence[] mOpSummaries;
     final CharSequence[] mOpLabels;
 
+    final AppOpsIndex mIndex;
+
     List<AppOpEntry> mApps;
 
     private SharedPreferences mPreferences;
@@ -63,6 +63,8 @@ public class AppOpsState {
         mOpSummaries = context.getResources().getTextArray(R.array.app_ops_summaries_cm);
         mOpLabels = context.getResources().getTextArray(R.array.app_ops_labels_cm);
         mPreferences = context.getSharedPreferences("appops_manager", Activity.MODE_PRIVATE);
+        // Created right away, so that it hears about package changes before the loaders do
+        mIndex = AppOpsIndex.getInstance(context);
     }
 
     public static class OpsTemplate implements Parcelable {
@@ -277,7 +279,7 @@ public class AppOpsState {
         public Drawable getIcon() {
             if (mIcon == null) {
                 if (mApkFile.exists()) {
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = AppIconCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 } else {
                     mMounted = false;
@@ -287,7 +289,7 @@ public class AppOpsState {
                 // its icon.
                 if (mApkFile.exists()) {
                     mMounted = true;
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = AppIconCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 }
             } else {
@@ -523,6 +525,12 @@ public class AppOpsState {
     private AppEntry getAppEntry(final Context context, final HashMap<String, AppEntry> appEntries,
             final String packageName, ApplicationInfo appInfo, boolean applyFilters) {
 
+        if (appInfo == null) {
+            AppOpsIndex.Package pkg = mIndex.getPackage(packageName);
+            if (pkg != null) {
+                appInfo = pkg.info;
+            }
+        }
         if (appInfo == null) {
             try {
                 appInfo = mPm.getApplicationInfo(packageName,
@@ -570,6 +578,7 @@ public class AppOpsState {
         final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
         final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
 
+        // The ops to show for the apps holding their permission, at most one per permission
         final ArrayList<String> perms = new ArrayList<String>();
         final ArrayList<Integer> permOps = new ArrayList<Integer>();
         final int[] opToOrder = new int[AppOpsManager._NUM_OP];
@@ -610,62 +619,47 @@ public class AppOpsState {
             }
         }
 
-        List<PackageInfo> apps;
+        List<AppOpsIndex.Package> apps;
         if (packageName != null) {
-            apps = new ArrayList<PackageInfo>();
-            try {
-                PackageInfo pi = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-                apps.add(pi);
-            } catch (NameNotFoundException e) {
+            apps = new ArrayList<AppOpsIndex.Package>();
+            AppOpsIndex.Package pkg = mIndex.getPackage(packageName);
+            if (pkg != null && pkg.isInstalled()) {
+                apps.add(pkg);
             }
         } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
-            apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
+            apps = mIndex.getPackages();
         }
         for (int i=0; i<apps.size(); i++) {
-            PackageInfo appInfo = apps.get(i);
-            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo, applyFilters);
-            if (appEntry == null) {
-                continue;
-            }
-            List<AppOpsManager.OpEntry> dummyOps = null;
+            AppOpsIndex.Package pkg = apps.get(i);
+            List<AppOpsManager.OpEntry> unusedOps = null;
             AppOpsManager.PackageOps pkgOps = null;
-            if (appInfo.requestedPermissions != null) {
-                for (int j=0; j<appInfo.requestedPermissions.length; j++) {
-                    if (appInfo.requestedPermissionsFlags != null) {
-                        if ((appInfo.requestedPermissionsFlags[j]
-                                & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
-                            if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
-                                    + appInfo.requestedPermissions[j] + " not granted; skipping");
-                            continue;
-                        }
-                    }
-                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
-                            + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
-                            continue;
-                        }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
-                        }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
-
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0, 0, 0);
-                        dummyOps.add(opEntry);
-                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
+            AppEntry appEntry = null;
+            for (int k=0; k<permOps.size(); k++) {
+                final int op = permOps.get(k);
+                if (!pkg.permissionOps.get(op)) {
+                    continue;
+                }
+                if (appEntry == null) {
+                    appEntry = getAppEntry(context, appEntries, pkg.info.packageName, pkg.info,
+                            applyFilters);
+                    if (appEntry == null) {
+                        break;
                     }
                 }
+                if (DEBUG) Log.d(TAG, "Pkg " + pkg.info.packageName + " perm " + perms.get(k)
+                        + " has op " + op + ": " + appEntry.hasOp(op));
+                if (appEntry.hasOp(op)) {
+                    continue;
+                }
+                if (unusedOps == null) {
+                    unusedOps = new ArrayList<AppOpsManager.OpEntry>();
+                    pkgOps = new AppOpsManager.PackageOps(
+                            pkg.info.packageName, pkg.info.uid, unusedOps);
+                }
+                AppOpsManager.OpEntry opEntry = AppOpsIndex.getUnusedOp(op);
+                unusedOps.add(opEntry);
+                addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                        packageName == null ? 0 : opToOrder[opEntry.getOp()]);
             }
         }
 
@@ -23,6 +23,7 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -30,6 +31,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -47,8 +52,8 @@ public class ApplicationsState {
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
         public void onPackageIconChanged();
-        public void onPackageSizeChanged(String packageName);
-        public void onAllSizesComputed();
+        public void onPackageSizesChanged(ArrayList<String> packageNames);
+        public void onAllSizesComputed(long elapsedMillis);
     }
 
     public static interface AppFilter {
@@ -59,9 +64,26 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Maximum number of getPackageSizeInfo() requests in flight at once.
+    static final int MAX_SIZE_REQUESTS = 4;
+    // A size request that has not been answered after this long is retried.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+    // Size changes are reported to the callbacks at most once per frame.
+    static final long SIZE_CHANGED_BATCH_DELAY = 16;
+    // Maximum number of visible entries remembered for prioritized sizing.
+    static final int MAX_PRIORITY_SIZE_ENTRIES = 32;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
+    static final Collator sCollator = Collator.getInstance();
+
+    static CollationKey getCollationKey(String str) {
+        synchronized (sCollator) {
+            return sCollator.getCollationKey(str != null ? str : "");
+        }
+    }
+
     public static String normalize(String str) {
         String tmp = Normalizer.normalize(str, Form.NFD);
         return REMOVE_DIACRITICALS_PATTERN.matcher(tmp)
@@ -89,6 +111,7 @@ public class ApplicationsState {
     public static class AppEntry extends SizeInfo {
         final File apkFile;
         final long id;
+        final long lastUpdateTime;
         String label;
         long size;
         long internalSize;
@@ -115,14 +138,70 @@ public class ApplicationsState {
 
         String normalizedLabel;
 
+        // Sort key for the label, computed once instead of on every comparison.
+        CollationKey labelKey;
+
+        CollationKey getLabelKey() {
+            if (labelKey == null) {
+                labelKey = getCollationKey(label);
+            }
+            return labelKey;
+        }
+
         AppEntry(Context context, ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
+            this.lastUpdateTime = apkFile.lastModified();
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
             ensureLabel(context);
         }
+
+        // Restores an entry from the snapshot.  The sizes are only a
+        // placeholder until they have been computed again, so they are
+        // marked as stale.
+        AppEntry(Context context, ApplicationInfo info, long id,
+                AppEntrySnapshot.Record r) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            this.lastUpdateTime = r.lastUpdateTime;
+            this.mounted = true;
+            this.label = r.label;
+            this.normalizedLabel = r.normalizedLabel;
+            this.size = r.size;
+            this.internalSize = r.internalSize;
+            this.externalSize = r.externalSize;
+            this.cacheSize = r.cacheSize;
+            this.codeSize = r.codeSize;
+            this.dataSize = r.dataSize;
+            this.externalCodeSize = r.externalCodeSize;
+            this.externalDataSize = r.externalDataSize;
+            this.externalCacheSize = r.externalCacheSize;
+            this.sizeStr = getSizeStr(context, this.size);
+            this.internalSizeStr = getSizeStr(context, this.internalSize);
+            this.externalSizeStr = getSizeStr(context, this.externalSize);
+            this.sizeStale = true;
+        }
+
+        AppEntrySnapshot.Record toSnapshotRecordLocked() {
+            AppEntrySnapshot.Record r = new AppEntrySnapshot.Record();
+            r.packageName = info.packageName;
+            r.lastUpdateTime = lastUpdateTime;
+            r.label = label;
+            r.normalizedLabel = getNormalizedLabel();
+            r.size = size;
+            r.internalSize = internalSize;
+            r.externalSize = externalSize;
+            r.cacheSize = cacheSize;
+            r.codeSize = codeSize;
+            r.dataSize = dataSize;
+            r.externalCodeSize = externalCodeSize;
+            r.externalDataSize = externalDataSize;
+            r.externalCacheSize = externalCacheSize;
+            return r;
+        }
         
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
@@ -134,13 +213,14 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                this.labelKey = null;
             }
         }
         
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +232,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info);
                     return true;
                 }
             }
@@ -161,7 +241,6 @@ public class ApplicationsState {
     }
 
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,40 +250,37 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
@@ -280,9 +356,19 @@ public class ApplicationsState {
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    final ArrayList<AppEntry> mPrioritySizeEntries = new ArrayList<AppEntry>();
+    LinkedHashSet<String> mPendingSizeChangedPkgs = new LinkedHashSet<String>();
+    long mSizeComputeStart;
     boolean mSessionsChanged;
 
+    // Entries restored from disk on the first resume; consumed as the real
+    // entries are created.  Synchronize on mEntriesMap.
+    final AppEntrySnapshot mSnapshot;
+    HashMap<String, AppEntrySnapshot.Record> mSnapshotRecords;
+    boolean mSnapshotLoaded;
+    boolean mSnapshotDirty;
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
@@ -387,14 +473,20 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
-                    for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
+                    ArrayList<String> pkgs;
+                    synchronized (mEntriesMap) {
+                        pkgs = new ArrayList<String>(mPendingSizeChangedPkgs);
+                        mPendingSizeChangedPkgs.clear();
+                    }
+                    if (pkgs.size() > 0) {
+                        for (int i=0; i<mActiveSessions.size(); i++) {
+                            mActiveSessions.get(i).mCallbacks.onPackageSizesChanged(pkgs);
+                        }
                     }
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
                     for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onAllSizesComputed();
+                        mActiveSessions.get(i).mCallbacks.onAllSizesComputed((Long)msg.obj);
                     }
                 } break;
                 case MSG_RUNNING_STATE_CHANGED: {
@@ -426,6 +518,7 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mSnapshot = new AppEntrySnapshot(mContext.getCacheDir());
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -463,10 +556,42 @@ public class ApplicationsState {
         }
     }
 
+    // A change to the package list or to an entry's size, recorded for each
+    // session so it can be applied to the session's sorted list.
+    static class PendingChange {
+        static final int ADD = 1;
+        static final int REMOVE = 2;
+        static final int SIZE = 3;
+
+        final int type;
+        final ApplicationInfo info;
+        final AppEntry entry;
+
+        PendingChange(int type, ApplicationInfo info, AppEntry entry) {
+            this.type = type;
+            this.info = info;
+            this.entry = entry;
+        }
+    }
+
+    // Beyond this many pending changes a full rebuild is cheaper.
+    static final int MAX_PENDING_CHANGES = 64;
+
     public class Session {
         final Callbacks mCallbacks;
         boolean mResumed;
 
+        // Filtered and sorted result of the last rebuild, which later changes
+        // are applied to.  Only touched by the background thread.
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+        ArrayList<AppEntry> mSortedApps;
+
+        // Changes since the last rebuild.  Synchronized on mEntriesMap.
+        final ArrayList<PendingChange> mPendingChanges = new ArrayList<PendingChange>();
+        boolean mSortedInvalid = true;
+        boolean mSizeSorted;
+
         // Rebuilding of app list.  Synchronized on mRebuildSync.
         final Object mRebuildSync = new Object();
         boolean mRebuildRequested;
@@ -542,6 +667,21 @@ public class ApplicationsState {
             }
         }
 
+        void addPendingChangeLocked(int type, ApplicationInfo info, AppEntry entry) {
+            if (mSortedInvalid) {
+                return;
+            }
+            if (type == PendingChange.SIZE && !mSizeSorted) {
+                return;
+            }
+            if (mPendingChanges.size() >= MAX_PENDING_CHANGES) {
+                mPendingChanges.clear();
+                mSortedInvalid = true;
+                return;
+            }
+            mPendingChanges.add(new PendingChange(type, info, entry));
+        }
+
         void handleRebuildList() {
             AppFilter filter;
             Comparator<AppEntry> comparator;
@@ -562,33 +702,57 @@ public class ApplicationsState {
             if (filter != null) {
                 filter.init();
             }
-            
-            List<ApplicationInfo> apps;
+
+            List<ApplicationInfo> apps = null;
+            ArrayList<PendingChange> changes = null;
             synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
+                if (mSortedInvalid || mSortedApps == null || filter != mLastFilter) {
+                    apps = new ArrayList<ApplicationInfo>(mApplications);
+                } else {
+                    changes = new ArrayList<PendingChange>(mPendingChanges);
+                }
+                mPendingChanges.clear();
+                mSortedInvalid = false;
+                mSizeSorted = comparator != ALPHA_COMPARATOR;
             }
 
-            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-            if (DEBUG) Log.i(TAG, "Rebuilding...");
-            for (int i=0; i<apps.size(); i++) {
-                ApplicationInfo info = apps.get(i);
-                //protected app
-                if (info.protect) {
-                    continue;
-                }
-                if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+            ArrayList<AppEntry> filteredApps;
+            if (apps != null) {
+                filteredApps = new ArrayList<AppEntry>();
+                if (DEBUG) Log.i(TAG, "Rebuilding...");
+                for (int i=0; i<apps.size(); i++) {
+                    ApplicationInfo info = apps.get(i);
+                    //protected app
+                    if (info.protect) {
+                        continue;
+                    }
+                    if (filter == null || filter.filterApp(info)) {
+                        synchronized (mEntriesMap) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
+                            AppEntry entry = getEntryLocked(info);
+                            entry.ensureLabel(mContext);
+                            if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                            filteredApps.add(entry);
+                            if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                        }
                     }
                 }
+                Collections.sort(filteredApps, comparator);
+            } else {
+                if (DEBUG) Log.i(TAG, "Applying " + changes.size() + " changes...");
+                filteredApps = mSortedApps;
+                applyChanges(filteredApps, changes, filter, mLastComparator);
+                if (comparator != mLastComparator) {
+                    Collections.sort(filteredApps, comparator);
+                }
             }
+            mLastFilter = filter;
+            mLastComparator = comparator;
+            mSortedApps = filteredApps;
 
-            Collections.sort(filteredApps, comparator);
+            // Callers hold on to the list they are given, so hand out a copy
+            // of the one that will keep being updated.
+            filteredApps = new ArrayList<AppEntry>(filteredApps);
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
@@ -609,6 +773,52 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        private void applyChanges(ArrayList<AppEntry> apps, ArrayList<PendingChange> changes,
+                AppFilter filter, Comparator<AppEntry> comparator) {
+            // Size changes go first, all together, so that the list is
+            // sorted again before anything is binary searched in it.
+            ArrayList<AppEntry> resized = null;
+            for (int i=0; i<changes.size(); i++) {
+                PendingChange change = changes.get(i);
+                if (change.type == PendingChange.SIZE) {
+                    if (resized == null) {
+                        resized = new ArrayList<AppEntry>();
+                    }
+                    resized.add(change.entry);
+                }
+            }
+            if (resized != null) {
+                repositionSorted(apps, resized, comparator);
+            }
+            for (int i=0; i<changes.size(); i++) {
+                PendingChange change = changes.get(i);
+                switch (change.type) {
+                    case PendingChange.ADD: {
+                        ApplicationInfo info = change.info;
+                        if (info.protect || (filter != null && !filter.filterApp(info))) {
+                            break;
+                        }
+                        AppEntry entry;
+                        synchronized (mEntriesMap) {
+                            // It may have been removed again in the meantime.
+                            int idx = indexOfApplicationInfoLocked(info.packageName);
+                            if (idx < 0 || mApplications.get(idx) != info) {
+                                break;
+                            }
+                            entry = getEntryLocked(info);
+                            entry.ensureLabel(mContext);
+                        }
+                        if (apps.indexOf(entry) < 0) {
+                            insertSorted(apps, entry, comparator);
+                        }
+                    } break;
+                    case PendingChange.REMOVE: {
+                        removeSorted(apps, change.entry, comparator);
+                    } break;
+                }
+            }
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
@@ -617,6 +827,80 @@ public class ApplicationsState {
         }
     }
 
+    static void insertSorted(ArrayList<AppEntry> apps, AppEntry entry,
+            Comparator<AppEntry> comparator) {
+        int idx = Collections.binarySearch(apps, entry, comparator);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        apps.add(idx, entry);
+    }
+
+    static void removeSorted(ArrayList<AppEntry> apps, AppEntry entry,
+            Comparator<AppEntry> comparator) {
+        int idx = Collections.binarySearch(apps, entry, comparator);
+        if (idx >= 0 && apps.get(idx) == entry) {
+            apps.remove(idx);
+        } else {
+            // Its sort key changed since it was inserted, or it is one of
+            // several entries that compare equal.
+            apps.remove(entry);
+        }
+    }
+
+    // Moves the entries whose size changed to their new positions.  Their
+    // old sort keys are gone, so they have to be found by identity.  With a
+    // single entry the rest of the list is still sorted and most size
+    // changes don't move it at all, which is checked against its neighbours;
+    // with several, all of them are taken out before any is put back, as a
+    // binary search would be misled by the others still being out of place.
+    static void repositionSorted(ArrayList<AppEntry> apps, List<AppEntry> entries,
+            Comparator<AppEntry> comparator) {
+        if (entries.size() == 1) {
+            final AppEntry entry = entries.get(0);
+            final int idx = apps.indexOf(entry);
+            if (idx < 0) {
+                return;
+            }
+            if ((idx == 0 || comparator.compare(apps.get(idx-1), entry) <= 0)
+                    && (idx == apps.size()-1
+                            || comparator.compare(entry, apps.get(idx+1)) <= 0)) {
+                return;
+            }
+            apps.remove(idx);
+            insertSorted(apps, entry, comparator);
+            return;
+        }
+        final IdentityHashMap<AppEntry, AppEntry> resized
+                = new IdentityHashMap<AppEntry, AppEntry>();
+        for (int i=0; i<entries.size(); i++) {
+            resized.put(entries.get(i), entries.get(i));
+        }
+        final ArrayList<AppEntry> moved = new ArrayList<AppEntry>();
+        int kept = 0;
+        for (int i=0; i<apps.size(); i++) {
+            final AppEntry entry = apps.get(i);
+            if (resized.containsKey(entry)) {
+                moved.add(entry);
+            } else {
+                apps.set(kept++, entry);
+            }
+        }
+        if (moved.isEmpty()) {
+            return;
+        }
+        apps.subList(kept, apps.size()).clear();
+        for (int i=0; i<moved.size(); i++) {
+            insertSorted(apps, moved.get(i), comparator);
+        }
+    }
+
+    void addPendingChangeLocked(int type, ApplicationInfo info, AppEntry entry) {
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).addPendingChangeLocked(type, info, entry);
+        }
+    }
+
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
         synchronized (mEntriesMap) {
@@ -638,18 +922,31 @@ public class ApplicationsState {
         if (mApplications == null) {
             mApplications = new ArrayList<ApplicationInfo>();
         }
+        for (int i=0; i<mSessions.size(); i++) {
+            Session s = mSessions.get(i);
+            s.mPendingChanges.clear();
+            s.mSortedInvalid = true;
+        }
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
             mEntriesMap.clear();
             mAppEntries.clear();
+            mSnapshotRecords = null;
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
             }
         }
 
+        if (!mSnapshotLoaded) {
+            // Load the entries saved by a previous process before the first
+            // rebuild, so it can sort by label and size right away.
+            mSnapshotLoaded = true;
+            mSnapshotRecords = mSnapshot.load(getLocaleString());
+        }
+
         mHaveDisabledApps = false;
         for (int i=0; i<mApplications.size(); i++) {
             final ApplicationInfo info = mApplications.get(i);
@@ -668,7 +965,8 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mComputingSizePkgs.clear();
+        mSizeComputeStart = 0;
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -721,6 +1019,31 @@ public class ApplicationsState {
         }
     }
     
+    /**
+     * Called for entries that are currently displayed, so that their size
+     * is computed ahead of the rest of the list.
+     */
+    void requestSizeFirst(AppEntry entry) {
+        synchronized (mEntriesMap) {
+            final boolean needsSize;
+            synchronized (entry) {
+                needsSize = entry.size == SIZE_UNKNOWN || entry.sizeStale;
+            }
+            if (!mResumed || !needsSize
+                    || mComputingSizePkgs.contains(entry.info.packageName)
+                    || mPrioritySizeEntries.contains(entry)) {
+                return;
+            }
+            if (mPrioritySizeEntries.size() >= MAX_PRIORITY_SIZE_ENTRIES) {
+                mPrioritySizeEntries.remove(0);
+            }
+            mPrioritySizeEntries.add(entry);
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_SIZES)) {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
+            }
+        }
+    }
+
     void requestSize(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
         synchronized (mEntriesMap) {
@@ -780,6 +1103,7 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                addPendingChangeLocked(PendingChange.ADD, info, null);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -793,6 +1117,7 @@ public class ApplicationsState {
     }
 
     void removePackage(String pkgName) {
+        AppIconCache.getInstance(mContext).invalidate(pkgName);
         synchronized (mEntriesMap) {
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
             int idx = indexOfApplicationInfoLocked(pkgName);
@@ -803,6 +1128,8 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mSnapshotDirty = true;
+                    addPendingChangeLocked(PendingChange.REMOVE, null, entry);
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
@@ -833,9 +1160,17 @@ public class ApplicationsState {
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
+            AppEntrySnapshot.Record r = mSnapshotRecords != null
+                    ? mSnapshotRecords.remove(info.packageName) : null;
+            if (r != null && r.lastUpdateTime != 0
+                    && r.lastUpdateTime == new File(info.sourceDir).lastModified()) {
+                entry = new AppEntry(mContext, info, mCurId++, r);
+            } else {
+                entry = new AppEntry(mContext, info, mCurId++);
+            }
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
+            mSnapshotDirty = true;
         } else if (entry.info != info) {
             entry.info = info;
         }
@@ -863,12 +1198,40 @@ public class ApplicationsState {
     }
 
     private String getSizeStr(long size) {
+        return getSizeStr(mContext, size);
+    }
+
+    static String getSizeStr(Context context, long size) {
         if (size >= 0) {
-            return Formatter.formatFileSize(mContext, size);
+            return Formatter.formatFileSize(context, size);
         }
         return null;
     }
 
+    private String getLocaleString() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    void saveSnapshot() {
+        ArrayList<AppEntrySnapshot.Record> records;
+        synchronized (mEntriesMap) {
+            if (!mSnapshotDirty) {
+                return;
+            }
+            mSnapshotDirty = false;
+            records = new ArrayList<AppEntrySnapshot.Record>(mAppEntries.size());
+            for (int i=0; i<mAppEntries.size(); i++) {
+                AppEntry entry = mAppEntries.get(i);
+                synchronized (entry) {
+                    if (entry.mounted) {
+                        records.add(entry.toSnapshotRecordLocked());
+                    }
+                }
+            }
+        }
+        mSnapshot.save(getLocaleString(), records);
+    }
+
     final HandlerThread mThread;
     final BackgroundHandler mBackgroundHandler;
     class BackgroundHandler extends Handler {
@@ -876,6 +1239,10 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_SAVE_SNAPSHOT = 5;
+        // Same as MSG_LOAD_SIZES, once the oldest size request may have
+        // timed out; kept apart so that it doesn't hold back the others.
+        static final int MSG_SIZE_REQUEST_TIMEOUT = 6;
 
         boolean mRunning;
 
@@ -917,17 +1284,21 @@ public class ApplicationsState {
                                 if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
                                         + ": " + entry.sizeStr);
                                 sizeChanged = true;
+                                mSnapshotDirty = true;
                             }
                         }
                         if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                            addPendingChangeLocked(PendingChange.SIZE, null, entry);
+                            mPendingSizeChangedPkgs.add(stats.packageName);
+                            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                                mMainHandler.sendEmptyMessageDelayed(
+                                        MainHandler.MSG_PACKAGE_SIZE_CHANGED,
+                                        SIZE_CHANGED_BATCH_DELAY);
+                            }
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (mComputingSizePkgs.remove(stats.packageName)
+                            && !hasMessages(MSG_LOAD_SIZES)) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -939,6 +1310,26 @@ public class ApplicationsState {
             super(looper);
         }
 
+        boolean needsSizeLocked(AppEntry entry) {
+            return (entry.size == SIZE_UNKNOWN || entry.sizeStale)
+                    && !mComputingSizePkgs.contains(entry.info.packageName);
+        }
+
+        void startSizeRequestLocked(AppEntry entry, long now) {
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            if (mSizeComputeStart == 0) {
+                mSizeComputeStart = now;
+            }
+            entry.sizeLoadStart = now;
+            mComputingSizePkgs.add(entry.info.packageName);
+            mPm.getPackageSizeInfo(entry.info.packageName, mStatsObserver);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             // Always try rebuilding list first thing, if needed.
@@ -981,6 +1372,11 @@ public class ApplicationsState {
                     if (numDone >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
+                        synchronized (mEntriesMap) {
+                            // Every installed package has an entry now; whatever
+                            // is left in the snapshot has been uninstalled.
+                            mSnapshotRecords = null;
+                        }
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
@@ -1017,44 +1413,84 @@ public class ApplicationsState {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
+                case MSG_SIZE_REQUEST_TIMEOUT:
                 case MSG_LOAD_SIZES: {
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        final long now = SystemClock.uptimeMillis();
+
+                        // Give up on requests that never got an answer.
+                        Iterator<String> it = mComputingSizePkgs.iterator();
+                        while (it.hasNext()) {
+                            AppEntry entry = mEntriesMap.get(it.next());
+                            if (entry == null
+                                    || entry.sizeLoadStart < (now-SIZE_REQUEST_TIMEOUT)) {
+                                it.remove();
+                            }
                         }
 
-                        long now = SystemClock.uptimeMillis();
+                        // Entries being displayed go first.
+                        while (mPrioritySizeEntries.size() > 0
+                                && mComputingSizePkgs.size() < MAX_SIZE_REQUESTS) {
+                            AppEntry entry = mPrioritySizeEntries.remove(
+                                    mPrioritySizeEntries.size()-1);
+                            if (mEntriesMap.get(entry.info.packageName) == entry
+                                    && needsSizeLocked(entry)) {
+                                startSizeRequestLocked(entry, now);
+                            }
+                        }
+
+                        boolean remaining = false;
                         for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                            if (!needsSizeLocked(entry)) {
+                                continue;
                             }
+                            remaining = true;
+                            if (mComputingSizePkgs.size() >= MAX_SIZE_REQUESTS) {
+                                break;
+                            }
+                            startSizeRequestLocked(entry, now);
                         }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+
+                        if (!remaining && mComputingSizePkgs.isEmpty()
+                                && !mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                            final long elapsed = mSizeComputeStart != 0
+                                    ? now - mSizeComputeStart : 0;
+                            mSizeComputeStart = 0;
+                            if (DEBUG) Log.i(TAG, "All sizes computed in " + elapsed + "ms");
+                            if (!hasMessages(MSG_SAVE_SNAPSHOT)) {
+                                sendEmptyMessage(MSG_SAVE_SNAPSHOT);
+                            }
+                            Message done = mMainHandler.obtainMessage(
+                                    MainHandler.MSG_ALL_SIZES_COMPUTED, elapsed);
+                            mMainHandler.sendMessage(done);
                             mRunning = false;
                             Message m = mMainHandler.obtainMessage(
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
+
+                        // Come back when the oldest request times out, in
+                        // case no answer ever comes to trigger a new pass.
+                        removeMessages(MSG_SIZE_REQUEST_TIMEOUT);
+                        long oldestStart = Long.MAX_VALUE;
+                        for (String pkg : mComputingSizePkgs) {
+                            AppEntry entry = mEntriesMap.get(pkg);
+                            if (entry != null && entry.sizeLoadStart < oldestStart) {
+                                oldestStart = entry.sizeLoadStart;
+                            }
+                        }
+                        if (oldestStart != Long.MAX_VALUE) {
+                            sendEmptyMessageAtTime(MSG_SIZE_REQUEST_TIMEOUT,
+                                    oldestStart + SIZE_REQUEST_TIMEOUT + 1);
+                        }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
                 } break;
+                case MSG_SAVE_SNAPSHOT: {
+                    saveSnapshot();
+                } break;
             }
         }
 
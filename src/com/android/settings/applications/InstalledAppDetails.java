@@ -674,7 +674,7 @@ public class InstalledAppDetails extends Fragment
     }
 
     @Override
-    public void onAllSizesComputed() {
+    public void onAllSizesComputed(long elapsedMillis) {
     }
 
     @Override
@@ -691,8 +691,8 @@ public class InstalledAppDetails extends Fragment
     }
 
     @Override
-    public void onPackageSizeChanged(String packageName) {
-        if (packageName.equals(mAppEntry.info.packageName)) {
+    public void onPackageSizesChanged(ArrayList<String> packageNames) {
+        if (packageNames.contains(mAppEntry.info.packageName)) {
             refreshSizeInfo();
         }
     }
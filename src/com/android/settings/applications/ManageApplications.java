@@ -734,14 +734,16 @@ public class ManageApplications extends Fragment implements
         }
 
         @Override
-        public void onPackageSizeChanged(String packageName) {
+        public void onPackageSizesChanged(ArrayList<String> packageNames) {
+            boolean changed = false;
             for (int i=0; i<mActive.size(); i++) {
                 AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
-                if (holder.entry.info.packageName.equals(packageName)) {
+                final String packageName = holder.entry.info.packageName;
+                if (packageNames.contains(packageName)) {
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
-                    if (holder.entry.info.packageName.equals(mTab.mOwner.mCurrentPkgName)
+                    if (packageName.equals(mTab.mOwner.mCurrentPkgName)
                             && mLastSortMode == SORT_ORDER_SIZE) {
                         // We got the size information for the last app the
                         // user viewed, and are sorting by size...  they may
@@ -749,14 +751,17 @@ public class ManageApplications extends Fragment implements
                         // the list with the new size to reflect it to the user.
                         rebuild(false);
                     }
-                    mTab.updateStorageUsage();
-                    return;
+                    changed = true;
                 }
             }
+            if (changed) {
+                mTab.updateStorageUsage();
+            }
         }
 
         @Override
-        public void onAllSizesComputed() {
+        public void onAllSizesComputed(long elapsedMillis) {
+            if (DEBUG) Log.i(TAG, "All sizes computed in " + elapsedMillis + "ms");
             if (mLastSortMode == SORT_ORDER_SIZE) {
                 rebuild(false);
             }
@@ -814,6 +819,9 @@ public class ManageApplications extends Fragment implements
                     holder.checkBox.setVisibility(View.GONE);
                 }
             }
+            // Outside of the entry lock: this takes the state's lock, which
+            // is always acquired before an entry's.
+            mState.requestSizeFirst(entry);
             mActive.remove(convertView);
             mActive.add(convertView);
             return convertView;
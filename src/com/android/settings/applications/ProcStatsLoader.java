@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.os.Bundle;
+
+import com.android.internal.app.IProcessStats;
+
+/**
+ * Loads the process stats over one duration, going through the
+ * {@link ProcStatsSnapshot} cache first.
+ */
+class ProcStatsLoader extends AsyncTaskLoader<ProcStatsSnapshot> {
+    private static final String KEY_DURATION = "duration";
+
+    private final IProcessStats mService;
+    private final long mDuration;
+
+    static Bundle buildArgs(long duration) {
+        final Bundle args = new Bundle();
+        args.putLong(KEY_DURATION, duration);
+        return args;
+    }
+
+    ProcStatsLoader(Context context, IProcessStats service, Bundle args) {
+        super(context);
+        mService = service;
+        mDuration = args.getLong(KEY_DURATION);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        final ProcStatsSnapshot cached = ProcStatsSnapshot.getCached(mDuration);
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public ProcStatsSnapshot loadInBackground() {
+        final ProcStatsSnapshot snapshot = ProcStatsSnapshot.read(mService, mDuration);
+        if (snapshot != null) {
+            // group processes here rather than on the main thread
+            snapshot.getProcs();
+        }
+        return snapshot;
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.app.IProcessStats;
+import com.android.internal.app.ProcessMap;
+import com.android.internal.app.ProcessStats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Process stats over one duration, read and parsed once and then kept for a
+ * while, so that the summary can switch between durations and views
+ * without going back to the process stats service.
+ *
+ * Snapshots are cached per duration, rounded to {@link #DURATION_QUANTUM};
+ * the processes and packages they hold are grouped once per snapshot, and
+ * the sorted entries once per kind of view.
+ */
+class ProcStatsSnapshot {
+    static final String TAG = "ProcStatsSnapshot";
+    static final boolean DEBUG = ProcessStatsUi.DEBUG;
+
+    static final long DURATION_QUANTUM = ProcessStats.COMMIT_PERIOD;
+
+    // How long a snapshot may be shown before it's read again.
+    static final long MAX_AGE = 60 * 1000;
+
+    private static final SparseArray<ProcStatsSnapshot> sCache
+            = new SparseArray<ProcStatsSnapshot>();
+
+    final long mDuration;
+    final long mReadTime;
+    final ProcessStats mStats;
+    final int mMemState;
+
+    private ArrayList<Proc> mProcs;
+    private final HashMap<String, ArrayList<ProcStatsEntry>> mEntries
+            = new HashMap<String, ArrayList<ProcStatsEntry>>();
+
+    /**
+     * A process with the packages running in it and their services.
+     */
+    static class Proc {
+        final ProcessStats.ProcessState mState;
+        final ArrayList<String> mPackages = new ArrayList<String>(1);
+        final ArrayList<ProcessStats.ServiceState> mServices
+                = new ArrayList<ProcessStats.ServiceState>();
+
+        Proc(ProcessStats.ProcessState state) {
+            mState = state;
+        }
+    }
+
+    private ProcStatsSnapshot(long duration, ProcessStats stats, int memState) {
+        mDuration = duration;
+        mReadTime = SystemClock.elapsedRealtime();
+        mStats = stats;
+        mMemState = memState;
+    }
+
+    private static int keyFor(long duration) {
+        return (int) ((duration + DURATION_QUANTUM / 2) / DURATION_QUANTUM);
+    }
+
+    boolean isExpired() {
+        return SystemClock.elapsedRealtime() - mReadTime > MAX_AGE;
+    }
+
+    /**
+     * Returns the cached snapshot for the given duration if it isn't too
+     * old, or null.  A snapshot that is too old is dropped.
+     */
+    static ProcStatsSnapshot getCached(long duration) {
+        synchronized (sCache) {
+            final int key = keyFor(duration);
+            ProcStatsSnapshot snapshot = sCache.get(key);
+            if (snapshot != null && snapshot.isExpired()) {
+                sCache.remove(key);
+                snapshot = null;
+            }
+            return snapshot;
+        }
+    }
+
+    static void invalidate() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    /**
+     * Reads and parses the stats over the given duration, and caches them.
+     * Does I/O; don't call it from the main thread.
+     */
+    static ProcStatsSnapshot read(IProcessStats service, long duration) {
+        try {
+            final int memState = service.getCurrentMemoryState();
+            ParcelFileDescriptor pfd = service.getStatsOverTime(duration);
+            ProcessStats stats = new ProcessStats(false);
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            stats.read(is);
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
+            }
+            ProcStatsSnapshot snapshot = new ProcStatsSnapshot(duration, stats, memState);
+            synchronized (sCache) {
+                // Drop the snapshots of durations that aren't looked at
+                // anymore, so that they don't hold on to their stats
+                for (int i = sCache.size() - 1; i >= 0; i--) {
+                    if (sCache.valueAt(i).isExpired()) {
+                        sCache.removeAt(i);
+                    }
+                }
+                sCache.put(keyFor(duration), snapshot);
+            }
+            return snapshot;
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the processes of these stats, each with the packages that ran
+     * in it and their services.  Built on first use.
+     */
+    synchronized ArrayList<Proc> getProcs() {
+        if (mProcs != null) {
+            return mProcs;
+        }
+
+        final ArrayList<Proc> procs = new ArrayList<Proc>();
+        final ProcessMap<Proc> procsMap = new ProcessMap<Proc>();
+        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
+            final SparseArray<ProcessStats.PackageState> pkgUids
+                    = mStats.mPackages.getMap().valueAt(ipkg);
+            for (int iu=0; iu<pkgUids.size(); iu++) {
+                final ProcessStats.PackageState st = pkgUids.valueAt(iu);
+                for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
+                    final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
+                    final ProcessStats.ProcessState state = mStats.mProcesses.get(pkgProc.mName,
+                            pkgProc.mUid);
+                    if (state == null) {
+                        Log.w(TAG, "No process found for pkg " + st.mPackageName
+                                + "/" + st.mUid + " proc name " + pkgProc.mName);
+                        continue;
+                    }
+                    Proc proc = procsMap.get(state.mName, state.mUid);
+                    if (proc == null) {
+                        proc = new Proc(state);
+                        procsMap.put(state.mName, state.mUid, proc);
+                        procs.add(proc);
+                    }
+                    proc.mPackages.add(st.mPackageName);
+                }
+            }
+        }
+
+        for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
+            SparseArray<ProcessStats.PackageState> uids = mStats.mPackages.getMap().valueAt(ip);
+            for (int iu=0; iu<uids.size(); iu++) {
+                ProcessStats.PackageState ps = uids.valueAt(iu);
+                for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
+                    ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
+                    if (ss.mProcessName != null) {
+                        Proc proc = procsMap.get(ss.mProcessName, uids.keyAt(iu));
+                        if (proc != null) {
+                            proc.mServices.add(ss);
+                        } else {
+                            Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
+                                    + " for service " + ss.mName);
+                        }
+                    }
+                }
+            }
+        }
+
+        mProcs = procs;
+        return procs;
+    }
+
+    /**
+     * Returns the entries for the given view of these stats, sorted with
+     * the given comparator.  Built once per view; entries that were shown
+     * before keep their UI data.
+     */
+    synchronized ArrayList<ProcStatsEntry> getEntries(int[] memStates, int[] procStates,
+            boolean useUss, boolean background, Comparator<ProcStatsEntry> compare) {
+        final String key = Arrays.toString(memStates) + Arrays.toString(procStates)
+                + useUss + background;
+        ArrayList<ProcStatsEntry> entries = mEntries.get(key);
+        if (entries != null) {
+            return entries;
+        }
+
+        final ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
+                ProcessStats.ALL_SCREEN_ADJ, memStates, procStates);
+        final ArrayList<Proc> procs = getProcs();
+        entries = new ArrayList<ProcStatsEntry>();
+        for (int i=0; i<procs.size(); i++) {
+            final Proc proc = procs.get(i);
+            ProcStatsEntry ent = new ProcStatsEntry(proc.mState, proc.mPackages.get(0), totals,
+                    useUss, background);
+            if (ent.mDuration <= 0) {
+                continue;
+            }
+            for (int ipkg=1; ipkg<proc.mPackages.size(); ipkg++) {
+                ent.addPackage(proc.mPackages.get(ipkg));
+            }
+            if (background) {
+                for (int is=0; is<proc.mServices.size(); is++) {
+                    ent.addService(proc.mServices.get(is));
+                }
+            }
+            entries.add(ent);
+        }
+        Collections.sort(entries, compare);
+        if (DEBUG) Log.d(TAG, "Built " + entries.size() + " entries for " + key);
+
+        mEntries.put(key, entries);
+        return entries;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManagerNative;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
+
+/**
+ * Samples the memory use of processes for the running processes view.
+ *
+ * The PSS of a process is accurate but expensive to get, since the kernel
+ * has to walk all of its mappings.  Its RSS, read from
+ * {@code /proc/<pid>/statm}, costs next to nothing.  This sampler takes the
+ * PSS of each process only now and then, and in between scales the last PSS
+ * by how much the RSS has moved since it was taken.  The RSS jitters a
+ * little all the time, so an estimate only moves once it is off by more
+ * than {@link #ESTIMATE_THRESHOLD_PERCENT}.
+ *
+ * Not thread safe; meant to be used from the RunningState background thread.
+ */
+class ProcessMemorySampler {
+    static final String TAG = "ProcessMemorySampler";
+    static final boolean DEBUG = false;
+
+    /** How far the estimate may drift before it is reported, in percent. */
+    static final int ESTIMATE_THRESHOLD_PERCENT = 5;
+
+    /**
+     * Where full PSS samples come from.
+     */
+    interface PssSource {
+        /** Returns the PSS in kB of each given pid, 0 for the ones that are gone. */
+        long[] getProcessPss(int[] pids) throws RemoteException;
+    }
+
+    private static final PssSource ACTIVITY_MANAGER_PSS = new PssSource() {
+        @Override
+        public long[] getProcessPss(int[] pids) throws RemoteException {
+            return ActivityManagerNative.getDefault().getProcessPss(pids);
+        }
+    };
+
+    /** What is known about the memory of one process. */
+    static class Sample {
+        String name;
+        long pssKb;
+        long pssTime;
+        long rssAtPssKb;
+        long rssKb;
+        long estimateKb;
+        boolean seen;
+    }
+
+    private final File mProcDir;
+    private final long mPageSizeKb;
+    private final PssSource mPssSource;
+    private final SparseArray<Sample> mSamples = new SparseArray<Sample>();
+    private final byte[] mBuffer = new byte[128];
+
+    static ProcessMemorySampler create() {
+        final long pageSize = Libcore.os.sysconf(OsConstants._SC_PAGESIZE);
+        return new ProcessMemorySampler(new File("/proc"), pageSize, ACTIVITY_MANAGER_PSS);
+    }
+
+    ProcessMemorySampler(File procDir, long pageSize, PssSource pssSource) {
+        mProcDir = procDir;
+        mPageSizeKb = pageSize / 1024;
+        mPssSource = pssSource;
+    }
+
+    /**
+     * Returns the estimated PSS in kB of each of the given processes, given
+     * by pid and process name.  The actual PSS is taken for processes that
+     * have no sample yet, or whose last one is older than the matching entry
+     * of {@code maxPssAge}; for all others it is estimated from the current
+     * RSS.  Processes not asked for are forgotten, and a pid that now runs a
+     * process of another name starts over.
+     */
+    long[] sample(int[] pids, String[] names, long[] maxPssAge, long now) {
+        final int num = pids.length;
+        final long[] sizes = new long[num];
+        for (int i=0; i<mSamples.size(); i++) {
+            mSamples.valueAt(i).seen = false;
+        }
+
+        // Read the RSS of everything, and note who needs a full sample
+        int[] pssPids = new int[num];
+        int[] pssIndex = new int[num];
+        int numPss = 0;
+        for (int i=0; i<num; i++) {
+            final int pid = pids[i];
+            Sample sample = mSamples.get(pid);
+            if (sample == null || !TextUtils.equals(sample.name, names[i])) {
+                sample = new Sample();
+                sample.name = names[i];
+                sample.pssTime = -1;
+                mSamples.put(pid, sample);
+            }
+            sample.seen = true;
+            sample.rssKb = readRssKb(pid);
+            if (sample.pssTime < 0 || now - sample.pssTime >= maxPssAge[i]) {
+                pssPids[numPss] = pid;
+                pssIndex[numPss] = i;
+                numPss++;
+            }
+        }
+
+        if (numPss > 0) {
+            if (numPss < num) {
+                final int[] subset = new int[numPss];
+                System.arraycopy(pssPids, 0, subset, 0, numPss);
+                pssPids = subset;
+            }
+            try {
+                final long[] pss = mPssSource.getProcessPss(pssPids);
+                for (int i=0; i<numPss; i++) {
+                    final Sample sample = mSamples.get(pssPids[i]);
+                    sample.pssKb = pss[i];
+                    sample.pssTime = now;
+                    sample.rssAtPssKb = sample.rssKb;
+                    sample.estimateKb = 0;
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Unable to sample PSS", e);
+            }
+            if (DEBUG) Log.d(TAG, "Sampled PSS of " + numPss + " of " + num + " processes");
+        }
+
+        for (int i=0; i<num; i++) {
+            sizes[i] = estimatePssKb(mSamples.get(pids[i]));
+        }
+
+        // Drop pids that are gone
+        for (int i=mSamples.size()-1; i>=0; i--) {
+            if (!mSamples.valueAt(i).seen) {
+                mSamples.removeAt(i);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns what is known about the given pid, or null.
+     */
+    Sample getSample(int pid) {
+        return mSamples.get(pid);
+    }
+
+    private static long estimatePssKb(Sample sample) {
+        final long estimate;
+        if (sample.pssTime < 0) {
+            // never got a PSS; the RSS is the best there is
+            estimate = sample.rssKb;
+        } else if (sample.rssAtPssKb <= 0 || sample.rssKb <= 0) {
+            estimate = sample.pssKb;
+        } else {
+            estimate = sample.pssKb * sample.rssKb / sample.rssAtPssKb;
+        }
+
+        // Keep the last estimate while the new one is within the threshold;
+        // a fresh PSS always goes through.
+        if (sample.estimateKb <= 0 || Math.abs(estimate - sample.estimateKb) * 100
+                > sample.estimateKb * ESTIMATE_THRESHOLD_PERCENT) {
+            sample.estimateKb = estimate;
+        }
+        return sample.estimateKb;
+    }
+
+    /**
+     * Returns the resident set size in kB of the given pid, or 0 if it
+     * can't be read, for example because the process is gone.
+     */
+    long readRssKb(int pid) {
+        final File statm = new File(new File(mProcDir, Integer.toString(pid)), "statm");
+        FileInputStream in = null;
+        int len = 0;
+        try {
+            in = new FileInputStream(statm);
+            int count;
+            while (len < mBuffer.length
+                    && (count = in.read(mBuffer, len, mBuffer.length - len)) > 0) {
+                len += count;
+            }
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        // statm is "size resident shared text lib data dt", in pages
+        int pos = 0;
+        while (pos < len && mBuffer[pos] != ' ') {
+            pos++;
+        }
+        pos++;
+        long pages = 0;
+        boolean digits = false;
+        for (; pos < len; pos++) {
+            final byte b = mBuffer[pos];
+            if (b < '0' || b > '9') {
+                break;
+            }
+            pages = pages * 10 + (b - '0');
+            digits = true;
+        }
+        return digits ? pages * mPageSizeKb : 0;
+    }
+}
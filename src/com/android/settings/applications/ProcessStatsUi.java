@@ -16,11 +16,11 @@
 
 package com.android.settings.applications;
 
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
+import android.content.Loader;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.os.UserManager;
@@ -30,22 +30,17 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.TimeUtils;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.SubMenu;
 import com.android.internal.app.IProcessStats;
-import com.android.internal.app.ProcessMap;
 import com.android.internal.app.ProcessStats;
 import com.android.settings.R;
 import com.android.settings.fuelgauge.Utils;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 
 public class ProcessStatsUi extends PreferenceFragment
@@ -69,6 +64,8 @@ public class ProcessStatsUi extends PreferenceFragment
 
     static final int MAX_ITEMS_TO_LIST = 60;
 
+    private static final int LOADER_STATS = 1;
+
     final static Comparator<ProcStatsEntry> sEntryCompare = new Comparator<ProcStatsEntry>() {
         @Override
         public int compare(ProcStatsEntry lhs, ProcStatsEntry rhs) {
@@ -85,15 +82,13 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     };
 
-    private static ProcessStats sStatsXfer;
-
     IProcessStats mProcessStats;
     UserManager mUm;
+    ProcStatsSnapshot mSnapshot;
     ProcessStats mStats;
     int mMemState;
 
     private long mDuration;
-    private long mLastDuration;
     private boolean mShowSystem;
     private boolean mUseUss;
     private int mStatsType;
@@ -131,10 +126,6 @@ public class ProcessStatsUi extends PreferenceFragment
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
-        }
-
         addPreferencesFromResource(R.xml.process_stats_summary);
         mProcessStats = IProcessStats.Stub.asInterface(
                 ServiceManager.getService(ProcessStats.SERVICE_NAME));
@@ -172,14 +163,6 @@ public class ProcessStatsUi extends PreferenceFragment
         outState.putInt("mem_region", mMemRegion);
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
-        }
-    }
-
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (!(preference instanceof ProcessStatsPreference)) {
@@ -279,7 +262,8 @@ public class ProcessStatsUi extends PreferenceFragment
         final int id = item.getItemId();
         switch (id) {
             case MENU_STATS_REFRESH:
-                mStats = null;
+                ProcStatsSnapshot.invalidate();
+                mSnapshot = null;
                 refreshStats();
                 return true;
             case MENU_SHOW_SYSTEM:
@@ -350,12 +334,41 @@ public class ProcessStatsUi extends PreferenceFragment
         return sb.toString();
     }
 
+    private final LoaderCallbacks<ProcStatsSnapshot> mStatsCallbacks =
+            new LoaderCallbacks<ProcStatsSnapshot>() {
+        @Override
+        public Loader<ProcStatsSnapshot> onCreateLoader(int id, Bundle args) {
+            return new ProcStatsLoader(getActivity(), mProcessStats, args);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<ProcStatsSnapshot> loader, ProcStatsSnapshot data) {
+            if (data != null) {
+                mSnapshot = data;
+                refreshStats();
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<ProcStatsSnapshot> loader) {
+        }
+    };
+
     private void refreshStats() {
         updateMenus();
 
-        if (mStats == null || mLastDuration != mDuration) {
-            load();
+        if (mSnapshot == null || mSnapshot.mDuration != mDuration || mSnapshot.isExpired()) {
+            final ProcStatsSnapshot cached = ProcStatsSnapshot.getCached(mDuration);
+            if (cached == null) {
+                // keep showing what we have until the new stats are read
+                getLoaderManager().restartLoader(LOADER_STATS,
+                        ProcStatsLoader.buildArgs(mDuration), mStatsCallbacks);
+                return;
+            }
+            mSnapshot = cached;
         }
+        mStats = mSnapshot.mStats;
+        mMemState = mSnapshot.mMemState;
 
         int[] stats;
         int statsLabel;
@@ -451,106 +464,8 @@ public class ProcessStatsUi extends PreferenceFragment
         ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
                 ProcessStats.ALL_SCREEN_ADJ, memStates, stats);
 
-        ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
-
-        /*
-        ArrayList<ProcessStats.ProcessState> rawProcs = mStats.collectProcessesLocked(
-                ProcessStats.ALL_SCREEN_ADJ, ProcessStats.ALL_MEM_ADJ,
-                ProcessStats.BACKGROUND_PROC_STATES, now, null);
-        for (int i=0, N=(rawProcs != null ? rawProcs.size() : 0); i<N; i++) {
-            procs.add(new ProcStatsEntry(rawProcs.get(i), totals));
-        }
-        */
-
-        if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
-
-        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
-        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
-            final SparseArray<ProcessStats.PackageState> pkgUids
-                    = mStats.mPackages.getMap().valueAt(ipkg);
-            for (int iu=0; iu<pkgUids.size(); iu++) {
-                final ProcessStats.PackageState st = pkgUids.valueAt(iu);
-                for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
-                    final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
-                    final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
-                            pkgProc.mUid);
-                    if (proc == null) {
-                        Log.w(TAG, "No process found for pkg " + st.mPackageName
-                                + "/" + st.mUid + " proc name " + pkgProc.mName);
-                        continue;
-                    }
-                    ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
-                    if (ent == null) {
-                        ent = new ProcStatsEntry(proc, st.mPackageName, totals, mUseUss,
-                                mStatsType == MENU_TYPE_BACKGROUND);
-                        if (ent.mDuration > 0) {
-                            if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
-                                    + proc.mUid + ": time=" + makeDuration(ent.mDuration) + " ("
-                                    + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
-                                    + " pss=" + ent.mAvgPss);
-                            entriesMap.put(proc.mName, proc.mUid, ent);
-                            entries.add(ent);
-                        }
-                    }  else {
-                        ent.addPackage(st.mPackageName);
-                    }
-                }
-            }
-        }
-
-        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
-
-        // Add in service info.
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
-                SparseArray<ProcessStats.PackageState> uids = mStats.mPackages.getMap().valueAt(ip);
-                for (int iu=0; iu<uids.size(); iu++) {
-                    ProcessStats.PackageState ps = uids.valueAt(iu);
-                    for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
-                        ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
-                        if (ss.mProcessName != null) {
-                            ProcStatsEntry ent = entriesMap.get(ss.mProcessName, uids.keyAt(iu));
-                            if (ent != null) {
-                                if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
-                                        + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
-                                        + ss.mProcessName);
-                                ent.addService(ss);
-                            } else {
-                                Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
-                                        + " for service " + ss.mName);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-
-        /*
-        SparseArray<ArrayMap<String, ProcStatsEntry>> processes
-                = new SparseArray<ArrayMap<String, ProcStatsEntry>>();
-        for (int ip=0, N=mStats.mProcesses.getMap().size(); ip<N; ip++) {
-            SparseArray<ProcessStats.ProcessState> uids = mStats.mProcesses.getMap().valueAt(ip);
-            for (int iu=0; iu<uids.size(); iu++) {
-                ProcessStats.ProcessState st = uids.valueAt(iu);
-                ProcStatsEntry ent = new ProcStatsEntry(st, totals, mUseUss,
-                        mStatsType == MENU_TYPE_BACKGROUND);
-                if (ent.mDuration > 0) {
-                    if (DEBUG) Log.d(TAG, "Adding proc " + st.mName + "/" + st.mUid + ": time="
-                            + makeDuration(ent.mDuration) + " ("
-                            + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)");
-                    procs.add(ent);
-                    ArrayMap<String, ProcStatsEntry> uidProcs = processes.get(ent.mUid);
-                    if (uidProcs == null) {
-                        uidProcs = new ArrayMap<String, ProcStatsEntry>();
-                        processes.put(ent.mUid, uidProcs);
-                    }
-                    uidProcs.put(ent.mName, ent);
-                }
-            }
-        }
-        */
-
-        Collections.sort(entries, sEntryCompare);
+        final ArrayList<ProcStatsEntry> entries = mSnapshot.getEntries(memStates, stats,
+                mUseUss, mStatsType == MENU_TYPE_BACKGROUND, sEntryCompare);
 
         long maxWeight = 1;
         for (int i=0, N=(entries != null ? entries.size() : 0); i<N; i++) {
@@ -573,9 +488,12 @@ public class ProcessStatsUi extends PreferenceFragment
                 continue;
             }
             ProcessStatsPreference pref = new ProcessStatsPreference(getActivity(), null, proc);
-            proc.evaluateTargetPackage(pm, mStats, totals, sEntryCompare, mUseUss,
-                    mStatsType == MENU_TYPE_BACKGROUND);
-            proc.retrieveUiData(pm);
+            if (proc.mUiLabel == null) {
+                // entries are kept with the snapshot; this only needs doing once
+                proc.evaluateTargetPackage(pm, mStats, totals, sEntryCompare, mUseUss,
+                        mStatsType == MENU_TYPE_BACKGROUND);
+                proc.retrieveUiData(pm);
+            }
             pref.setTitle(proc.mUiLabel);
             if (proc.mUiTargetApp != null) {
                 pref.setIcon(proc.mUiTargetApp.loadIcon(pm));
@@ -589,24 +507,4 @@ public class ProcessStatsUi extends PreferenceFragment
             }
         }
     }
-
-    private void load() {
-        try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
-            try {
-                is.close();
-            } catch (IOException e) {
-            }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
-            }
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
-        }
-    }
 }
@@ -234,12 +234,17 @@ public class RunningProcessesView extends FrameLayout
             return mShowBackground;
         }
 
-        void refreshItems() {
+        /**
+         * Returns whether the items shown or their order changed.
+         */
+        boolean refreshItems() {
             ArrayList<RunningState.MergedItem> newItems =
                 mShowBackground ? mState.getCurrentBackgroundItems()
                         : mState.getCurrentMergedItems();
             if (mOrigItems != newItems) {
                 mOrigItems = newItems;
+                final ArrayList<RunningState.MergedItem> oldItems
+                        = new ArrayList<RunningState.MergedItem>(mItems);
                 if (newItems == null) {
                     mItems.clear();
                 } else {
@@ -249,7 +254,16 @@ public class RunningProcessesView extends FrameLayout
                         Collections.sort(mItems, mState.mBackgroundComparator);
                     }
                 }
+                if (oldItems.size() != mItems.size()) {
+                    return true;
+                }
+                for (int i=0; i<mItems.size(); i++) {
+                    if (oldItems.get(i) != mItems.get(i)) {
+                        return true;
+                    }
+                }
             }
+            return false;
         }
         
         public boolean hasStableIds() {
@@ -317,8 +331,15 @@ public class RunningProcessesView extends FrameLayout
     void refreshUi(boolean dataChanged) {
         if (dataChanged) {
             ServiceListAdapter adapter = (ServiceListAdapter)(mListView.getAdapter());
-            adapter.refreshItems();
-            adapter.notifyDataSetChanged();
+            RunningState.ItemsDiff diff = mState.takeItemsDiff(adapter.getShowBackground());
+            boolean moved = adapter.refreshItems();
+            if (diff == null || diff.isStructural() || moved) {
+                adapter.notifyDataSetChanged();
+            } else {
+                // Same rows in the same order; just rebind the ones on
+                // screen whose content changed.
+                rebindItems(diff.mChanged);
+            }
         }
         
         if (mDataAvail != null) {
@@ -379,6 +400,25 @@ public class RunningProcessesView extends FrameLayout
         }
     }
     
+    void rebindItems(ArrayList<RunningState.MergedItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        ArrayList<ActiveItem> rebind = new ArrayList<ActiveItem>();
+        for (ActiveItem ai : mActiveItems.values()) {
+            for (int i=0; i<items.size(); i++) {
+                if (ai.mItem == items.get(i)) {
+                    rebind.add(ai);
+                    break;
+                }
+            }
+        }
+        for (int i=0; i<rebind.size(); i++) {
+            ActiveItem ai = rebind.get(i);
+            mActiveItems.put(ai.mRootView, ai.mHolder.bind(mState, ai.mItem, mBuilder));
+        }
+    }
+
     public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
         ListView l = (ListView)parent;
         RunningState.MergedItem mi = (RunningState.MergedItem)l.getAdapter().getItem(position);
@@ -605,6 +605,8 @@ public class RunningServiceDetails extends Fragment
     void ensureData() {
         if (!mHaveData) {
             mHaveData = true;
+            // Show exact sizes for the few processes on this screen.
+            mState.requestFullPss();
             mState.resume(this);
 
             // We want to go away if the service being shown no longer exists,
@@ -20,7 +20,6 @@ import com.android.settings.R;
 import com.android.settings.users.UserUtils;
 
 import android.app.ActivityManager;
-import android.app.ActivityManagerNative;
 import android.app.ActivityThread;
 import android.content.ComponentName;
 import android.content.Context;
@@ -38,8 +37,10 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
@@ -48,6 +49,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -69,6 +71,19 @@ public class RunningState {
 
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    // Polling backs off up to this delay while nothing changes.
+    static final long CONTENTS_UPDATE_MAX_DELAY = 16000;
+
+    // What update() found changed.
+    static final int UPDATE_UNCHANGED = 0;
+    static final int UPDATE_CONTENT = 1;
+    static final int UPDATE_STRUCTURE = 2;
+
+    // How often to sample the full PSS of processes that are shown in the
+    // current list, and of all other processes.  New processes are always
+    // sampled; in between, sizes are estimated from the RSS.
+    static final long PSS_UPDATE_DELAY = 10000;
+    static final long PSS_HIDDEN_UPDATE_DELAY = 60000;
 
     static final int MAX_SERVICES = 100;
 
@@ -82,6 +97,9 @@ public class RunningState {
 
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
 
+    // Only used from the background thread.
+    final ProcessMemorySampler mMemorySampler;
+
     // Processes that are hosting a service we are interested in, organized
     // by uid and name.  Note that this mapping does not change even across
     // service restarts, and during a restart there will still be a process
@@ -204,11 +222,16 @@ public class RunningState {
     boolean mResumed;
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
+    boolean mFullPssRequested;
 
     ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mUserBackgroundItems = new ArrayList<MergedItem>();
+
+    // Changes to the lists above not yet picked up by the UI.
+    ItemsDiff mMergedItemsDiff;
+    ItemsDiff mBackgroundItemsDiff;
     
     int mNumBackgroundProcesses;
     long mBackgroundProcessMemory;
@@ -221,6 +244,8 @@ public class RunningState {
 
     final HandlerThread mBackgroundThread;
     final class BackgroundHandler extends Handler {
+        long mUpdateDelay = CONTENTS_UPDATE_DELAY;
+
         public BackgroundHandler(Looper looper) {
             super(looper);
         }
@@ -237,12 +262,23 @@ public class RunningState {
                             return;
                         }
                     }
+                    final int changed = update(mApplicationContext, mAm);
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = changed != UPDATE_UNCHANGED ? 1 : 0;
                     mHandler.sendMessage(cmd);
+
+                    // Poll quickly while processes or services come and go
+                    // or right after being asked to, and back off while
+                    // they don't; sizes and labels changing don't count.
+                    // arg1 marks the polls we schedule ourselves.
+                    if (changed == UPDATE_STRUCTURE || msg.arg1 == 0) {
+                        mUpdateDelay = CONTENTS_UPDATE_DELAY;
+                    } else {
+                        mUpdateDelay = Math.min(mUpdateDelay * 2, CONTENTS_UPDATE_MAX_DELAY);
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
-                    msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    msg = obtainMessage(MSG_UPDATE_CONTENTS, 1, 0);
+                    sendMessageDelayed(msg, mUpdateDelay);
                     break;
             }
         }
@@ -292,6 +328,57 @@ public class RunningState {
         public void onRefreshUi(int what);
     }
 
+    /**
+     * Items added to, removed from and changed in one of the published item
+     * lists since the UI last looked.  Items are compared by identity; a
+     * changed item has a new label, description, icon or size, while times
+     * are refreshed on every tick anyway.
+     */
+    static class ItemsDiff {
+        // Past this many entries, e.g. while another screen is listening,
+        // the diff just says everything changed.
+        static final int MAX_ENTRIES = 64;
+
+        final ArrayList<MergedItem> mAdded = new ArrayList<MergedItem>();
+        final ArrayList<MergedItem> mRemoved = new ArrayList<MergedItem>();
+        final ArrayList<MergedItem> mChanged = new ArrayList<MergedItem>();
+        boolean mOverflow;
+
+        boolean isStructural() {
+            return mOverflow || !mAdded.isEmpty() || !mRemoved.isEmpty();
+        }
+
+        void add(ArrayList<MergedItem> oldItems, ArrayList<MergedItem> newItems, int curSeq) {
+            if (mOverflow) {
+                return;
+            }
+            if (oldItems != newItems) {
+                final IdentityHashMap<MergedItem, Boolean> old
+                        = new IdentityHashMap<MergedItem, Boolean>(oldItems.size());
+                for (int i=0; i<oldItems.size(); i++) {
+                    old.put(oldItems.get(i), Boolean.TRUE);
+                }
+                for (int i=0; i<newItems.size(); i++) {
+                    if (old.remove(newItems.get(i)) == null) {
+                        mAdded.add(newItems.get(i));
+                    }
+                }
+                mRemoved.addAll(old.keySet());
+            }
+            for (int i=0; i<newItems.size(); i++) {
+                if (newItems.get(i).mChangedSeq == curSeq) {
+                    mChanged.add(newItems.get(i));
+                }
+            }
+            if (mAdded.size() + mRemoved.size() + mChanged.size() > MAX_ENTRIES) {
+                mOverflow = true;
+                mAdded.clear();
+                mRemoved.clear();
+                mChanged.clear();
+            }
+        }
+    }
+
     static class UserState {
         UserInfo mInfo;
         String mLabel;
@@ -570,6 +657,9 @@ public class RunningState {
         
         private int mLastNumProcesses = -1, mLastNumServices = -1;
 
+        // Sequence of the last update that changed what the item shows.
+        int mChangedSeq;
+
         MergedItem(int userId) {
             super(false, userId);
         }
@@ -591,7 +681,14 @@ public class RunningState {
             }
         }
 
+        /**
+         * Returns whether the label, description or icon changed.
+         */
         boolean update(Context context, boolean background) {
+            final CharSequence oldLabel = mDisplayLabel;
+            final String oldDescription = mDescription;
+            final PackageItemInfo oldPackageInfo = mPackageInfo;
+            final boolean oldBackground = mBackground;
             mBackground = background;
 
             if (mUser != null) {
@@ -637,15 +734,17 @@ public class RunningState {
                 }
             }
 
-            return false;
+            return oldBackground != mBackground || oldPackageInfo != mPackageInfo
+                    || !TextUtils.equals(oldLabel, mDisplayLabel)
+                    || !TextUtils.equals(oldDescription, mDescription);
         }
         
-        boolean updateSize(Context context) {
+        boolean updateSize(Context context, int curSeq) {
             if (mUser != null) {
                 mSize = 0;
                 for (int i=0; i<mChildren.size(); i++) {
                     MergedItem child = mChildren.get(i);
-                    child.updateSize(context);
+                    child.updateSize(context, curSeq);
                     mSize += child.mSize;
                 }
             } else {
@@ -659,10 +758,10 @@ public class RunningState {
                     context, mSize);
             if (!sizeStr.equals(mSizeStr)){
                 mSizeStr = sizeStr;
-                // We update this on the second tick where we update just
-                // the text in the current items, so no need to say we
-                // changed here.
-                return false;
+                // Rebind the row through the diff; the list itself is the
+                // same, so this doesn't count as a change.
+                mChangedSeq = curSeq;
+                return true;
             }
             return false;
         }
@@ -745,6 +844,7 @@ public class RunningState {
         mBackgroundThread = new HandlerThread("RunningState:Background");
         mBackgroundThread.start();
         mBackgroundHandler = new BackgroundHandler(mBackgroundThread.getLooper());
+        mMemorySampler = ProcessMemorySampler.create();
     }
 
     void resume(OnRefreshUiListener listener) {
@@ -757,9 +857,9 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            // Update right away rather than after a backed off delay.
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
@@ -771,6 +871,16 @@ public class RunningState {
         }
     }
 
+    /**
+     * Makes the next update take the full PSS of every process rather than
+     * estimating it, e.g. for a screen showing the details of a few.
+     */
+    void requestFullPss() {
+        synchronized (mLock) {
+            mFullPssRequested = true;
+        }
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -854,12 +964,19 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    private void updateItem(Context context, MergedItem item, boolean background) {
+        if (item.update(context, background)) {
+            item.mChangedSeq = mSequence;
+        }
+    }
+
+    private int update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
         
         mSequence++;
         
         boolean changed = false;
+        boolean contentChanged = false;
 
         // Retrieve list of services, filtering out anything that definitely
         // won't be shown in the UI.
@@ -1116,6 +1233,7 @@ public class RunningState {
             }
         }
 
+        final ArrayList<MergedItem> oldMergedItems = mMergedItems;
         if (changed) {
             // First determine an order for the services.
             ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
@@ -1194,7 +1312,7 @@ public class RunningState {
                     }
                 }
                 
-                mergedItem.update(context, false);
+                updateItem(context, mergedItem, false);
                 if (mergedItem.mUserId != mMyUserId) {
                     addOtherUserItem(context, newMergedItems, mOtherUserMergedItems, mergedItem);
                 } else {
@@ -1212,7 +1330,7 @@ public class RunningState {
                         proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                     }
-                    proc.mMergedItem.update(context, false);
+                    updateItem(context, proc.mMergedItem, false);
                     if (proc.mMergedItem.mUserId != mMyUserId) {
                         addOtherUserItem(context, newMergedItems, mOtherUserMergedItems,
                                 proc.mMergedItem);
@@ -1229,7 +1347,7 @@ public class RunningState {
             for (int i=0; i<NU; i++) {
                 MergedItem user = mOtherUserMergedItems.valueAt(i);
                 if (user.mCurSeq == mSequence) {
-                    user.update(context, false);
+                    updateItem(context, user, false);
                 }
             }
 
@@ -1275,55 +1393,71 @@ public class RunningState {
         ArrayList<MergedItem> newBackgroundItems = null;
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
-        try {
-            final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
-            for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
-            }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
-            int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
-                ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
-                if (proc.mCurSeq == mSequence) {
-                    serviceProcessMemory += proc.mSize;
-                } else if (proc.mRunningProcessInfo.importance >=
-                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
-                    backgroundProcessMemory += proc.mSize;
-                    MergedItem mergedItem;
-                    if (newBackgroundItems != null) {
+
+        // Take the full PSS of the processes that are due and estimate the
+        // others from their RSS.
+        final boolean watchingBackground;
+        final boolean fullPss;
+        synchronized (mLock) {
+            watchingBackground = mWatchingBackgroundItems;
+            fullPss = mFullPssRequested;
+            mFullPssRequested = false;
+        }
+        final int numProc = mAllProcessItems.size();
+        final int[] pids = new int[numProc];
+        final String[] names = new String[numProc];
+        final long[] maxPssAge = new long[numProc];
+        for (int i=0; i<numProc; i++) {
+            ProcessItem proc = mAllProcessItems.get(i);
+            final boolean shown = (proc.mCurSeq == mSequence) != watchingBackground;
+            pids[i] = proc.mPid;
+            names[i] = proc.mProcessName;
+            maxPssAge[i] = fullPss ? 0 : shown ? PSS_UPDATE_DELAY : PSS_HIDDEN_UPDATE_DELAY;
+        }
+        final long[] pss = mMemorySampler.sample(pids, names,
+                maxPssAge, SystemClock.uptimeMillis());
+        for (int i=0; i<numProc; i++) {
+            mAllProcessItems.get(i).updateSize(context, pss[i], mSequence);
+        }
+
+        int bgIndex = 0;
+        for (int i=0; i<numProc; i++) {
+            ProcessItem proc = mAllProcessItems.get(i);
+            if (proc.mCurSeq == mSequence) {
+                serviceProcessMemory += proc.mSize;
+            } else if (proc.mRunningProcessInfo.importance >=
+                    ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
+                backgroundProcessMemory += proc.mSize;
+                MergedItem mergedItem;
+                if (newBackgroundItems != null) {
+                    mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
+                    proc.mMergedItem.mProcess = proc;
+                    diffUsers |= mergedItem.mUserId != mMyUserId;
+                    newBackgroundItems.add(mergedItem);
+                } else {
+                    if (bgIndex >= mBackgroundItems.size()
+                            || mBackgroundItems.get(bgIndex).mProcess != proc) {
+                        newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
+                        for (int bgi=0; bgi<bgIndex; bgi++) {
+                            mergedItem = mBackgroundItems.get(bgi);
+                            diffUsers |= mergedItem.mUserId != mMyUserId;
+                            newBackgroundItems.add(mergedItem);
+                        }
                         mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                         diffUsers |= mergedItem.mUserId != mMyUserId;
                         newBackgroundItems.add(mergedItem);
                     } else {
-                        if (bgIndex >= mBackgroundItems.size()
-                                || mBackgroundItems.get(bgIndex).mProcess != proc) {
-                            newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
-                            for (int bgi=0; bgi<bgIndex; bgi++) {
-                                mergedItem = mBackgroundItems.get(bgi);
-                                diffUsers |= mergedItem.mUserId != mMyUserId;
-                                newBackgroundItems.add(mergedItem);
-                            }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
-                            diffUsers |= mergedItem.mUserId != mMyUserId;
-                            newBackgroundItems.add(mergedItem);
-                        } else {
-                            mergedItem = mBackgroundItems.get(bgIndex);
-                        }
+                        mergedItem = mBackgroundItems.get(bgIndex);
                     }
-                    mergedItem.update(context, true);
-                    mergedItem.updateSize(context);
-                    bgIndex++;
-                } else if (proc.mRunningProcessInfo.importance <=
-                        ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
-                    foregroundProcessMemory += proc.mSize;
                 }
+                updateItem(context, mergedItem, true);
+                mergedItem.updateSize(context, mSequence);
+                bgIndex++;
+            } else if (proc.mRunningProcessInfo.importance <=
+                    ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE) {
+                foregroundProcessMemory += proc.mSize;
             }
-        } catch (RemoteException e) {
         }
         
         if (newBackgroundItems == null) {
@@ -1364,15 +1498,15 @@ public class RunningState {
                 for (int i=0; i<NU; i++) {
                     MergedItem user = mOtherUserBackgroundItems.valueAt(i);
                     if (user.mCurSeq == mSequence) {
-                        user.update(context, true);
-                        user.updateSize(context);
+                        updateItem(context, user, true);
+                        user.updateSize(context, mSequence);
                     }
                 }
             }
         }
 
         for (int i=0; i<mMergedItems.size(); i++) {
-            mMergedItems.get(i).updateSize(context);
+            mMergedItems.get(i).updateSize(context, mSequence);
         }
         
         synchronized (mLock) {
@@ -1382,6 +1516,28 @@ public class RunningState {
             mBackgroundProcessMemory = backgroundProcessMemory;
             mForegroundProcessMemory = foregroundProcessMemory;
             mServiceProcessMemory = serviceProcessMemory;
+            // Sizes are known now, so the diffs also cover the rows whose
+            // size changed.
+            if (mMergedItemsDiff == null) {
+                mMergedItemsDiff = new ItemsDiff();
+            }
+            mMergedItemsDiff.add(oldMergedItems, mMergedItems, mSequence);
+            if (!mMergedItemsDiff.mChanged.isEmpty()) {
+                contentChanged = true;
+            }
+            if (mWatchingBackgroundItems) {
+                if (mBackgroundItemsDiff == null) {
+                    mBackgroundItemsDiff = new ItemsDiff();
+                }
+                mBackgroundItemsDiff.add(mUserBackgroundItems, newUserBackgroundItems != null
+                        ? newUserBackgroundItems : mUserBackgroundItems, mSequence);
+                if (!mBackgroundItemsDiff.mChanged.isEmpty()) {
+                    contentChanged = true;
+                }
+            } else {
+                // Nobody is looking; showing the list rebinds it all anyway.
+                mBackgroundItemsDiff = null;
+            }
             if (newBackgroundItems != null) {
                 mBackgroundItems = newBackgroundItems;
                 mUserBackgroundItems = newUserBackgroundItems;
@@ -1395,7 +1551,10 @@ public class RunningState {
             }
         }
         
-        return changed;
+        if (changed) {
+            return UPDATE_STRUCTURE;
+        }
+        return contentChanged ? UPDATE_CONTENT : UPDATE_UNCHANGED;
     }
     
     ArrayList<BaseItem> getCurrentItems() {
@@ -1421,4 +1580,18 @@ public class RunningState {
             return mUserBackgroundItems;
         }
     }
+
+    /**
+     * Returns what changed in the foreground or background item list since
+     * the last call, or null if that isn't known.  Changes to the other list
+     * are dropped; switching lists rebinds everything anyway.
+     */
+    ItemsDiff takeItemsDiff(boolean background) {
+        synchronized (mLock) {
+            final ItemsDiff diff = background ? mBackgroundItemsDiff : mMergedItemsDiff;
+            mMergedItemsDiff = null;
+            mBackgroundItemsDiff = null;
+            return diff;
+        }
+    }
 }
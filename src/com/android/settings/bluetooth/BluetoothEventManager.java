@@ -26,11 +26,13 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Looper;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -52,6 +54,24 @@ final class BluetoothEventManager {
     private final Collection<BluetoothCallback> mCallbacks =
             new ArrayList<BluetoothCallback>();
 
+    /** How long device events are held to be handled together, about a frame. */
+    private static final long DEVICE_EVENT_BATCH_DELAY = 16;
+
+    /**
+     * Actions that only update the device list; during discovery these come
+     * in bursts, and handling a burst at once lets the UI re-sort it once.
+     */
+    private final Set<String> mBatchedActions = new HashSet<String>();
+    private final ArrayList<Intent> mPendingDeviceEvents = new ArrayList<Intent>();
+    private final android.os.Handler mBatchHandler =
+            new android.os.Handler(Looper.getMainLooper());
+    private final Runnable mFlushDeviceEvents = new Runnable() {
+        @Override
+        public void run() {
+            flushDeviceEvents();
+        }
+    };
+
     interface Handler {
         void onReceive(Context context, Intent intent, BluetoothDevice device);
     }
@@ -98,6 +118,12 @@ final class BluetoothEventManager {
         addHandler(BluetoothDevice.ACTION_CLASS_CHANGED, new ClassChangedHandler());
         addHandler(BluetoothDevice.ACTION_UUID, new UuidChangedHandler());
 
+        mBatchedActions.add(BluetoothDevice.ACTION_FOUND);
+        mBatchedActions.add(BluetoothDevice.ACTION_DISAPPEARED);
+        mBatchedActions.add(BluetoothDevice.ACTION_NAME_CHANGED);
+        mBatchedActions.add(BluetoothDevice.ACTION_CLASS_CHANGED);
+        mBatchedActions.add(BluetoothDevice.ACTION_UUID);
+
         // Dock event broadcasts
         addHandler(Intent.ACTION_DOCK_EVENT, new DockEventHandler());
 
@@ -141,17 +167,43 @@ final class BluetoothEventManager {
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            BluetoothDevice device = intent
-                    .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
-            Handler handler = mHandlerMap.get(action);
-            if (handler != null) {
-                handler.onReceive(context, intent, device);
+            if (mBatchedActions.contains(intent.getAction())) {
+                if (mPendingDeviceEvents.isEmpty()) {
+                    mBatchHandler.postDelayed(mFlushDeviceEvents, DEVICE_EVENT_BATCH_DELAY);
+                }
+                mPendingDeviceEvents.add(intent);
+                return;
             }
+
+            // Keep events in order
+            flushDeviceEvents();
+            dispatchEvent(context, intent);
         }
     };
 
+    private void flushDeviceEvents() {
+        if (mPendingDeviceEvents.isEmpty()) {
+            return;
+        }
+        mBatchHandler.removeCallbacks(mFlushDeviceEvents);
+        Intent[] intents = mPendingDeviceEvents.toArray(new Intent[mPendingDeviceEvents.size()]);
+        mPendingDeviceEvents.clear();
+        for (Intent intent : intents) {
+            dispatchEvent(mContext, intent);
+        }
+    }
+
+    private void dispatchEvent(Context context, Intent intent) {
+        String action = intent.getAction();
+        BluetoothDevice device = intent
+                .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+
+        Handler handler = mHandlerMap.get(action);
+        if (handler != null) {
+            handler.onReceive(context, intent, device);
+        }
+    }
+
     private class AdapterStateChangedHandler implements Handler {
         public void onReceive(Context context, Intent intent,
                 BluetoothDevice device) {
@@ -204,10 +256,7 @@ final class BluetoothEventManager {
                 // callback to UI to create Preference for new device
                 dispatchDeviceAdded(cachedDevice);
             }
-            cachedDevice.setRssi(rssi);
-            cachedDevice.setBtClass(btClass);
-            cachedDevice.setName(name);
-            cachedDevice.setVisible(true);
+            cachedDevice.onFound(rssi, btClass, name);
         }
     }
 
@@ -416,6 +416,34 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
             dispatchAttributesChanged();
         }
     }
+
+    /**
+     * Updates what discovery reported about this device and marks it
+     * visible, notifying callbacks at most once.
+     */
+    void onFound(short rssi, BluetoothClass btClass, String name) {
+        boolean changed = false;
+        if (mRssi != rssi) {
+            mRssi = rssi;
+            changed = true;
+        }
+        if (btClass != null && mBtClass != btClass) {
+            mBtClass = btClass;
+            changed = true;
+        }
+        if (!mName.equals(name)) {
+            mName = TextUtils.isEmpty(name) ? mDevice.getAddress() : name;
+            changed = true;
+        }
+        if (!mVisible) {
+            mVisible = true;
+            changed = true;
+        }
+        if (changed) {
+            dispatchAttributesChanged();
+        }
+    }
+
     void setAliasName(String name) {
         if (!mName.equals(name)) {
             if (!TextUtils.isEmpty(name)) {
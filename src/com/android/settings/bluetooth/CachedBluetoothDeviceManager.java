@@ -23,6 +23,7 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -35,6 +36,9 @@ final class CachedBluetoothDeviceManager {
     private Context mContext;
     private final List<CachedBluetoothDevice> mCachedDevices =
             new ArrayList<CachedBluetoothDevice>();
+    /** {@link #mCachedDevices} by address, for looking devices up on every event. */
+    private final HashMap<String, CachedBluetoothDevice> mCachedDevicesByAddress =
+            new HashMap<String, CachedBluetoothDevice>();
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
@@ -66,13 +70,11 @@ final class CachedBluetoothDeviceManager {
      * @return the cached device object for this device, or null if it has
      *   not been previously seen
      */
-    CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
+    synchronized CachedBluetoothDevice findDevice(BluetoothDevice device) {
+        if (device == null) {
+            return null;
         }
-        return null;
+        return mCachedDevicesByAddress.get(device.getAddress());
     }
 
     /**
@@ -81,15 +83,21 @@ final class CachedBluetoothDeviceManager {
      * @param device the address of the new Bluetooth device
      * @return the newly created CachedBluetoothDevice object
      */
-    CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
+    synchronized CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
             LocalBluetoothProfileManager profileManager,
             BluetoothDevice device) {
         CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
             profileManager, device);
         mCachedDevices.add(newDevice);
+        mCachedDevicesByAddress.put(device.getAddress(), newDevice);
         return newDevice;
     }
 
+    private void removeDevice(int index) {
+        CachedBluetoothDevice cachedDevice = mCachedDevices.remove(index);
+        mCachedDevicesByAddress.remove(cachedDevice.getDevice().getAddress());
+    }
+
     /**
      * Attempts to get the name of a remote device, otherwise returns the address.
      *
@@ -120,7 +128,7 @@ final class CachedBluetoothDeviceManager {
             } else if (!started &&
                 cachedDevice.getBondState() == BluetoothDevice.BOND_NONE &&
                 cachedDevice.isRemovable()) {
-                mCachedDevices.remove(cachedDevice);
+                removeDevice(i);
             }
         }
     }
@@ -144,7 +152,10 @@ final class CachedBluetoothDeviceManager {
         if (cachedDevice != null &&
             cachedDevice.getBondState() == BluetoothDevice.BOND_NONE &&
             cachedDevice.isRemovable()) {
-            mCachedDevices.remove(cachedDevice);
+            int index = mCachedDevices.indexOf(cachedDevice);
+            if (index >= 0) {
+                removeDevice(index);
+            }
         }
     }
 
@@ -156,7 +167,7 @@ final class CachedBluetoothDeviceManager {
                 CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
                 if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
                    cachedDevice.setVisible(false);
-                   mCachedDevices.remove(i);
+                   removeDevice(i);
                 } else {
                     // For bonded devices, we need to clear the connection status so that
                     // when BT is enabled next time, device connection status shall be retrieved
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.os.SystemProperties;
+import android.os.SystemService;
+import android.util.Log;
+
+import com.android.settings.Utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies a cpufreq setting that was written for cpu0 to the other cores.
+ *
+ * The cores are handled in parallel. An offline core is brought online for
+ * the write and put back offline afterwards. Its cpufreq files only appear
+ * once it is online, and ueventd fixes their permissions some time later;
+ * sysfs doesn't report either through inotify, so each core polls for its
+ * file with a growing delay, up to {@link #DEFAULT_MAX_WAIT}.
+ *
+ * The hotplug service is stopped meanwhile, so that it doesn't offline the
+ * cores again. Blocks; don't call it from the main thread.
+ */
+final class CpuFreqApplier {
+    private static final String TAG = "CpuFreqApplier";
+
+    static final String DEFAULT_CPU_DIR = "/sys/devices/system/cpu";
+
+    /** How long to wait for the files of a core that was just brought online. */
+    static final long DEFAULT_MAX_WAIT = 1000;
+    private static final long FIRST_WAIT = 5;
+
+    private static final String ONLINE = "1";
+    private static final String OFFLINE = "0";
+
+    static final int RESULT_OK = 0;
+    /** The core was offline and couldn't be brought online. */
+    static final int RESULT_OFFLINE = 1;
+    /** The file didn't appear, or didn't become writable, in time. */
+    static final int RESULT_TIMEOUT = 2;
+    static final int RESULT_WRITE_FAILED = 3;
+
+    /**
+     * The service that onlines and offlines cores on its own.
+     */
+    interface Hotplug {
+        /** Stops the service; returns whether it was running. */
+        boolean stop();
+        void start();
+    }
+
+    /** Controls mpdecision, which does the hotplugging on Qualcomm devices. */
+    static final Hotplug MPDECISION = new Hotplug() {
+        private static final String SERVICE = "mpdecision";
+
+        @Override
+        public boolean stop() {
+            if (SystemService.getState(SERVICE).equals(SystemService.State.RUNNING)) {
+                SystemService.stop(SERVICE);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void start() {
+            SystemService.start(SERVICE);
+        }
+    };
+
+    private final String mCpuDir;
+    private final int mCoreCount;
+    private final Hotplug mHotplug;
+    private final long mMaxWait;
+
+    CpuFreqApplier(int coreCount) {
+        this(DEFAULT_CPU_DIR, coreCount, MPDECISION, DEFAULT_MAX_WAIT);
+    }
+
+    CpuFreqApplier(String cpuDir, int coreCount, Hotplug hotplug, long maxWait) {
+        mCpuDir = cpuDir;
+        mCoreCount = coreCount;
+        mHotplug = hotplug;
+        mMaxWait = maxWait;
+    }
+
+    /**
+     * Writes the given value to the given cpu0 file of every other core.
+     * Returns one of the RESULT constants for each core; cpu0 is left
+     * alone and reported as {@link #RESULT_OK}.
+     */
+    int[] apply(final String cpu0File, final String value) {
+        final int[] results = new int[mCoreCount];
+        if (mCoreCount <= 1) {
+            return results;
+        }
+
+        final boolean hotplugStopped = mHotplug != null && mHotplug.stop();
+        final ExecutorService executor = Executors.newFixedThreadPool(mCoreCount - 1);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 1; i < mCoreCount; i++) {
+                final int core = i;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws InterruptedException {
+                        return applyToCore(core, getCoreFile(cpu0File, core), value);
+                    }
+                }));
+            }
+            for (int i = 1; i < mCoreCount; i++) {
+                try {
+                    results[i] = futures.get(i - 1).get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Failed applying " + value + " to cpu" + i, e);
+                    results[i] = RESULT_WRITE_FAILED;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted applying " + value + " to " + cpu0File);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            if (hotplugStopped) {
+                mHotplug.start();
+            }
+        }
+        return results;
+    }
+
+    static String getCoreFile(String cpu0File, int core) {
+        return cpu0File.replace("/cpu0/", "/cpu" + core + "/");
+    }
+
+    private int applyToCore(int core, String file, String value) throws InterruptedException {
+        final String onlineFile = mCpuDir + "/cpu" + core + "/online";
+        final String savedState = Utils.fileReadOneLine(onlineFile);
+
+        // Writing on to an already online cpu throws EINVAL
+        final boolean onlined = OFFLINE.equals(savedState);
+        if (onlined) {
+            if (!Utils.fileIsWritable(onlineFile)
+                    || !Utils.fileWriteOneLine(onlineFile, ONLINE)) {
+                Log.e(TAG, onlineFile + " not writable, did you set ownership in init."
+                        + SystemProperties.get("ro.hardware") + ".rc?");
+                return RESULT_OFFLINE;
+            }
+        }
+
+        try {
+            if (!waitForWritable(file)) {
+                Log.e(TAG, file + " not writable, did you set ueventd rules?");
+                return RESULT_TIMEOUT;
+            }
+            if (!Utils.fileWriteOneLine(file, value)) {
+                return RESULT_WRITE_FAILED;
+            }
+            return RESULT_OK;
+        } finally {
+            // Restore prior state of onlined cpu
+            if (onlined && ONLINE.equals(Utils.fileReadOneLine(onlineFile))) {
+                Utils.fileWriteOneLine(onlineFile, OFFLINE);
+            }
+        }
+    }
+
+    private boolean waitForWritable(String path) throws InterruptedException {
+        final File file = new File(path);
+        long waited = 0;
+        long wait = FIRST_WAIT;
+        while (!(file.exists() && file.canWrite())) {
+            if (waited >= mMaxWait) {
+                return false;
+            }
+            wait = Math.min(wait, mMaxWait - waited);
+            Thread.sleep(wait);
+            waited += wait;
+            wait *= 2;
+        }
+        return true;
+    }
+}
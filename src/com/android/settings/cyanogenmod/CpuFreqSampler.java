@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Samples the current frequency of every CPU core on a background thread,
+ * shared by all the screens that show it.
+ *
+ * Listeners are registered with the interval they want samples at; the
+ * sampler runs at the shortest one while any listener is registered. It
+ * keeps the last {@link #HISTORY_SIZE} samples of each core, and calls
+ * listeners back on the main thread only when a frequency changed.
+ */
+public final class CpuFreqSampler {
+    private static final String TAG = "CpuFreqSampler";
+    private static final boolean DEBUG = false;
+
+    private static final String CPU_DIR = "/sys/devices/system/cpu";
+    private static final String SCALING_CUR_FREQ = "/cpufreq/scaling_cur_freq";
+    private static final String CPUINFO_CUR_FREQ = "/cpufreq/cpuinfo_cur_freq";
+
+    /** Number of samples kept per core. */
+    public static final int HISTORY_SIZE = 120;
+
+    private static final int MSG_SAMPLE = 1;
+    private static final int MSG_CHANGED = 2;
+
+    public interface Listener {
+        /**
+         * Called on the main thread when the frequency of any core changed.
+         * Use {@link CpuFreqSampler#getFrequencies} and
+         * {@link CpuFreqSampler#getHistory} to read them.
+         */
+        void onFrequenciesChanged(CpuFreqSampler sampler);
+    }
+
+    private static CpuFreqSampler sInstance;
+
+    public static synchronized CpuFreqSampler getInstance() {
+        if (sInstance == null) {
+            sInstance = new CpuFreqSampler();
+        }
+        return sInstance;
+    }
+
+    private final int mCoreCount;
+    private final SysfsFile[] mFiles;
+
+    private final HashMap<Listener, Long> mListeners = new HashMap<Listener, Long>();
+    private long mInterval;
+
+    // Guarded by mHistory
+    private final int[][] mHistory;
+    private int mHistoryStart;
+    private int mHistoryCount;
+
+    private final Handler mMainHandler;
+    private Handler mSampleHandler;
+
+    private CpuFreqSampler() {
+        mCoreCount = countCores();
+        mFiles = new SysfsFile[mCoreCount];
+        final String curFreq = new File(CPU_DIR + "/cpu0" + SCALING_CUR_FREQ).exists()
+                ? SCALING_CUR_FREQ : CPUINFO_CUR_FREQ;
+        for (int i = 0; i < mCoreCount; i++) {
+            mFiles[i] = new SysfsFile(CPU_DIR + "/cpu" + i + curFreq);
+        }
+        mHistory = new int[mCoreCount][HISTORY_SIZE];
+
+        mMainHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_CHANGED) {
+                    final ArrayList<Listener> listeners;
+                    synchronized (mListeners) {
+                        listeners = new ArrayList<Listener>(mListeners.keySet());
+                    }
+                    for (Listener listener : listeners) {
+                        listener.onFrequenciesChanged(CpuFreqSampler.this);
+                    }
+                }
+            }
+        };
+    }
+
+    private static int countCores() {
+        int count = 0;
+        final String[] names = new File(CPU_DIR).list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("cpu[0-9]+")) {
+                    count = Math.max(count, Integer.parseInt(name.substring(3)) + 1);
+                }
+            }
+        }
+        return Math.max(count, 1);
+    }
+
+    /** Returns the number of cores, online or not. */
+    public int getCoreCount() {
+        return mCoreCount;
+    }
+
+    /**
+     * Starts calling the given listener back, sampling at least every
+     * {@code interval} milliseconds.  Registering a listener again changes
+     * its interval.
+     */
+    public void addListener(Listener listener, long interval) {
+        synchronized (mListeners) {
+            mListeners.put(listener, interval);
+            updateIntervalLocked();
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+            updateIntervalLocked();
+        }
+    }
+
+    private void updateIntervalLocked() {
+        long interval = Long.MAX_VALUE;
+        for (long listenerInterval : mListeners.values()) {
+            interval = Math.min(interval, listenerInterval);
+        }
+        if (mListeners.isEmpty()) {
+            interval = 0;
+        }
+        if (interval == mInterval) {
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Sampling every " + interval + "ms");
+
+        final boolean wasRunning = mInterval > 0;
+        mInterval = interval;
+        ensureSampleHandlerLocked();
+        mSampleHandler.removeMessages(MSG_SAMPLE);
+        if (interval > 0) {
+            // Sample right away when starting, so listeners don't wait a tick
+            mSampleHandler.sendEmptyMessageDelayed(MSG_SAMPLE, wasRunning ? interval : 0);
+        } else {
+            mSampleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeFiles();
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the given task on the sampling thread, so that other sysfs files
+     * can be read there rather than on the main thread.
+     */
+    public void post(Runnable task) {
+        synchronized (mListeners) {
+            ensureSampleHandlerLocked();
+            mSampleHandler.post(task);
+        }
+    }
+
+    private void ensureSampleHandlerLocked() {
+        if (mSampleHandler != null) {
+            return;
+        }
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mSampleHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_SAMPLE) {
+                    sample();
+                }
+            }
+        };
+    }
+
+    /**
+     * Copies the latest frequency of each core, in kHz, to the given array;
+     * offline cores are 0.  Returns false if nothing was sampled yet.
+     */
+    public boolean getFrequencies(int[] frequencies) {
+        synchronized (mHistory) {
+            if (mHistoryCount == 0) {
+                return false;
+            }
+            final int last = (mHistoryStart + mHistoryCount - 1) % HISTORY_SIZE;
+            for (int i = 0; i < mCoreCount && i < frequencies.length; i++) {
+                frequencies[i] = mHistory[i][last];
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies the samples of the given core to the given array, oldest
+     * first, and returns how many there were.
+     */
+    public int getHistory(int core, int[] frequencies) {
+        synchronized (mHistory) {
+            final int count = Math.min(mHistoryCount, frequencies.length);
+            final int skip = mHistoryCount - count;
+            for (int i = 0; i < count; i++) {
+                frequencies[i] = mHistory[core][(mHistoryStart + skip + i) % HISTORY_SIZE];
+            }
+            return count;
+        }
+    }
+
+    private void sample() {
+        boolean changed = false;
+        synchronized (mHistory) {
+            final int next;
+            if (mHistoryCount < HISTORY_SIZE) {
+                next = mHistoryCount++;
+            } else {
+                next = mHistoryStart;
+                mHistoryStart = (mHistoryStart + 1) % HISTORY_SIZE;
+            }
+            final int previous = (next + HISTORY_SIZE - 1) % HISTORY_SIZE;
+            for (int i = 0; i < mCoreCount; i++) {
+                final int frequency = readFrequency(i);
+                changed |= mHistoryCount == 1 || frequency != mHistory[i][previous];
+                mHistory[i][next] = frequency;
+            }
+        }
+        if (changed && !mMainHandler.hasMessages(MSG_CHANGED)) {
+            mMainHandler.sendEmptyMessage(MSG_CHANGED);
+        }
+
+        synchronized (mListeners) {
+            if (mInterval > 0 && !mSampleHandler.hasMessages(MSG_SAMPLE)) {
+                mSampleHandler.sendEmptyMessageDelayed(MSG_SAMPLE, mInterval);
+            }
+        }
+    }
+
+    private int readFrequency(int core) {
+        final SysfsFile file = mFiles[core];
+        file.update();
+        // Offline cores have no cpufreq directory
+        return file.isReadable() ? (int) file.getLongValue() : 0;
+    }
+
+    private void closeFiles() {
+        for (SysfsFile file : mFiles) {
+            file.close();
+        }
+    }
+}
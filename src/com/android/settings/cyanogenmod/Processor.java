@@ -16,15 +16,14 @@
 
 package com.android.settings.cyanogenmod;
 
+import android.app.Activity;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
-import android.os.SystemProperties;
-import android.os.SystemService;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
-import android.util.Log;
+import android.widget.Toast;
 
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
@@ -36,7 +35,7 @@ import java.lang.Runtime;
 // CPU Related Settings
 //
 public class Processor extends SettingsPreferenceFragment implements
-        Preference.OnPreferenceChangeListener {
+        Preference.OnPreferenceChangeListener, CpuFreqSampler.Listener {
 
     public static final String CPU_ONLINE = "/sys/devices/system/cpu/cpu0/online";
     public static final String FREQ_CUR_PREF = "pref_cpu_freq_cur";
@@ -57,6 +56,8 @@ public class Processor extends SettingsPreferenceFragment implements
 
     private static final String TAG = "CPUSettings";
 
+    private static final long CUR_FREQ_INTERVAL = 500;
+
     private String mGovernorFormat;
     private String mMinFrequencyFormat;
     private String mMaxFrequencyFormat;
@@ -66,35 +67,15 @@ public class Processor extends SettingsPreferenceFragment implements
     private ListPreference mMinFrequencyPref;
     private ListPreference mMaxFrequencyPref;
 
-    private class CurCPUThread extends Thread {
-        private boolean mInterrupt = false;
-
-        public void interrupt() {
-            mInterrupt = true;
-        }
-
-        @Override
-        public void run() {
-            try {
-                while (!mInterrupt) {
-                    sleep(500);
-                    final String curFreq = Utils.fileReadOneLine(FREQ_CUR_FILE);
-                    if (curFreq != null)
-                        mCurCPUHandler.sendMessage(mCurCPUHandler.obtainMessage(0, curFreq));
-                }
-            } catch (InterruptedException e) {
-            }
-        }
-    };
-
-    private CurCPUThread mCurCPUThread = new CurCPUThread();
+    private CpuFreqSampler mSampler;
+    private int[] mFrequencies;
 
-    private Handler mCurCPUHandler = new Handler() {
-        public void handleMessage(Message msg) {
-            mCurFrequencyPref.setSummary(toMHz((String) msg.obj));
-            updateCpufreqValues();
-        }
-    };
+    // Policy files, kept open and only applied when they change.  They are
+    // read on the sampler thread.
+    private final Handler mHandler = new Handler();
+    private SysfsFile mGovernorFile;
+    private SysfsFile mMinFrequencyFile;
+    private SysfsFile mMaxFrequencyFile;
 
     private void initFreqCapFiles()
     {
@@ -194,43 +175,120 @@ public class Processor extends SettingsPreferenceFragment implements
         } else {
             mCurFrequencyPref.setSummary(toMHz(temp));
 
-            mCurCPUThread.start();
+            mSampler = CpuFreqSampler.getInstance();
+            mFrequencies = new int[mSampler.getCoreCount()];
         }
+
+        mGovernorFile = new SysfsFile(GOV_FILE);
+        mMinFrequencyFile = new SysfsFile(FREQ_MIN_FILE);
+        mMaxFrequencyFile = new SysfsFile(FREQ_MAX_FILE);
     }
 
-    private void updateCpufreqValues() {
-        String temp;
+    /**
+     * Reads the policy files on the sampler thread, and shows the values
+     * that changed.  The value of {@code written}, the file just written to
+     * if any, is shown even if it didn't change, as the kernel may have
+     * rejected or clamped the value the preference now holds.
+     */
+    private void updateCpufreqValues(final SysfsFile written) {
+        CpuFreqSampler.getInstance().post(new Runnable() {
+            @Override
+            public void run() {
+                final String governor = readIfChanged(mGovernorFile, written);
+                final String min = readIfChanged(mMinFrequencyFile, written);
+                final String max = readIfChanged(mMaxFrequencyFile, written);
+                if (governor == null && min == null && max == null) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showCpufreqValues(governor, min, max);
+                    }
+                });
+            }
+        });
+    }
+
+    private static String readIfChanged(SysfsFile file, SysfsFile written) {
+        return file.update() || file == written ? file.getValue() : null;
+    }
 
-        if (Utils.fileExists(FREQ_MIN_FILE) && (temp = Utils.fileReadOneLine(FREQ_MIN_FILE)) != null) {
-            mMinFrequencyPref.setValue(temp);
-            mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat, toMHz(temp)));
+    private void showCpufreqValues(String governor, String min, String max) {
+        if (!isAdded()) {
+            return;
         }
 
-        if (Utils.fileExists(FREQ_MAX_FILE) && (temp = Utils.fileReadOneLine(FREQ_MAX_FILE)) != null) {
-            mMaxFrequencyPref.setValue(temp);
-            mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
+        if (min != null) {
+            mMinFrequencyPref.setValue(min);
+            mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat, toMHz(min)));
         }
 
-        if (Utils.fileExists(GOV_FILE) && (temp = Utils.fileReadOneLine(GOV_FILE)) != null) {
-            mGovernorPref.setSummary(String.format(mGovernorFormat, temp));
+        if (max != null) {
+            mMaxFrequencyPref.setValue(max);
+            mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat, toMHz(max)));
+        }
+
+        if (governor != null) {
+            mGovernorPref.setValue(governor);
+            mGovernorPref.setSummary(String.format(mGovernorFormat, governor));
+        }
+    }
+
+    @Override
+    public void onFrequenciesChanged(CpuFreqSampler sampler) {
+        if (!sampler.getFrequencies(mFrequencies)) {
+            return;
+        }
+
+        // Show the frequency of each online core
+        final StringBuilder summary = new StringBuilder();
+        for (int frequency : mFrequencies) {
+            if (frequency > 0) {
+                if (summary.length() > 0) {
+                    summary.append(", ");
+                }
+                summary.append(frequency / 1000).append(" MHz");
+            }
         }
+        if (summary.length() > 0) {
+            mCurFrequencyPref.setSummary(summary);
+        }
+
+        // The policy may have been changed along with the frequencies
+        updateCpufreqValues(null);
     }
 
     @Override
     public void onResume() {
         super.onResume();
         initFreqCapFiles();
-        updateCpufreqValues();
+        updateCpufreqValues(null);
+        if (mSampler != null) {
+            mSampler.addListener(this, CUR_FREQ_INTERVAL);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (mSampler != null) {
+            mSampler.removeListener(this);
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mCurCPUThread.interrupt();
-        try {
-            mCurCPUThread.join();
-        } catch (InterruptedException e) {
-        }
+        final SysfsFile[] files = { mGovernorFile, mMinFrequencyFile, mMaxFrequencyFile };
+        CpuFreqSampler.getInstance().post(new Runnable() {
+            @Override
+            public void run() {
+                for (SysfsFile file : files) {
+                    file.close();
+                }
+            }
+        });
     }
 
     public boolean onPreferenceChange(Preference preference, Object value) {
@@ -238,85 +296,25 @@ public class Processor extends SettingsPreferenceFragment implements
 
         final String newValue = (String) value;
         String fname = "";
+        SysfsFile file = null;
 
         if (newValue != null) {
             if (preference == mGovernorPref) {
                 fname = GOV_FILE;
+                file = mGovernorFile;
             } else if (preference == mMinFrequencyPref) {
                 fname = FREQ_MIN_FILE;
+                file = mMinFrequencyFile;
             } else if (preference == mMaxFrequencyPref) {
                 fname = FREQ_MAX_FILE;
+                file = mMaxFrequencyFile;
             }
 
             if (Utils.fileWriteOneLine(fname, newValue)) {
-                final String file = fname;
-                final int nrcpus = Runtime.getRuntime().availableProcessors();
-                if (nrcpus > 1) {
-                    new Thread() {
-                        public void run() {
-                            int count = 0;
-                            int maxcount = 5;
-                            String on = "1";
-                            String off = "0";
-                            String onfile = "";
-                            String cpufile = "";
-                            String savedstate = "";
-                            String state = "";
-                            String mpdec = "mpdecision";
-                            SystemService.State mpdecstate = SystemService.getState(mpdec);
-                            // Dumb down to a running mpdecision service
-                            if (mpdecstate.equals(SystemService.State.RUNNING)) {
-                                SystemService.stop(mpdec);
-                            }
-                            try {
-                                for (int i = 1; i < nrcpus; i++) {
-                                    onfile = CPU_ONLINE.replace("cpu0", "cpu" + i);
-                                    cpufile = file.replace("cpu0", "cpu" + i);
-                                    savedstate = Utils.fileReadOneLine(onfile);
-                                    // Writing on to already online cpu throws EINVAL exception
-                                    if (savedstate.equals(off)) {
-                                        if (Utils.fileIsWritable(onfile)) {
-                                            Utils.fileWriteOneLine(onfile, on);
-                                        } else {
-                                            String hw = SystemProperties.get("ro.hardware");
-                                            Log.e(TAG, onfile +
-                                            " not writable, did you set ownership in init." +
-                                            hw + ".rc?");
-                                        }
-                                    }
-                                    // Give ueventd a little time to set perms
-                                    while (count < maxcount) {
-                                        Thread.sleep(10);
-                                        if (Utils.fileExists(cpufile)) {
-                                            if (Utils.fileIsWritable(cpufile)) {
-                                                Utils.fileWriteOneLine(cpufile, newValue);
-                                                break;
-                                            } else {
-                                                Log.e(TAG, cpufile +
-                                                " not writable, did you set ueventd rules?");
-                                            }
-                                        }
-                                        count++;
-                                        if (count == maxcount) {
-                                            Log.e(TAG, "Failed setting new value to " + cpufile);
-                                        }
-                                    }
-                                    count = 0;
-                                    state = Utils.fileReadOneLine(onfile);
-                                    // Restore prior state of onlined cpu
-                                    if (state.equals(on) && !state.equals(savedstate)) {
-                                        Utils.fileWriteOneLine(onfile, off);
-                                    }
-                                }
-                            } catch (InterruptedException e) {
-                            }
-                            // Restart mpdec
-                            if (mpdecstate.equals(SystemService.State.RUNNING)) {
-                                SystemService.start(mpdec);
-                            }
-                        }
-                    }.start();
-                }
+                applyToOtherCores(fname, newValue);
+                // Shows what the kernel made of it, once the preference
+                // has taken the new value
+                updateCpufreqValues(file);
 
                 if (preference == mGovernorPref) {
                     mGovernorPref.setSummary(String.format(mGovernorFormat, newValue));
@@ -335,6 +333,38 @@ public class Processor extends SettingsPreferenceFragment implements
         return false;
     }
 
+    private void applyToOtherCores(final String file, final String value) {
+        final int nrcpus = mSampler != null ? mSampler.getCoreCount()
+                : Runtime.getRuntime().availableProcessors();
+        if (nrcpus <= 1) {
+            return;
+        }
+        new AsyncTask<Void, Void, int[]>() {
+            @Override
+            protected int[] doInBackground(Void... params) {
+                return new CpuFreqApplier(nrcpus).apply(file, value);
+            }
+
+            @Override
+            protected void onPostExecute(int[] results) {
+                final StringBuilder failed = new StringBuilder();
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] != CpuFreqApplier.RESULT_OK) {
+                        if (failed.length() > 0) {
+                            failed.append(", ");
+                        }
+                        failed.append(i);
+                    }
+                }
+                final Activity activity = getActivity();
+                if (failed.length() > 0 && activity != null) {
+                    Toast.makeText(activity, getString(R.string.cpu_apply_failed, failed),
+                            Toast.LENGTH_LONG).show();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
     private String toMHz(String mhzString) {
         return new StringBuilder().append(Integer.valueOf(mhzString) / 1000).append(" MHz")
                 .toString();
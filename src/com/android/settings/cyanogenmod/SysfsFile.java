@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A short sysfs attribute that is read over and over, such as a CPU
+ * frequency.  The file stays open between reads, which go through pread at
+ * offset 0 into a reused buffer, so reading a value that didn't change
+ * allocates nothing.
+ *
+ * If the file can't be opened or read (a core went offline and took its
+ * cpufreq directory with it), it is closed and opened again on the next
+ * {@link #update()}.
+ */
+final class SysfsFile {
+    private static final int MAX_LENGTH = 128;
+
+    private final String mPath;
+
+    private FileInputStream mStream;
+    private FileChannel mChannel;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(MAX_LENGTH);
+    private final byte[] mLast = new byte[MAX_LENGTH];
+    private int mLastLength = -1;
+
+    private String mValue;
+    private long mLongValue;
+
+    SysfsFile(String path) {
+        mPath = path;
+    }
+
+    String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Reads the file again.  Returns true if its contents changed since the
+     * last read, including when it became readable or unreadable.
+     */
+    boolean update() {
+        final int length = read();
+        if (length == mLastLength && (length < 0 || equalsLast(length))) {
+            return false;
+        }
+        if (length > 0) {
+            System.arraycopy(mBuffer.array(), 0, mLast, 0, length);
+        }
+        mLastLength = length;
+        mValue = null;
+        mLongValue = parseLong(mLast, length);
+        return true;
+    }
+
+    /** Returns whether the last {@link #update()} could read the file. */
+    boolean isReadable() {
+        return mLastLength >= 0;
+    }
+
+    /**
+     * Returns the first line read by the last {@link #update()}, or null if
+     * the file couldn't be read.
+     */
+    String getValue() {
+        if (mValue == null && mLastLength >= 0) {
+            int end = 0;
+            while (end < mLastLength && mLast[end] != '\n') {
+                end++;
+            }
+            mValue = new String(mLast, 0, end).trim();
+        }
+        return mValue;
+    }
+
+    /**
+     * Returns the number read by the last {@link #update()}, or 0 if the
+     * file couldn't be read or doesn't start with a number.
+     */
+    long getLongValue() {
+        return mLongValue;
+    }
+
+    void close() {
+        if (mStream != null) {
+            try {
+                mStream.close();
+            } catch (IOException e) {
+            }
+            mStream = null;
+            mChannel = null;
+        }
+    }
+
+    private int read() {
+        if (mChannel == null) {
+            try {
+                mStream = new FileInputStream(mPath);
+                mChannel = mStream.getChannel();
+            } catch (FileNotFoundException e) {
+                return -1;
+            }
+        }
+        mBuffer.clear();
+        try {
+            // sysfs regenerates the attribute when read from the start
+            final int length = mChannel.read(mBuffer, 0);
+            return length < 0 ? 0 : length;
+        } catch (IOException e) {
+            close();
+            return -1;
+        }
+    }
+
+    private boolean equalsLast(int length) {
+        final byte[] buffer = mBuffer.array();
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] != mLast[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLong(byte[] bytes, int length) {
+        long value = 0;
+        int i = 0;
+        while (i < length && (bytes[i] == ' ' || bytes[i] == '\t')) {
+            i++;
+        }
+        for (; i < length && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+            value = value * 10 + (bytes[i] - '0');
+        }
+        return value;
+    }
+}
@@ -21,8 +21,8 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageStatsObserver;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
 import android.content.pm.UserInfo;
@@ -50,6 +50,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -77,6 +82,25 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /** Number of directories sized at once. */
+    private static final int MAX_PARALLEL_DIRECTORIES = 4;
+
+    /** Sizes directories for all volumes, a few at a time. */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_DIRECTORIES, MAX_PARALLEL_DIRECTORIES, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "StorageMeasurement #" + mCount.getAndIncrement());
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
@@ -158,15 +182,23 @@ public class StorageMeasurement {
 
     private final MeasurementHandler mHandler;
 
+    /** Results of earlier measurements, to show right away and build on. */
+    private final StorageMeasurementCache mStore;
+
     private long mTotalSize;
     private long mAvailSize;
 
     List<FileInfo> mFileInfoForMisc;
 
+    /** Round of the latest measurement; earlier ones no longer report progress. */
+    private volatile int mRound;
+
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
         mIsInternal = volume == null;
         mIsPrimary = volume != null ? volume.isPrimary() : false;
+        mStore = new StorageMeasurementCache(context.getCacheDir(),
+                mIsInternal ? "internal" : volume.getPath().replace('/', '_'));
 
         // Start the thread that will measure the disk usage.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
@@ -192,10 +224,22 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_DISCONNECT);
     }
 
+    /**
+     * Discards the current results.  The next {@link #measure()} still shows
+     * the last results right away, then measures again what changed since.
+     */
     public void invalidate() {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Discards the current and last results, so that the next
+     * {@link #measure()} measures everything again.
+     */
+    public void invalidateAll() {
+        mHandler.obtainMessage(MeasurementHandler.MSG_INVALIDATE, 1, 0).sendToTarget();
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -219,17 +263,22 @@ public class StorageMeasurement {
         private final boolean mIsInternal;
         private final MeasurementDetails mDetails;
         private final int mCurrentUser;
-        private final Message mFinished;
+        private final Measurement mMeasurement;
+        private final StorageMeasurementCache mStore;
+        private final HashMap<String, Long> mUpdateTimes;
 
         private int mRemaining;
 
-        public StatsObserver(boolean isInternal, MeasurementDetails details, int currentUser,
-                Message finished, int remaining) {
+        public StatsObserver(boolean isInternal, Measurement measurement, int currentUser,
+                int remaining, StorageMeasurementCache store,
+                HashMap<String, Long> updateTimes) {
             mIsInternal = isInternal;
-            mDetails = details;
+            mDetails = measurement.mDetails;
             mCurrentUser = currentUser;
-            mFinished = finished;
+            mMeasurement = measurement;
             mRemaining = remaining;
+            mStore = store;
+            mUpdateTimes = updateTimes;
         }
 
         @Override
@@ -237,9 +286,13 @@ public class StorageMeasurement {
             synchronized (mDetails) {
                 if (succeeded) {
                     addStatsLocked(stats);
+                    final Long updateTime = mUpdateTimes.get(stats.packageName);
+                    if (updateTime != null) {
+                        mStore.putPackageStats(stats, updateTime);
+                    }
                 }
                 if (--mRemaining == 0) {
-                    mFinished.sendToTarget();
+                    mMeasurement.onAppsMeasuredLocked();
                 }
             }
         }
@@ -294,6 +347,17 @@ public class StorageMeasurement {
 
         private MeasurementDetails mCached;
 
+        /** Whether a round is in flight; it keeps the service bound until it completes. */
+        private boolean mMeasuring;
+
+        /** Requests that came in while a round was in flight, to act on once it completes. */
+        private boolean mRemeasure;
+        private boolean mDisconnect;
+
+        /** Whether the results of the round in flight were invalidated, or cleared. */
+        private boolean mInvalidated;
+        private boolean mCleared;
+
         private final WeakReference<Context> mContext;
 
         private final ServiceConnection mDefContainerConn = new ServiceConnection() {
@@ -327,6 +391,21 @@ public class StorageMeasurement {
                         break;
                     }
 
+                    // Show the last results while measuring again
+                    final MeasurementDetails last = mStore.getDetails(
+                            ActivityManager.getCurrentUser());
+                    if (last != null) {
+                        sendExactUpdate(last);
+                    }
+
+                    if (mMeasuring) {
+                        // Measure again once the round in flight completes,
+                        // if it has been invalidated by then
+                        mRemeasure = true;
+                        mDisconnect = false;
+                        break;
+                    }
+
                     final Context context = (mContext != null) ? mContext.get() : null;
                     if (context == null) {
                         return;
@@ -347,10 +426,19 @@ public class StorageMeasurement {
                 case MSG_CONNECTED: {
                     IMediaContainerService imcs = (IMediaContainerService) msg.obj;
                     measureApproximateStorage(imcs);
-                    measureExactStorage(imcs);
+                    if (!mMeasuring) {
+                        measureExactStorage(imcs);
+                    }
                     break;
                 }
                 case MSG_DISCONNECT: {
+                    if (mMeasuring) {
+                        // The round in flight still needs the service; its
+                        // directories would come out empty without it
+                        mDisconnect = true;
+                        mRemeasure = false;
+                        break;
+                    }
                     synchronized (mLock) {
                         if (mBound) {
                             final Context context = (mContext != null) ? mContext.get() : null;
@@ -365,12 +453,42 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_COMPLETED: {
-                    mCached = (MeasurementDetails) msg.obj;
-                    sendExactUpdate(mCached);
+                    if (msg.arg1 != mRound) {
+                        // A measurement that was superseded by a newer one
+                        break;
+                    }
+                    final MeasurementDetails details = (MeasurementDetails) msg.obj;
+                    mMeasuring = false;
+                    if (!mCleared) {
+                        mStore.finish(msg.arg1, msg.arg2, details);
+                    }
+                    if (!mInvalidated) {
+                        mCached = details;
+                    }
+                    mInvalidated = false;
+                    mCleared = false;
+                    sendExactUpdate(details);
+
+                    if (mDisconnect) {
+                        mDisconnect = false;
+                        sendEmptyMessage(MSG_DISCONNECT);
+                    } else if (mRemeasure) {
+                        mRemeasure = false;
+                        sendEmptyMessage(MSG_MEASURE);
+                    }
                     break;
                 }
                 case MSG_INVALIDATE: {
                     mCached = null;
+                    if (mMeasuring) {
+                        mInvalidated = true;
+                    }
+                    if (msg.arg1 != 0) {
+                        mStore.clear();
+                        if (mMeasuring) {
+                            mCleared = true;
+                        }
+                    }
                     break;
                 }
             }
@@ -396,17 +514,80 @@ public class StorageMeasurement {
                 return;
             }
 
-            final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
+            final int currentUser = ActivityManager.getCurrentUser();
+            final MeasurementDetails last = mStore.getDetails(currentUser);
+            final int round = mStore.begin(currentUser);
+            mRound = round;
+            mMeasuring = true;
+
+            final Measurement measurement = new Measurement(imcs, round, last);
+            measurement.start(context, currentUser,
+                    obtainMessage(MSG_COMPLETED, round, currentUser, measurement.mDetails));
+        }
+    }
+
+    /**
+     * One exact measurement.  Directories are sized concurrently on
+     * {@link #sExecutor} while the package manager sizes apps; each time a
+     * directory completes, the details measured so far are sent to the
+     * receiver, with the last results standing in for what is still being
+     * measured.
+     */
+    private class Measurement {
+        private final IMediaContainerService mImcs;
+        private final int mRound;
+        private final MeasurementDetails mLast;
+
+        /** Details being measured; also guards the state below. */
+        final MeasurementDetails mDetails = new MeasurementDetails();
+
+        private Message mFinished;
+
+        // Directories and apps being measured; one extra while starting
+        private int mPending = 1;
+        private int mMiscPending = 1;
+        private int mUsersPending = 1;
+        private boolean mAppsMeasured;
+        private final ArrayList<FileInfo> mMiscFiles = new ArrayList<FileInfo>();
+
+        Measurement(IMediaContainerService imcs, int round, MeasurementDetails last) {
+            mImcs = imcs;
+            mRound = round;
+            mLast = last != null ? last : new MeasurementDetails();
+        }
+
+        /**
+         * Sizes a directory on {@link #sExecutor}, then hands its size over
+         * with the lock held.
+         */
+        private abstract class DirectoryJob implements Runnable {
+            final File mPath;
+
+            DirectoryJob(File path) {
+                mPath = path;
+            }
 
-            details.totalSize = mTotalSize;
-            details.availSize = mAvailSize;
+            abstract void onMeasuredLocked(long size);
+
+            @Override
+            public void run() {
+                final long size = measureDirectory(mImcs, mPath);
+                synchronized (mDetails) {
+                    onMeasuredLocked(size);
+                    onDoneLocked();
+                }
+            }
+        }
+
+        void start(Context context, int currentUser, Message finished) {
+            mFinished = finished;
+            mDetails.totalSize = mTotalSize;
+            mDetails.availSize = mAvailSize;
 
             final UserManager userManager = (UserManager) context.getSystemService(
                     Context.USER_SERVICE);
             final List<UserInfo> users = userManager.getUsers();
 
-            final int currentUser = ActivityManager.getCurrentUser();
             final UserEnvironment currentEnv = new UserEnvironment(currentUser);
 
             // Measure media types for emulated storage, or for primary physical
@@ -414,96 +595,223 @@ public class StorageMeasurement {
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
             if (measureMedia) {
-                for (String type : sMeasureMediaTypes) {
-                    final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                for (final String type : sMeasureMediaTypes) {
+                    submit(new DirectoryJob(currentEnv.getExternalStoragePublicDirectory(type)) {
+                        @Override
+                        void onMeasuredLocked(long size) {
+                            mDetails.mediaSize.put(type, size);
+                        }
+                    });
                 }
             }
 
             // Measure misc files not counted under media
             if (measureMedia) {
-                final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
-                        : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                measureMisc(mIsInternal ? currentEnv.getExternalStorageDirectory()
+                        : mVolume.getPathFile());
+            }
+            synchronized (mDetails) {
+                onMiscMeasuredLocked();
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
-            for (UserInfo user : users) {
+            for (final UserInfo user : users) {
                 final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                synchronized (mDetails) {
+                    mUsersPending++;
+                }
+                submit(new DirectoryJob(userEnv.getExternalStorageDirectory()) {
+                    @Override
+                    void onMeasuredLocked(long size) {
+                        addValue(mDetails.usersSize, user.id, size);
+                        mUsersPending--;
+                    }
+                });
+            }
+            synchronized (mDetails) {
+                mUsersPending--;
             }
 
-            // Measure all apps for all users
+            // Measure all apps for all users, reusing the stats of packages
+            // that weren't updated since they were last measured
+            synchronized (mDetails) {
+                mPending++;
+            }
             final PackageManager pm = context.getPackageManager();
             if (mIsInternal || mIsPrimary) {
-                final List<ApplicationInfo> apps = pm.getInstalledApplications(
+                final List<PackageInfo> packages = pm.getInstalledPackages(
                         PackageManager.GET_UNINSTALLED_PACKAGES
                         | PackageManager.GET_DISABLED_COMPONENTS);
 
-                final int count = users.size() * apps.size();
-                final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
-
+                final HashMap<String, Long> updateTimes = Maps.newHashMap();
+                final ArrayList<PackageStats> known = new ArrayList<PackageStats>();
+                final ArrayList<PackageStats> unknown = new ArrayList<PackageStats>();
                 for (UserInfo user : users) {
-                    for (ApplicationInfo app : apps) {
-                        pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                    for (PackageInfo info : packages) {
+                        updateTimes.put(info.packageName, info.lastUpdateTime);
+                        final PackageStats stats = mStore.getPackageStats(info.packageName,
+                                user.id, info.lastUpdateTime);
+                        if (stats != null) {
+                            known.add(stats);
+                        } else {
+                            unknown.add(new PackageStats(info.packageName, user.id));
+                        }
+                    }
+                }
+
+                final StatsObserver observer = new StatsObserver(mIsInternal, this,
+                        currentUser, unknown.size(), mStore, updateTimes);
+                synchronized (mDetails) {
+                    for (PackageStats stats : known) {
+                        observer.addStatsLocked(stats);
                     }
+                    if (unknown.isEmpty()) {
+                        onAppsMeasuredLocked();
+                    }
+                }
+                if (LOGV) {
+                    Log.v(TAG, "Reusing " + known.size() + " package stats, measuring "
+                            + unknown.size());
+                }
+
+                for (PackageStats stats : unknown) {
+                    pm.getPackageSizeInfo(stats.packageName, stats.userHandle, observer);
                 }
 
             } else {
-                finished.sendToTarget();
+                synchronized (mDetails) {
+                    onAppsMeasuredLocked();
+                }
+            }
+
+            synchronized (mDetails) {
+                onDoneLocked();
             }
         }
-    }
 
-    private static long getDirectorySize(IMediaContainerService imcs, File path) {
-        try {
-            final long size = imcs.calculateDirectorySize(path.toString());
-            Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
-            return size;
-        } catch (Exception e) {
-            Log.w(TAG, "Could not read memory from default container service for " + path, e);
-            return 0;
+        private void measureMisc(File dir) {
+            final File[] files = dir.listFiles();
+            if (files == null) return;
+
+            // Get sizes of all top level nodes except the ones already computed
+            for (File file : files) {
+                final String path = file.getAbsolutePath();
+                final String name = file.getName();
+                if (sMeasureMediaTypes.contains(name)) {
+                    continue;
+                }
+
+                if (file.isFile()) {
+                    final long fileSize = file.length();
+                    synchronized (mDetails) {
+                        addMiscLocked(path, fileSize);
+                    }
+                } else if (file.isDirectory()) {
+                    synchronized (mDetails) {
+                        mMiscPending++;
+                    }
+                    submit(new DirectoryJob(file) {
+                        @Override
+                        void onMeasuredLocked(long size) {
+                            addMiscLocked(path, size);
+                            onMiscMeasuredLocked();
+                        }
+                    });
+                } else {
+                    // Non directory, non file: not listed
+                }
+            }
         }
-    }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
+        private void addMiscLocked(String path, long size) {
+            mMiscFiles.add(new FileInfo(path, size, mMiscFiles.size()));
+            mDetails.miscSize += size;
+        }
 
-        final File[] files = dir.listFiles();
-        if (files == null) return 0;
+        private void onMiscMeasuredLocked() {
+            if (--mMiscPending == 0) {
+                // sort the list of FileInfo objects collected above in descending order of
+                // their sizes
+                Collections.sort(mMiscFiles);
+                mFileInfoForMisc = mMiscFiles;
+            }
+        }
 
-        // Get sizes of all top level nodes except the ones already computed
-        long counter = 0;
-        long miscSize = 0;
+        void onAppsMeasuredLocked() {
+            mAppsMeasured = true;
+            onDoneLocked();
+        }
 
-        for (File file : files) {
-            final String path = file.getAbsolutePath();
-            final String name = file.getName();
-            if (sMeasureMediaTypes.contains(name)) {
-                continue;
+        private void submit(DirectoryJob job) {
+            synchronized (mDetails) {
+                mPending++;
             }
+            sExecutor.execute(job);
+        }
 
-            if (file.isFile()) {
-                final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
-            } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
-            } else {
-                // Non directory, non file: not listed
+        private void onDoneLocked() {
+            if (--mPending == 0) {
+                mFinished.sendToTarget();
+            } else if (mRound == StorageMeasurement.this.mRound) {
+                // Sent with the lock held, so that it can't overtake the results
+                sendExactUpdate(getProgressLocked());
             }
         }
 
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+        private MeasurementDetails getProgressLocked() {
+            final MeasurementDetails progress = new MeasurementDetails();
+            progress.totalSize = mDetails.totalSize;
+            progress.availSize = mDetails.availSize;
+            progress.mediaSize.putAll(mLast.mediaSize);
+            progress.mediaSize.putAll(mDetails.mediaSize);
+            progress.miscSize = mMiscPending == 0 ? mDetails.miscSize : mLast.miscSize;
+
+            final MeasurementDetails apps = mAppsMeasured ? mDetails : mLast;
+            progress.appsSize = apps.appsSize;
+            progress.cacheSize = apps.cacheSize;
+
+            // Internal app data counts towards users
+            final MeasurementDetails users = mAppsMeasured && mUsersPending == 0
+                    ? mDetails : mLast;
+            for (int i=0; i<users.usersSize.size(); i++) {
+                progress.usersSize.put(users.usersSize.keyAt(i), users.usersSize.valueAt(i));
+            }
+            return progress;
+        }
+    }
 
-        return miscSize;
+    /**
+     * Returns the size of the given directory, measuring it only if it
+     * changed since it was last measured.
+     */
+    private long measureDirectory(IMediaContainerService imcs, File path) {
+        final long signature = StorageMeasurementCache.getSignature(path);
+        long size = mStore.getDirectorySize(path.getPath(), signature);
+        if (size >= 0) {
+            return size;
+        }
+        size = getDirectorySize(imcs, path);
+        if (size < 0) {
+            return 0;
+        }
+        mStore.putDirectorySize(path.getPath(), signature, size);
+        return size;
+    }
+
+    /**
+     * Returns the size of the given directory, or -1 if it couldn't be
+     * measured.
+     */
+    private static long getDirectorySize(IMediaContainerService imcs, File path) {
+        try {
+            final long size = imcs.calculateDirectorySize(path.toString());
+            Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
+            return size;
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read memory from default container service for " + path, e);
+            return -1;
+        }
     }
 
     static class FileInfo implements Comparable<FileInfo> {
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.pm.PackageStats;
+import android.text.format.DateUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.settings.deviceinfo.StorageMeasurement.MeasurementDetails;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Results of the last {@link StorageMeasurement} of one volume, kept on disk
+ * along with what they were measured from, so that the Storage screen can
+ * show them right away and measure again only what changed.
+ *
+ * A directory is measured again when its modification time or the ones of
+ * its direct subdirectories changed, and a package when it was updated.
+ * Changes deeper down a tree and data that apps write don't show in either,
+ * so entries are also measured again once they are {@link #MAX_AGE} old.
+ */
+class StorageMeasurementCache {
+    static final String TAG = "StorageMeasurementCache";
+    static final boolean DEBUG = false;
+
+    private static final int MAGIC = 0x53544f52; // "STOR"
+    private static final int VERSION = 1;
+
+    /** Entries older than this are measured again even if nothing seems to have changed. */
+    static final long MAX_AGE = 6 * DateUtils.HOUR_IN_MILLIS;
+
+    private static class DirEntry {
+        long signature;
+        long size;
+        long time;
+    }
+
+    private static class PackageEntry {
+        long lastUpdateTime;
+        long time;
+        PackageStats stats;
+    }
+
+    private final AtomicFile mFile;
+
+    private boolean mLoaded;
+    private int mUserId;
+    private MeasurementDetails mDetails;
+    private HashMap<String, DirEntry> mDirs = new HashMap<String, DirEntry>();
+    private HashMap<String, PackageEntry> mPackages = new HashMap<String, PackageEntry>();
+
+    // Entries of the measurement in progress; they replace the ones above once it completes
+    private int mRound;
+    private HashMap<String, DirEntry> mNewDirs = new HashMap<String, DirEntry>();
+    private HashMap<String, PackageEntry> mNewPackages = new HashMap<String, PackageEntry>();
+
+    StorageMeasurementCache(File dir, String volumeId) {
+        mFile = new AtomicFile(new File(dir, "storage_" + volumeId + ".cache"));
+    }
+
+    /**
+     * Returns a value that changes when entries are added to or removed from
+     * the given directory or any of its direct subdirectories.
+     */
+    static long getSignature(File dir) {
+        long signature = dir.lastModified();
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return signature;
+        }
+        signature = signature * 31 + children.length;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                signature += child.lastModified();
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Returns the details of the last completed measurement for the given
+     * user, reading them from disk the first time, or null.
+     */
+    synchronized MeasurementDetails getDetails(int userId) {
+        if (!mLoaded) {
+            mLoaded = true;
+            load();
+        }
+        return mDetails != null && mUserId == userId ? mDetails : null;
+    }
+
+    /**
+     * Forgets everything, so that the next measurement measures it all.
+     */
+    synchronized void clear() {
+        mLoaded = true;
+        mDetails = null;
+        mDirs.clear();
+        mPackages.clear();
+        mFile.delete();
+    }
+
+    /**
+     * Starts a measurement for the given user.  Returns its round, to pass
+     * to {@link #finish}.
+     */
+    synchronized int begin(int userId) {
+        if (!mLoaded) {
+            mLoaded = true;
+            load();
+        }
+        if (userId != mUserId) {
+            // Emulated storage and app data are per user
+            mDirs.clear();
+            mPackages.clear();
+        }
+        mNewDirs = new HashMap<String, DirEntry>();
+        mNewPackages = new HashMap<String, PackageEntry>();
+        return ++mRound;
+    }
+
+    /**
+     * Returns the size of the given directory if it was measured with the
+     * same signature and isn't too old, or -1 if it needs measuring.
+     */
+    synchronized long getDirectorySize(String path, long signature) {
+        final DirEntry entry = mDirs.get(path);
+        if (entry == null || entry.signature != signature || isStale(entry.time)) {
+            return -1;
+        }
+        mNewDirs.put(path, entry);
+        return entry.size;
+    }
+
+    synchronized void putDirectorySize(String path, long signature, long size) {
+        final DirEntry entry = new DirEntry();
+        entry.signature = signature;
+        entry.size = size;
+        entry.time = System.currentTimeMillis();
+        mNewDirs.put(path, entry);
+    }
+
+    /**
+     * Returns the stats of the given package if they were measured since it
+     * was last updated and aren't too old, or null if it needs measuring.
+     */
+    synchronized PackageStats getPackageStats(String packageName, int userId,
+            long lastUpdateTime) {
+        final String key = packageKey(packageName, userId);
+        final PackageEntry entry = mPackages.get(key);
+        if (entry == null || entry.lastUpdateTime != lastUpdateTime || isStale(entry.time)) {
+            return null;
+        }
+        mNewPackages.put(key, entry);
+        return entry.stats;
+    }
+
+    synchronized void putPackageStats(PackageStats stats, long lastUpdateTime) {
+        final PackageEntry entry = new PackageEntry();
+        entry.lastUpdateTime = lastUpdateTime;
+        entry.time = System.currentTimeMillis();
+        entry.stats = new PackageStats(stats);
+        mNewPackages.put(packageKey(stats.packageName, stats.userHandle), entry);
+    }
+
+    /**
+     * Completes the measurement of the given round and writes it out.
+     * Entries that weren't looked at during the round are dropped.
+     */
+    synchronized void finish(int round, int userId, MeasurementDetails details) {
+        if (round != mRound) {
+            // Superseded by a later measurement
+            return;
+        }
+        mUserId = userId;
+        mDetails = details;
+        mDirs = mNewDirs;
+        mPackages = mNewPackages;
+        save();
+    }
+
+    private static boolean isStale(long time) {
+        final long age = System.currentTimeMillis() - time;
+        return age < 0 || age > MAX_AGE;
+    }
+
+    private static String packageKey(String packageName, int userId) {
+        return userId + ":" + packageName;
+    }
+
+    private void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Discarding cache with unknown format");
+                return;
+            }
+            final int userId = in.readInt();
+
+            final MeasurementDetails details = new MeasurementDetails();
+            details.totalSize = in.readLong();
+            details.availSize = in.readLong();
+            details.appsSize = in.readLong();
+            details.cacheSize = in.readLong();
+            details.miscSize = in.readLong();
+            int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                details.mediaSize.put(in.readUTF(), in.readLong());
+            }
+            count = in.readInt();
+            for (int i=0; i<count; i++) {
+                details.usersSize.put(in.readInt(), in.readLong());
+            }
+
+            final HashMap<String, DirEntry> dirs = new HashMap<String, DirEntry>();
+            count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String path = in.readUTF();
+                final DirEntry entry = new DirEntry();
+                entry.signature = in.readLong();
+                entry.size = in.readLong();
+                entry.time = in.readLong();
+                dirs.put(path, entry);
+            }
+
+            final HashMap<String, PackageEntry> packages = new HashMap<String, PackageEntry>();
+            count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final PackageStats stats = new PackageStats(in.readUTF(), in.readInt());
+                stats.codeSize = in.readLong();
+                stats.dataSize = in.readLong();
+                stats.cacheSize = in.readLong();
+                stats.externalCodeSize = in.readLong();
+                stats.externalDataSize = in.readLong();
+                stats.externalCacheSize = in.readLong();
+                stats.externalMediaSize = in.readLong();
+                stats.externalObbSize = in.readLong();
+                final PackageEntry entry = new PackageEntry();
+                entry.lastUpdateTime = in.readLong();
+                entry.time = in.readLong();
+                entry.stats = stats;
+                packages.put(packageKey(stats.packageName, stats.userHandle), entry);
+            }
+
+            mUserId = userId;
+            mDetails = details;
+            mDirs = dirs;
+            mPackages = packages;
+            if (DEBUG) Log.i(TAG, "Loaded " + dirs.size() + " directories and "
+                    + packages.size() + " packages");
+        } catch (FileNotFoundException e) {
+            // Nothing measured yet
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated cache", e);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cache", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void save() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mUserId);
+
+            final MeasurementDetails details = mDetails;
+            out.writeLong(details.totalSize);
+            out.writeLong(details.availSize);
+            out.writeLong(details.appsSize);
+            out.writeLong(details.cacheSize);
+            out.writeLong(details.miscSize);
+            out.writeInt(details.mediaSize.size());
+            for (Map.Entry<String, Long> entry : details.mediaSize.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(details.usersSize.size());
+            for (int i=0; i<details.usersSize.size(); i++) {
+                out.writeInt(details.usersSize.keyAt(i));
+                out.writeLong(details.usersSize.valueAt(i));
+            }
+
+            out.writeInt(mDirs.size());
+            for (Map.Entry<String, DirEntry> entry : mDirs.entrySet()) {
+                final DirEntry dir = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(dir.signature);
+                out.writeLong(dir.size);
+                out.writeLong(dir.time);
+            }
+
+            out.writeInt(mPackages.size());
+            for (PackageEntry entry : mPackages.values()) {
+                final PackageStats stats = entry.stats;
+                out.writeUTF(stats.packageName);
+                out.writeInt(stats.userHandle);
+                out.writeLong(stats.codeSize);
+                out.writeLong(stats.dataSize);
+                out.writeLong(stats.cacheSize);
+                out.writeLong(stats.externalCodeSize);
+                out.writeLong(stats.externalDataSize);
+                out.writeLong(stats.externalCacheSize);
+                out.writeLong(stats.externalMediaSize);
+                out.writeLong(stats.externalObbSize);
+                out.writeLong(entry.lastUpdateTime);
+                out.writeLong(entry.time);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Saved " + mDirs.size() + " directories and "
+                    + mPackages.size() + " packages");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write cache", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
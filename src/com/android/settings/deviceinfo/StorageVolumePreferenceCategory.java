@@ -425,6 +425,15 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory
         mMeasure.measure();
     }
 
+    /**
+     * Measures everything again, rather than only what seems to have changed
+     * since the last measurement.
+     */
+    private void measureAll() {
+        mMeasure.invalidateAll();
+        mMeasure.measure();
+    }
+
     public void onResume() {
         mMeasure.setReceiver(mReceiver);
         measure();
@@ -432,7 +441,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory
 
     public void onStorageStateChanged() {
         init();
-        measure();
+        measureAll();
     }
 
     public void onUsbStateChanged(boolean isUsbConnected, String usbFunction) {
@@ -446,7 +455,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory
     }
 
     public void onCacheCleared() {
-        measure();
+        measureAll();
     }
 
     public void onPause() {
@@ -560,7 +569,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory
     @Override
     public void onScanCompleted(String path, final Uri uri) {
         if (uri != null) {
-            measure();
+            measureAll();
         }
         ((Activity)getContext()).runOnUiThread(new Runnable() {
             @Override
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * The history of a {@link BatteryStats}, decoded once into primitive arrays
+ * so that {@link BatteryHistoryChart} can lay it out at any size without
+ * iterating the history stream again.
+ *
+ * Only update records and the records that break the history (boots,
+ * resets) are kept; the history ends at the last update.
+ */
+class BatteryHistory {
+    /** Total time on battery since charged, in microseconds. */
+    long statsPeriod;
+
+    /** Time of the first and last update. */
+    long start;
+    long end;
+    /** Time of the last record of the stream, of any kind. */
+    long lastRecordTime;
+    /** All the state flags seen in the history. */
+    int aggrStates;
+
+    int size;
+    long[] times = new long[64];
+    byte[] levels = new byte[64];
+    byte[] statuses = new byte[64];
+    int[] states = new int[64];
+    /** Whether each record breaks the history rather than updating it. */
+    boolean[] breaks = new boolean[64];
+
+    private BatteryHistory() {
+    }
+
+    /**
+     * Walks the history of the given stats.  Iterating the history moves the
+     * stats' history buffer; call this before handing them to another thread.
+     */
+    static BatteryHistory decode(BatteryStats stats) {
+        if (stats == null) {
+            return null;
+        }
+        final BatteryHistory history = new BatteryHistory();
+        history.statsPeriod = stats.computeBatteryRealtime(
+                SystemClock.elapsedRealtime() * 1000, BatteryStats.STATS_SINCE_CHARGED);
+
+        int lastInteresting = 0;
+        boolean first = true;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                if (rec.cmd == HistoryItem.CMD_UPDATE) {
+                    if (first) {
+                        first = false;
+                        history.start = rec.time;
+                    }
+                    history.add(rec, false);
+                    lastInteresting = history.size;
+                    history.end = rec.time;
+                    history.aggrStates |= rec.states;
+                } else if (rec.cmd != HistoryItem.CMD_OVERFLOW) {
+                    history.add(rec, true);
+                }
+                history.lastRecordTime = rec.time;
+            }
+        }
+        history.size = lastInteresting;
+        return history;
+    }
+
+    private void add(HistoryItem rec, boolean isBreak) {
+        if (size == times.length) {
+            final int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+            statuses = Arrays.copyOf(statuses, capacity);
+            states = Arrays.copyOf(states, capacity);
+            breaks = Arrays.copyOf(breaks, capacity);
+        }
+        times[size] = rec.time;
+        levels[size] = rec.batteryLevel;
+        statuses[size] = rec.batteryStatus;
+        states[size] = rec.states;
+        breaks[size] = isBreak;
+        size++;
+    }
+}
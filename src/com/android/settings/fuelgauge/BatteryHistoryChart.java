@@ -28,7 +28,6 @@ import android.graphics.Path;
 import android.graphics.Typeface;
 import android.os.BatteryManager;
 import android.os.BatteryStats;
-import android.os.SystemClock;
 import android.os.BatteryStats.HistoryItem;
 import android.telephony.ServiceState;
 import android.text.TextPaint;
@@ -141,8 +140,8 @@ public class BatteryHistoryChart extends View {
     
     int mFontSize;
     
-    BatteryStats mStats;
-    BatteryStats mDockStats;
+    BatteryHistory mHistory;
+    BatteryHistory mDockHistory;
     long mStatsPeriod;
     String mDurationString;
     String mTotalDurationString;
@@ -175,8 +174,6 @@ public class BatteryHistoryChart extends View {
     static final int PHONE_SIGNAL_BIN_MASK = CHART_DATA_BIN_MASK;
     static final int PHONE_SIGNAL_BIN_SHIFT = CHART_DATA_BIN_SHIFT;
 
-    int mNumHist;
-    int mDockNumHist;
     long mHistStart;
     long mHistEnd;
     long mDockHistStart;
@@ -362,11 +359,19 @@ public class BatteryHistoryChart extends View {
     }
     
     void setStats(BatteryStats stats) {
-        mStats = stats;
-        
-        long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000,
-                BatteryStats.STATS_SINCE_CHARGED);
-        mStatsPeriod = uSecTime;
+        setHistory(BatteryHistory.decode(stats));
+    }
+
+    /**
+     * Shows the given decoded history.  Cheap when it is the one already shown.
+     */
+    void setHistory(BatteryHistory history) {
+        if (history == mHistory) {
+            return;
+        }
+        mHistory = history;
+
+        mStatsPeriod = history.statsPeriod;
         String durationString = Utils.formatElapsedTime(getContext(), mStatsPeriod / 1000, true);
         mDurationString = getContext().getString(R.string.battery_stats_on_battery,
                 durationString);
@@ -376,69 +381,46 @@ public class BatteryHistoryChart extends View {
         mWifiRunningLabel = getContext().getString(R.string.battery_stats_wifi_running_label);
         mWakeLockLabel = getContext().getString(R.string.battery_stats_wake_lock_label);
         mPhoneSignalLabel = getContext().getString(R.string.battery_stats_phone_signal_label);
-        
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
+
         mBatLow = 0;
         mBatHigh = 100;
-        int aggrStates = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (rec.cmd == HistoryItem.CMD_UPDATE) {
-                    if (first) {
-                        first = false;
-                        mHistStart = rec.time;
-                    }
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistEnd = rec.time;
-                    aggrStates |= rec.states;
-                }
-            }
-        }
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
+        mHistStart = history.start;
+        mHistEnd = history.end;
+        mHaveGps = (history.aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        mHaveWifi = (history.aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
         mTotalDurationString = Utils.formatElapsedTime(getContext(), mHistEnd - mHistStart, true);
+        onHistoryChanged();
     }
 
     void setDockStats(BatteryStats stats) {
         if (mDockBatterySupported) {
-            mDockStats = stats;
-
-            int pos = 0;
-            int lastInteresting = 0;
-            byte lastLevel = -1;
-            boolean first = true;
-            if (stats.startIteratingHistoryLocked()) {
-                final HistoryItem rec = new HistoryItem();
-                while (stats.getNextHistoryLocked(rec)) {
-                    pos++;
-                    if (rec.cmd == HistoryItem.CMD_UPDATE) {
-                        if (first) {
-                            first = false;
-                            mDockHistStart = rec.time;
-                        }
-                        if (rec.batteryLevel != lastLevel || pos == 1) {
-                            lastLevel = rec.batteryLevel;
-                        }
-                        lastInteresting = pos;
-                        mDockHistEnd = rec.time;
-                    }
-                }
-            }
-            mDockNumHist = lastInteresting;
+            setDockHistory(BatteryHistory.decode(stats));
+        }
+    }
+
+    void setDockHistory(BatteryHistory history) {
+        if (!mDockBatterySupported || history == mDockHistory) {
+            return;
+        }
+        mDockHistory = history;
+        if (history != null) {
+            mDockHistStart = history.start;
+            mDockHistEnd = history.end;
         }
+        onHistoryChanged();
+    }
+
+    private void onHistoryChanged() {
+        // Already laid out views don't get another onSizeChanged()
+        if (getWidth() > 0 && getHeight() > 0) {
+            buildPaths(getWidth(), getHeight());
+            invalidate();
+        }
+        requestLayout();
     }
 
     @Override
@@ -451,8 +433,7 @@ public class BatteryHistoryChart extends View {
     }
 
     void finishPaths(int w, int h, int levelh, int startX, int y, Path curLevelPath,
-            int lastX, boolean lastCharging, boolean lastScreenOn, boolean lastGpsOn,
-            boolean lastWifiRunning, boolean lastWakeLock, Path lastPath) {
+            int lastX, int lastStates, Path lastPath) {
         if (curLevelPath != null) {
             if (lastX >= 0 && lastX < w) {
                 if (lastPath != null) {
@@ -465,25 +446,83 @@ public class BatteryHistoryChart extends View {
             curLevelPath.close();
         }
         
-        if (lastCharging) {
+        if ((lastStates&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0) {
             mChargingPath.lineTo(w, h-mChargingOffset);
         }
-        if (lastScreenOn) {
+        if ((lastStates&HistoryItem.STATE_SCREEN_ON_FLAG) != 0) {
             mScreenOnPath.lineTo(w, h-mScreenOnOffset);
         }
-        if (lastGpsOn) {
+        if ((lastStates&HistoryItem.STATE_GPS_ON_FLAG) != 0) {
             mGpsOnPath.lineTo(w, h-mGpsOnOffset);
         }
-        if (lastWifiRunning) {
+        if ((lastStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0) {
             mWifiRunningPath.lineTo(w, h-mWifiRunningOffset);
         }
-        if (lastWakeLock) {
+        if ((lastStates&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0) {
             mWakeLockPath.lineTo(w, h-mWakeLockOffset);
         }
         if (mHavePhoneSignal) {
             mPhoneSignalChart.finish(w);
         }
     }
+
+    /**
+     * Draws the changes from {@code lastStates} to {@code states} at column x.
+     */
+    void addStates(int x, int h, int lastStates, int states) {
+        final int changed = lastStates ^ states;
+        if ((changed&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0) {
+            if ((states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0) {
+                mChargingPath.moveTo(x, h-mChargingOffset);
+            } else {
+                mChargingPath.lineTo(x, h-mChargingOffset);
+            }
+        }
+        if ((changed&HistoryItem.STATE_SCREEN_ON_FLAG) != 0) {
+            if ((states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0) {
+                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
+            } else {
+                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
+            }
+        }
+        if ((changed&HistoryItem.STATE_GPS_ON_FLAG) != 0) {
+            if ((states&HistoryItem.STATE_GPS_ON_FLAG) != 0) {
+                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
+            } else {
+                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
+            }
+        }
+        if ((changed&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0) {
+            if ((states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0) {
+                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
+            } else {
+                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
+            }
+        }
+        if ((changed&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0) {
+            if ((states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0) {
+                mWakeLockPath.moveTo(x, h-mWakeLockOffset);
+            } else {
+                mWakeLockPath.lineTo(x, h-mWakeLockOffset);
+            }
+        }
+
+        if (mLargeMode && mHavePhoneSignal) {
+            int bin;
+            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
+                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                    == ServiceState.STATE_POWER_OFF) {
+                bin = 0;
+            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                bin = 1;
+            } else {
+                bin = (states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
+                        >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
+                bin += 2;
+            }
+            mPhoneSignalChart.addTick(x, bin);
+        }
+    }
     
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
@@ -531,6 +570,16 @@ public class BatteryHistoryChart extends View {
         mWifiRunningPaint.setStrokeWidth(mLineWidth);
         mWakeLockPaint.setStrokeWidth(mLineWidth);
 
+        buildPaths(w, h);
+    }
+
+    /**
+     * Lays the decoded history out over the given size.  Records are walked
+     * once, and each pixel column gets at most one point per path: the level
+     * where the column starts and the states where it ends.
+     */
+    void buildPaths(int w, int h) {
+        final int textHeight = mTextDescent - mTextAscent;
         if (mLargeMode) {
             int barOffset = textHeight + mLineWidth;
             mChargingOffset = mLineWidth;
@@ -570,10 +619,16 @@ public class BatteryHistoryChart extends View {
         mWakeLockPath.reset();
         mChargingPath.reset();
 
+        final BatteryHistory hist = mHistory;
+        if (hist == null) {
+            return;
+        }
+
         long timeStart = mHistStart;
         long timeChange = mHistEnd-mHistStart;
         long timeEnd = mHistEnd;
-        if (mDockBatterySupported) {
+        final BatteryHistory dockHist = mDockBatterySupported ? mDockHistory : null;
+        if (dockHist != null) {
             timeStart = Math.min(timeStart, mDockHistStart) ;
             timeChange = Math.max(timeChange, mDockHistEnd-mDockHistStart);
             timeEnd = Math.max(timeEnd, mDockHistEnd);
@@ -586,228 +641,155 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
         
         int x = 0, y = 0, startX = 0, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
-        boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
-        boolean lastWifiRunning = false, lastWakeLock = false;
-        int N = mNumHist;
-        if (mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            Path path = mBatCriticalPath;
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
-                    long time = (i == 0 && rec.time != timeStart) ? timeStart : rec.time;
-                    x = (int)(((time-timeStart)*w)/timeChange);
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            byte value = rec.batteryLevel;
-                            if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
-                            else if (value <= BATTERY_WARN) path = mBatWarnPath;
-                            else path = mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                path.moveTo(x, y);
-                                lastLinePath = path;
-                            } else {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-                    }
-
-                    final boolean charging =
-                        (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                    if (charging != lastCharging) {
-                        if (charging) {
-                            mChargingPath.moveTo(x, h-mChargingOffset);
-                        } else {
-                            mChargingPath.lineTo(x, h-mChargingOffset);
-                        }
-                        lastCharging = charging;
-                    }
-
-                    final boolean screenOn =
-                        (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                    if (screenOn != lastScreenOn) {
-                        if (screenOn) {
-                            mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                        } else {
-                            mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                        }
-                        lastScreenOn = screenOn;
-                    }
-
-                    final boolean gpsOn =
-                        (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                    if (gpsOn != lastGpsOn) {
-                        if (gpsOn) {
-                            mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                        } else {
-                            mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                        }
-                        lastGpsOn = gpsOn;
-                    }
-
-                    final boolean wifiRunning =
-                        (rec.states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
-                    if (wifiRunning != lastWifiRunning) {
-                        if (wifiRunning) {
-                            mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                        } else {
-                            mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                        }
-                        lastWifiRunning = wifiRunning;
-                    }
-
-                    final boolean wakeLock =
-                        (rec.states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
-                    if (wakeLock != lastWakeLock) {
-                        if (wakeLock) {
-                            mWakeLockPath.moveTo(x, h-mWakeLockOffset);
-                        } else {
-                            mWakeLockPath.lineTo(x, h-mWakeLockOffset);
-                        }
-                        lastWakeLock = wakeLock;
+        Path path = mBatCriticalPath;
+        // States are drawn once the column they fall in is complete.
+        int lastStates = 0, pendingStates = 0, pendingX = -1;
+        for (int i=0; i<hist.size; i++) {
+            if (hist.breaks[i]) {
+                if (curLevelPath != null) {
+                    if (pendingX >= 0) {
+                        addStates(pendingX, h, lastStates, pendingStates);
+                        lastStates = pendingStates;
+                        pendingX = -1;
                     }
+                    finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                            lastStates, lastLinePath);
+                    lastX = lastY = -1;
+                    curLevelPath = null;
+                    lastLinePath = null;
+                    lastStates = 0;
+                }
+                continue;
+            }
 
-                    if (mLargeMode && mHavePhoneSignal) {
-                        int bin;
-                        if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                == ServiceState.STATE_POWER_OFF) {
-                            bin = 0;
-                        } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                            bin = 1;
-                        } else {
-                            bin = (rec.states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
-                                    >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
-                            bin += 2;
+            final long time = (i == 0 && hist.times[i] != timeStart) ? timeStart : hist.times[i];
+            final byte level = hist.levels[i];
+            x = (int)(((time-timeStart)*w)/timeChange);
+            y = mLevelTop + levelh - ((level-batLow)*(levelh-1))/batChange;
+
+            if (lastX != x) {
+                // We have moved by at least a pixel.
+                if (lastY != y) {
+                    // Don't plot changes within a pixel.
+                    if (level <= BATTERY_CRITICAL) path = mBatCriticalPath;
+                    else if (level <= BATTERY_WARN) path = mBatWarnPath;
+                    else path = mBatGoodPath;
+
+                    if (path != lastLinePath) {
+                        if (lastLinePath != null) {
+                            lastLinePath.lineTo(x, y);
                         }
-                        mPhoneSignalChart.addTick(x, bin);
+                        path.moveTo(x, y);
+                        lastLinePath = path;
+                    } else {
+                        path.lineTo(x, y);
                     }
 
-                } else if (rec.cmd != BatteryStats.HistoryItem.CMD_OVERFLOW) {
-                    if (curLevelPath != null) {
-                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                lastWakeLock, lastLinePath);
-                        lastX = lastY = -1;
-                        curLevelPath = null;
-                        lastLinePath = null;
-                        lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
+                    if (curLevelPath == null) {
+                        curLevelPath = mBatLevelPath;
+                        curLevelPath.moveTo(x, y);
+                        startX = x;
+                    } else {
+                        curLevelPath.lineTo(x, y);
                     }
+                    lastX = x;
+                    lastY = y;
                 }
-
-                i++;
             }
 
-            // Just fill the line to the end of the graph adding the last known state
-            if (rec.time != timeEnd) {
-                x = (int)((timeEnd*w)/timeChange);
-                path.lineTo(x, lastY);
+            if (pendingX >= 0 && pendingX != x) {
+                addStates(pendingX, h, lastStates, pendingStates);
+                lastStates = pendingStates;
             }
+            pendingX = x;
+            pendingStates = hist.states[i];
+        }
+        if (pendingX >= 0) {
+            addStates(pendingX, h, lastStates, pendingStates);
+            lastStates = pendingStates;
+        }
+
+        // Just fill the line to the end of the graph adding the last known state
+        if (hist.size > 0 && hist.lastRecordTime != timeEnd) {
+            x = (int)((timeEnd*w)/timeChange);
+            path.lineTo(x, lastY);
         }
 
         finishPaths(w, h, levelh, startX, lastY, curLevelPath, lastX,
-                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                lastWakeLock, lastLinePath);
+                lastStates, lastLinePath);
 
         // Now draw the dock battery stats
         // We use the history start and end times from the normal battery
-        N = mDockNumHist;
-        x = 0; y = 0; startX = 0; lastX = -1; lastY = -1;
-        i = 0;
-        curLevelPath = null;
+        if (dockHist == null) {
+            return;
+        }
+        x = 0; y = 0; lastX = -1; lastY = -1;
         lastLinePath = null;
+        path = mDockBatCriticalPath;
         byte lastStatus = -1, lastLevel = -1;
-        if (mDockBatterySupported && mDockStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            Path path = mDockBatCriticalPath;
-            while (mDockStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
-                    long time = (i == 0 && rec.time != timeStart) ? timeStart : rec.time;
-                    byte level = rec.batteryLevel;
-                    boolean skipPath = false;
-                    if (lastLevel != -1 && lastStatus == BatteryManager.BATTERY_STATUS_UNKNOWN) {
-                        level = lastLevel;
-                        skipPath = true;
-                    }
+        for (int i=0; i<dockHist.size; i++) {
+            final byte status = dockHist.statuses[i];
+            if (!dockHist.breaks[i]) {
+                final long time = (i == 0 && dockHist.times[i] != timeStart)
+                        ? timeStart : dockHist.times[i];
+                byte level = dockHist.levels[i];
+                boolean skipPath = false;
+                if (lastLevel != -1 && lastStatus == BatteryManager.BATTERY_STATUS_UNKNOWN) {
+                    level = lastLevel;
+                    skipPath = true;
+                }
 
-                    x = (int)(((time-timeStart)*w)/timeChange);
-                    y = mLevelTop + levelh - ((level-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            byte value = level;
-                            if (value <= BATTERY_CRITICAL) path = mDockBatCriticalPath;
-                            else if (value <= BATTERY_WARN) path = mDockBatWarnPath;
-                            else path = mDockBatGoodPath;
-
-                            if (skipPath || rec.batteryStatus ==
-                                    BatteryManager.BATTERY_STATUS_UNKNOWN) {
-                                // Dock battery is not present or was not present
+                x = (int)(((time-timeStart)*w)/timeChange);
+                y = mLevelTop + levelh - ((level-batLow)*(levelh-1))/batChange;
+
+                if (lastX != x) {
+                    // We have moved by at least a pixel.
+                    if (lastY != y) {
+                        // Don't plot changes within a pixel.
+                        if (level <= BATTERY_CRITICAL) path = mDockBatCriticalPath;
+                        else if (level <= BATTERY_WARN) path = mDockBatWarnPath;
+                        else path = mDockBatGoodPath;
+
+                        if (skipPath || status == BatteryManager.BATTERY_STATUS_UNKNOWN) {
+                            // Dock battery is not present or was not present
+                            path.moveTo(x, y);
+                        } else {
+                            if (path != lastLinePath) {
+                                if (lastLinePath != null) {
+                                    lastLinePath.lineTo(x, y);
+                                }
                                 path.moveTo(x, y);
+                                lastLinePath = path;
                             } else {
-                                if (path != lastLinePath) {
-                                    if (lastLinePath != null) {
-                                        lastLinePath.lineTo(x, y);
-                                    }
-                                    path.moveTo(x, y);
-                                    lastLinePath = path;
-                                } else {
-                                    path.lineTo(x, y);
-                                }
+                                path.lineTo(x, y);
                             }
-
-                            lastX = x;
-                            lastY = y;
                         }
-                    }
 
-                } else if (rec.cmd != BatteryStats.HistoryItem.CMD_OVERFLOW) {
-                    if (curLevelPath != null) {
-                        lastX = lastY = -1;
-                        lastLinePath = null;
+                        lastX = x;
+                        lastY = y;
                     }
                 }
+            }
 
-                if (rec.batteryStatus != BatteryManager.BATTERY_STATUS_UNKNOWN) {
-                    lastLevel = rec.batteryLevel;
-                }
-                lastStatus = rec.batteryStatus;
-                i++;
+            if (status != BatteryManager.BATTERY_STATUS_UNKNOWN) {
+                lastLevel = dockHist.levels[i];
             }
+            lastStatus = status;
+        }
 
-            // Just fill the line to the end of the graph adding the last known state (only if
-            // the dock battery is present)
-            if (lastStatus != BatteryManager.BATTERY_STATUS_UNKNOWN && rec.time != timeEnd) {
-                byte value = rec.batteryLevel;
-                if (value <= BATTERY_CRITICAL) path = mDockBatCriticalPath;
-                else if (value <= BATTERY_WARN) path = mDockBatWarnPath;
-                else path = mDockBatGoodPath;
+        // Just fill the line to the end of the graph adding the last known state (only if
+        // the dock battery is present)
+        if (dockHist.size > 0 && lastStatus != BatteryManager.BATTERY_STATUS_UNKNOWN
+                && dockHist.lastRecordTime != timeEnd) {
+            byte value = dockHist.levels[dockHist.size-1];
+            if (value <= BATTERY_CRITICAL) path = mDockBatCriticalPath;
+            else if (value <= BATTERY_WARN) path = mDockBatWarnPath;
+            else path = mDockBatGoodPath;
 
-                x = (int)((timeEnd*w)/timeChange);
-                path.lineTo(x, lastY);
-            }
+            x = (int)((timeEnd*w)/timeChange);
+            path.lineTo(x, lastY);
         }
     }
 
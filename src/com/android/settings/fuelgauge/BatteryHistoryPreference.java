@@ -34,13 +34,16 @@ import com.android.settings.R;
 public class BatteryHistoryPreference extends Preference {
 
     private BatteryStats mStats;
-    private BatteryStats mDockStats;
+    private BatteryHistory mHistory;
+    private BatteryHistory mDockHistory;
 
-    public BatteryHistoryPreference(Context context, BatteryStats stats, BatteryStats dockStats) {
+    public BatteryHistoryPreference(Context context, BatteryStats stats,
+            BatteryHistory history, BatteryHistory dockHistory) {
         super(context);
         setLayoutResource(R.layout.preference_batteryhistory);
         mStats = stats;
-        mDockStats = dockStats;
+        mHistory = history;
+        mDockHistory = dockHistory;
     }
 
     BatteryStats getStats() {
@@ -53,7 +56,7 @@ public class BatteryHistoryPreference extends Preference {
 
         BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
-        chart.setDockStats(mDockStats);
+        chart.setHistory(mHistory);
+        chart.setDockHistory(mDockHistory);
     }
 }
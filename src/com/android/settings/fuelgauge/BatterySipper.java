@@ -16,6 +16,7 @@
 package com.android.settings.fuelgauge;
 
 import com.android.settings.R;
+import com.android.settings.applications.AppIconCache;
 import com.android.settings.fuelgauge.PowerUsageDetail.DrainType;
 
 import android.content.Context;
@@ -199,7 +200,7 @@ public class BatterySipper implements Comparable<BatterySipper> {
                 }
                 if (ai.icon != 0) {
                     defaultPackageName = mPackages[i];
-                    icon = ai.loadIcon(pm);
+                    icon = AppIconCache.getInstance(mContext).getIcon(ai);
                     break;
                 }
             } catch (NameNotFoundException e) {
@@ -221,7 +222,8 @@ public class BatterySipper implements Comparable<BatterySipper> {
                             name = nm.toString();
                             if (pi.applicationInfo.icon != 0) {
                                 defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
+                                icon = AppIconCache.getInstance(mContext)
+                                        .getIcon(pi.applicationInfo);
                             }
                             break;
                         }
@@ -32,6 +32,9 @@ import android.os.BatteryStats.Uid;
 import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
 import android.os.Parcel;
 import android.os.Process;
 import android.os.RemoteException;
@@ -65,6 +68,10 @@ import java.util.Map;
  *
  * The caller must initialize this class as soon as activity object is ready to use (for example, in
  * onAttach() for Fragment), call create() in onCreate() and call destroy() in onDestroy().
+ *
+ * Stats are loaded and the power usage computed on a background thread; see
+ * {@link #refreshStatsAsync}.  When a refresh completes the results become visible through the
+ * getters and {@link #MSG_STATS_REFRESHED} is sent to the caller's handler.
  */
 public class BatteryStatsHelper {
 
@@ -72,11 +79,19 @@ public class BatteryStatsHelper {
 
     private static final String TAG = BatteryStatsHelper.class.getSimpleName();
 
+    // Refreshes that aren't asked for by the user are spaced at least this far apart.
+    private static final long MIN_REFRESH_INTERVAL = 10 * 1000;
+
+    private static final int MSG_REFRESH = 1;
+    private static final int MSG_PUBLISH = 2;
+
     private static BatteryStatsImpl sStatsXfer;
     private IBatteryStats mBatteryInfo;
     private UserManager mUm;
     private BatteryStatsImpl mStats;
     private BatteryStatsImpl mDockStats;
+    private BatteryHistory mHistory;
+    private BatteryHistory mDockHistory;
     private PowerProfile mPowerProfile;
 
     private final List<BatterySipper> mUsageList = new ArrayList<BatterySipper>();
@@ -103,6 +118,44 @@ public class BatteryStatsHelper {
     private Activity mActivity;
     private Handler mHandler;
 
+    /**
+     * The results of one refresh.  Built on the background thread and only
+     * read on the main thread once published.
+     */
+    private static class Results {
+        BatteryStatsImpl stats;
+        BatteryStatsImpl dockStats;
+        BatteryHistory history;
+        BatteryHistory dockHistory;
+        List<BatterySipper> usageList;
+        long statsPeriod;
+        double maxPower;
+        double totalPower;
+    }
+
+    // Main thread only
+    private Results mResults;
+    private long mNextRefreshTime;
+    private boolean mDestroyed;
+
+    // Guarded by this
+    private boolean mReloadRequested;
+
+    private HandlerThread mBackgroundThread;
+    private Handler mBackgroundHandler;
+
+    private final Handler mMainHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_PUBLISH && !mDestroyed) {
+                mResults = (Results) msg.obj;
+                if (mHandler != null) {
+                    mHandler.sendEmptyMessage(MSG_STATS_REFRESHED);
+                }
+            }
+        }
+    };
+
     private class NameAndIconLoader extends Thread {
         private boolean mAbort = false;
 
@@ -137,24 +190,48 @@ public class BatteryStatsHelper {
         mHandler = handler;
     }
 
-    /** Clears the current stats and forces recreating for future use. */
-    public void clearStats() {
-        mStats = null;
-        mDockStats = null;
+    /**
+     * Returns the stats of the last published refresh, or null if there
+     * wasn't one yet.
+     */
+    public BatteryStatsImpl getStats() {
+        return mResults != null ? mResults.stats : null;
+    }
+
+    public BatteryStatsImpl getDockStats() {
+        return mResults != null ? mResults.dockStats : null;
     }
 
-    public BatteryStatsImpl getStats() {
-        if (mStats == null) {
-            loadStats();
+    /**
+     * Returns the stats or dock stats of the last published refresh,
+     * marshalled without the per uid stats, or null if there are none.
+     */
+    public byte[] marshallStatsWithoutUids(boolean dock) {
+        final BatteryStatsImpl stats = dock ? getDockStats() : getStats();
+        if (stats == null) {
+            return null;
+        }
+        final Parcel parcel = Parcel.obtain();
+        try {
+            // The background thread may be refreshing the same stats
+            synchronized (stats) {
+                stats.writeToParcelWithoutUids(parcel, 0);
+            }
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
         }
-        return mStats;
     }
 
-    public BatteryStatsImpl getDockStats(Context context) {
-        if (mDockStats == null) {
-            loadDockStats(context);
-        }
-        return mDockStats;
+    /**
+     * Returns the decoded history of the stats of the last published refresh.
+     */
+    BatteryHistory getHistory() {
+        return mResults != null ? mResults.history : null;
+    }
+
+    BatteryHistory getDockHistory() {
+        return mResults != null ? mResults.dockHistory : null;
     }
 
     public PowerProfile getPowerProfile() {
@@ -169,35 +246,128 @@ public class BatteryStatsHelper {
                 ServiceManager.getService(BatteryStats.SERVICE_NAME));
         mUm = (UserManager) mActivity.getSystemService(Context.USER_SERVICE);
         mPowerProfile = new PowerProfile(mActivity);
+
+        mBackgroundThread = new HandlerThread("BatteryStatsHelper",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mBackgroundThread.start();
+        mBackgroundHandler = new BackgroundHandler(mBackgroundThread.getLooper());
     }
 
     public void pause() {
-        if (mRequestThread != null) {
-            mRequestThread.abort();
+        mBackgroundHandler.removeMessages(MSG_REFRESH);
+        mNextRefreshTime = 0;
+        synchronized (mRequestQueue) {
+            if (mRequestThread != null) {
+                mRequestThread.abort();
+            }
         }
     }
 
     public void destroy() {
+        mDestroyed = true;
+        mBackgroundHandler.removeMessages(MSG_REFRESH);
+        mBackgroundThread.quit();
+        mMainHandler.removeMessages(MSG_PUBLISH);
         if (mActivity.isChangingConfigurations()) {
-            sStatsXfer = mStats;
+            sStatsXfer = getStats();
         } else {
             BatterySipper.sUidCache.clear();
         }
     }
 
+    /**
+     * Refreshes the power usage list on the background thread.  Refreshes
+     * that aren't {@code immediate}, such as the ones following battery
+     * broadcasts, are coalesced and rate limited.
+     * @param reload whether to fetch the stats again from the battery stats service
+     * @param immediate whether to refresh right away
+     */
+    public void refreshStatsAsync(boolean reload, boolean immediate) {
+        if (reload) {
+            synchronized (this) {
+                mReloadRequested = true;
+            }
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (!immediate && mBackgroundHandler.hasMessages(MSG_REFRESH)) {
+            // the pending refresh will pick this one up
+            return;
+        }
+        final long delay = immediate ? 0 : Math.max(0, mNextRefreshTime - now);
+        mBackgroundHandler.removeMessages(MSG_REFRESH);
+        mBackgroundHandler.sendEmptyMessageDelayed(MSG_REFRESH, delay);
+        mNextRefreshTime = now + delay + MIN_REFRESH_INTERVAL;
+    }
+
+    private final class BackgroundHandler extends Handler {
+        BackgroundHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != MSG_REFRESH) {
+                return;
+            }
+            final boolean reload;
+            synchronized (BatteryStatsHelper.this) {
+                reload = mReloadRequested;
+                mReloadRequested = false;
+            }
+            if (reload || mStats == null) {
+                loadStats();
+                loadDockStats(mActivity);
+            }
+            if (mStats == null) {
+                return;
+            }
+            // Published stats are also read on the main thread; the stats
+            // object is the lock shared with it.
+            final boolean decode = mHistory == null || reload;
+            synchronized (mStats) {
+                if (decode) {
+                    mHistory = BatteryHistory.decode(mStats);
+                }
+                refreshStats(false);
+            }
+            if (decode) {
+                if (mDockStats != null) {
+                    synchronized (mDockStats) {
+                        mDockHistory = BatteryHistory.decode(mDockStats);
+                    }
+                } else {
+                    mDockHistory = null;
+                }
+            }
+
+            final Results results = new Results();
+            results.stats = mStats;
+            results.dockStats = mDockStats;
+            results.history = mHistory;
+            results.dockHistory = mDockHistory;
+            results.usageList = new ArrayList<BatterySipper>(mUsageList);
+            results.statsPeriod = mStatsPeriod;
+            results.maxPower = mMaxPower;
+            results.totalPower = mTotalPower;
+            mMainHandler.obtainMessage(MSG_PUBLISH, results).sendToTarget();
+            startNameAndIconLoader();
+        }
+    }
+
     public void startBatteryDetailPage(
             PreferenceActivity caller, BatterySipper sipper, boolean showLocationButton) {
-        // Initialize mStats if necessary.
-        getStats();
-        getDockStats(caller);
+        final Results results = mResults;
+        if (results == null) {
+            return;
+        }
 
         Bundle args = new Bundle();
         args.putString(PowerUsageDetail.EXTRA_TITLE, sipper.name);
         args.putInt(PowerUsageDetail.EXTRA_PERCENT, (int)
-                Math.ceil(sipper.getSortValue() * 100 / mTotalPower));
+                Math.ceil(sipper.getSortValue() * 100 / results.totalPower));
         args.putInt(PowerUsageDetail.EXTRA_GAUGE, (int)
-                Math.ceil(sipper.getSortValue() * 100 / mMaxPower));
-        args.putLong(PowerUsageDetail.EXTRA_USAGE_DURATION, mStatsPeriod);
+                Math.ceil(sipper.getSortValue() * 100 / results.maxPower));
+        args.putLong(PowerUsageDetail.EXTRA_USAGE_DURATION, results.statsPeriod);
         args.putString(PowerUsageDetail.EXTRA_ICON_PACKAGE, sipper.defaultPackageName);
         args.putInt(PowerUsageDetail.EXTRA_ICON_ID, sipper.iconId);
         args.putDouble(PowerUsageDetail.EXTRA_NO_COVERAGE, sipper.noCoveragePercent);
@@ -242,18 +412,21 @@ public class BatteryStatsHelper {
                 };
 
                 if (sipper.drainType == DrainType.APP) {
-                    Writer result = new StringWriter();
-                    PrintWriter printWriter = new FastPrintWriter(result, false, 1024);
-                    mStats.dumpLocked(printWriter, "", mStatsType, uid.getUid());
-                    printWriter.flush();
-                    args.putString(PowerUsageDetail.EXTRA_REPORT_DETAILS, result.toString());
-
-                    result = new StringWriter();
-                    printWriter = new FastPrintWriter(result, false, 1024);
-                    mStats.dumpCheckinLocked(printWriter, mStatsType, uid.getUid());
-                    printWriter.flush();
-                    args.putString(PowerUsageDetail.EXTRA_REPORT_CHECKIN_DETAILS,
-                            result.toString());
+                    synchronized (results.stats) {
+                        Writer result = new StringWriter();
+                        PrintWriter printWriter = new FastPrintWriter(result, false, 1024);
+                        results.stats.dumpLocked(printWriter, "", mStatsType, uid.getUid());
+                        printWriter.flush();
+                        args.putString(PowerUsageDetail.EXTRA_REPORT_DETAILS,
+                                result.toString());
+
+                        result = new StringWriter();
+                        printWriter = new FastPrintWriter(result, false, 1024);
+                        results.stats.dumpCheckinLocked(printWriter, mStatsType, uid.getUid());
+                        printWriter.flush();
+                        args.putString(PowerUsageDetail.EXTRA_REPORT_CHECKIN_DETAILS,
+                                result.toString());
+                    }
                 }
             }
             break;
@@ -332,16 +505,11 @@ public class BatteryStatsHelper {
     }
 
     /**
-     * Refreshes the power usage list.
-     * @parma context The current context
+     * Refreshes the power usage list from the loaded stats.  Runs on the background thread.
      * @param includeZeroConsumption whether includes those applications which have consumed very
      *                               little power up till now.
      */
-    public void refreshStats(Context context, boolean includeZeroConsumption) {
-        // Initialize mStats if necessary.
-        getStats();
-        getDockStats(context);
-
+    private void refreshStats(boolean includeZeroConsumption) {
         mMaxPower = 0;
         mTotalPower = 0;
         mWifiPower = 0;
@@ -358,7 +526,9 @@ public class BatteryStatsHelper {
         processMiscUsage();
 
         Collections.sort(mUsageList);
+    }
 
+    private void startNameAndIconLoader() {
         if (mHandler != null) {
             synchronized (mRequestQueue) {
                 if (!mRequestQueue.isEmpty()) {
@@ -818,19 +988,24 @@ public class BatteryStatsHelper {
         return bs;
     }
 
+    /**
+     * Returns the power usage list of the last published refresh, sorted by
+     * descending power.
+     */
     public List<BatterySipper> getUsageList() {
-        return mUsageList;
+        return mResults != null ? mResults.usageList : Collections.<BatterySipper>emptyList();
     }
 
     static final int MSG_UPDATE_NAME_ICON = 1;
     static final int MSG_REPORT_FULLY_DRAWN = 2;
+    static final int MSG_STATS_REFRESHED = 3;
 
     public double getMaxPower() {
-        return mMaxPower;
+        return mResults != null ? mResults.maxPower : 1;
     }
 
     public double getTotalPower() {
-        return mTotalPower;
+        return mResults != null ? mResults.totalPower : 0;
     }
 
     private void loadStats() {
@@ -43,16 +43,24 @@ public class PowerGaugePreference extends Preference {
     }
 
     public void setPercent(double percentOfMax, double percentOfTotal) {
-        mProgress = (int) Math.ceil(percentOfMax);
-        mProgressText = getContext().getResources().getString(
+        final int progress = (int) Math.ceil(percentOfMax);
+        final CharSequence progressText = getContext().getResources().getString(
                 R.string.percentage, (int) Math.ceil(percentOfTotal));
-        notifyChanged();
+        if (progress != mProgress || !progressText.equals(mProgressText)) {
+            mProgress = progress;
+            mProgressText = progressText;
+            notifyChanged();
+        }
     }
 
     BatterySipper getInfo() {
         return mInfo;
     }
 
+    void setInfo(BatterySipper info) {
+        mInfo = info;
+    }
+
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
@@ -26,7 +26,6 @@ import android.os.BatteryStats;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.Parcel;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
@@ -37,10 +36,12 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
+import com.android.internal.os.BatteryStatsImpl;
 import com.android.internal.os.PowerProfile;
 import com.android.settings.HelpUtils;
 import com.android.settings.R;
 
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -63,6 +64,10 @@ public class PowerUsageSummary extends PreferenceFragment {
 
     private PreferenceGroup mAppListGroup;
     private Preference mBatteryStatusPref;
+    private BatteryHistoryPreference mHistPref;
+    private boolean mNotAvailableShown;
+    private final HashMap<String, PowerGaugePreference> mGaugePrefs =
+            new HashMap<String, PowerGaugePreference>();
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
@@ -84,8 +89,10 @@ public class PowerUsageSummary extends PreferenceFragment {
                 String batterySummary = context.getResources().getString(
                         R.string.power_usage_level_and_status, batteryLevel, batteryStatus);
                 mBatteryStatusPref.setTitle(batterySummary);
-                mStatsHelper.clearStats();
-                refreshStats();
+                if (!isInitialStickyBroadcast()) {
+                    // The header follows every broadcast, the usage list at a limited rate
+                    mStatsHelper.refreshStatsAsync(true, false);
+                }
             }
         }
     };
@@ -113,7 +120,8 @@ public class PowerUsageSummary extends PreferenceFragment {
         super.onResume();
         getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-        refreshStats();
+        bindStats();
+        mStatsHelper.refreshStatsAsync(true, true);
     }
 
     @Override
@@ -128,21 +136,23 @@ public class PowerUsageSummary extends PreferenceFragment {
     public void onDestroy() {
         super.onDestroy();
         mStatsHelper.destroy();
+        mHandler.removeMessages(BatteryStatsHelper.MSG_STATS_REFRESHED);
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            Parcel hist = Parcel.obtain();
-            mStatsHelper.getStats().writeToParcelWithoutUids(hist, 0);
-            byte[] histData = hist.marshall();
+            byte[] histData = mStatsHelper.marshallStatsWithoutUids(false);
+            if (histData == null) {
+                return false;
+            }
             Bundle args = new Bundle();
             args.putByteArray(BatteryHistoryDetail.EXTRA_STATS, histData);
             if (mBatteryService.isDockBatterySupported()) {
-                Parcel dockHist = Parcel.obtain();
-                mStatsHelper.getDockStats(getActivity()).writeToParcelWithoutUids(dockHist, 0);
-                byte[] dockHistData = dockHist.marshall();
-                args.putByteArray(BatteryHistoryDetail.EXTRA_DOCK_STATS, dockHistData);
+                byte[] dockHistData = mStatsHelper.marshallStatsWithoutUids(true);
+                if (dockHistData != null) {
+                    args.putByteArray(BatteryHistoryDetail.EXTRA_DOCK_STATS, dockHistData);
+                }
             }
 
             PreferenceActivity pa = (PreferenceActivity)getActivity();
@@ -193,16 +203,14 @@ public class PowerUsageSummary extends PreferenceFragment {
                 } else {
                     mStatsType = BatteryStats.STATS_SINCE_CHARGED;
                 }
-                refreshStats();
+                mStatsHelper.refreshStatsAsync(false, true);
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
-                refreshStats();
+                mStatsHelper.refreshStatsAsync(true, true);
                 return true;
             case MENU_STATS_RESET:
                 mStatsHelper.resetStatistics();
-                mStatsHelper.clearStats();
-                refreshStats();
+                mStatsHelper.refreshStatsAsync(true, true);
                 return true;
             default:
                 return false;
@@ -215,42 +223,77 @@ public class PowerUsageSummary extends PreferenceFragment {
         mAppListGroup.addPreference(notAvailable);
     }
 
-    private void refreshStats() {
-        mAppListGroup.removeAll();
-        mAppListGroup.setOrderingAsAdded(false);
+    private static String getSipperKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            return Integer.toString(sipper.uidObj.getUid());
+        }
+        return sipper.drainType + ":" + sipper.name;
+    }
+
+    /**
+     * Shows the results of the last refresh, touching only the rows that changed.
+     */
+    private void bindStats() {
+        final BatteryStatsImpl stats = mStatsHelper.getStats();
+        if (stats == null) {
+            // Nothing loaded yet
+            return;
+        }
 
+        mAppListGroup.setOrderingAsAdded(false);
         mBatteryStatusPref.setOrder(-2);
-        mAppListGroup.addPreference(mBatteryStatusPref);
-        BatteryHistoryPreference hist = new BatteryHistoryPreference(
-                getActivity(), mStatsHelper.getStats(), mStatsHelper.getDockStats(getActivity()));
-        hist.setOrder(-1);
-        mAppListGroup.addPreference(hist);
+        if (mHistPref == null || mHistPref.getStats() != stats) {
+            if (mHistPref != null) {
+                mAppListGroup.removePreference(mHistPref);
+            }
+            mHistPref = new BatteryHistoryPreference(getActivity(), stats,
+                    mStatsHelper.getHistory(), mStatsHelper.getDockHistory());
+            mHistPref.setOrder(-1);
+            mAppListGroup.addPreference(mHistPref);
+        }
 
         if (mStatsHelper.getPowerProfile().getAveragePower(
                 PowerProfile.POWER_SCREEN_FULL) < 10) {
-            addNotAvailableMessage();
+            if (!mNotAvailableShown) {
+                addNotAvailableMessage();
+                mNotAvailableShown = true;
+            }
             return;
         }
-        mStatsHelper.refreshStats(getActivity(), false);
+
+        final HashMap<String, PowerGaugePreference> oldPrefs =
+                new HashMap<String, PowerGaugePreference>(mGaugePrefs);
+        mGaugePrefs.clear();
+        final double totalPower = mStatsHelper.getTotalPower();
+        final double maxPower = mStatsHelper.getMaxPower();
         List<BatterySipper> usageList = mStatsHelper.getUsageList();
         for (BatterySipper sipper : usageList) {
             if (sipper.getSortValue() < MIN_POWER_THRESHOLD) continue;
-            final double percentOfTotal =
-                    ((sipper.getSortValue() / mStatsHelper.getTotalPower()) * 100);
+            final double percentOfTotal = ((sipper.getSortValue() / totalPower) * 100);
             if (percentOfTotal < 1) continue;
-            PowerGaugePreference pref =
-                    new PowerGaugePreference(getActivity(), sipper.getIcon(), sipper);
-            final double percentOfMax =
-                    (sipper.getSortValue() * 100) / mStatsHelper.getMaxPower();
+            final double percentOfMax = (sipper.getSortValue() * 100) / maxPower;
             sipper.percent = percentOfTotal;
+
+            final String key = getSipperKey(sipper);
+            PowerGaugePreference pref = oldPrefs.remove(key);
+            final boolean added = pref == null;
+            if (added) {
+                pref = new PowerGaugePreference(getActivity(), sipper.getIcon(), sipper);
+                pref.setKey(key);
+            } else {
+                pref.setInfo(sipper);
+            }
             pref.setTitle(sipper.name);
             pref.setOrder(Integer.MAX_VALUE - (int) sipper.getSortValue()); // Invert the order
             pref.setPercent(percentOfMax, percentOfTotal);
-            if (sipper.uidObj != null) {
-                pref.setKey(Integer.toString(sipper.uidObj.getUid()));
+            if (added) {
+                mAppListGroup.addPreference(pref);
             }
-            mAppListGroup.addPreference(pref);
-            if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) break;
+            mGaugePrefs.put(key, pref);
+            if (mGaugePrefs.size() >= MAX_ITEMS_TO_LIST) break;
+        }
+        for (PowerGaugePreference pref : oldPrefs.values()) {
+            mAppListGroup.removePreference(pref);
         }
     }
 
@@ -269,6 +312,9 @@ public class PowerUsageSummary extends PreferenceFragment {
                         pgp.setTitle(bs.name);
                     }
                     break;
+                case BatteryStatsHelper.MSG_STATS_REFRESHED:
+                    bindStats();
+                    break;
                 case BatteryStatsHelper.MSG_REPORT_FULLY_DRAWN:
                     Activity activity = getActivity();
                     if (activity != null) {
@@ -18,6 +18,7 @@ package com.android.settings.location;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -42,8 +43,10 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -67,6 +70,15 @@ class SettingsInjector {
      */
     private static final long INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS = 1000;
 
+    /**
+     * Last known status values and load times of the injected settings, so that the status
+     * can be shown as soon as the screen opens, and slow settings be loaded last.
+     */
+    private static final String PREFS_NAME = "injected_location_settings";
+    private static final String KEY_SUMMARY_SUFFIX = ":summary";
+    private static final String KEY_ENABLED_SUFFIX = ":enabled";
+    private static final String KEY_LATENCY_SUFFIX = ":latency";
+
     /**
      * {@link Message#what} value for starting to load status values
      * in case we aren't already in the process of loading them.
@@ -92,10 +104,20 @@ class SettingsInjector {
 
     private final Handler mHandler;
 
+    private final SharedPreferences mPrefs;
+
+    /**
+     * How many settings we load at once, not counting the ones that timed out.
+     */
+    private final int mMaxConcurrentLoads;
+
     public SettingsInjector(Context context) {
         mContext = context;
         mSettings = new HashSet<Setting>();
         mHandler = new StatusLoadingHandler();
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mMaxConcurrentLoads = Math.max(1, context.getResources().getInteger(
+                R.integer.config_injectedSettingsMaxConcurrentLoads));
     }
 
     /**
@@ -244,12 +266,19 @@ class SettingsInjector {
     }
 
     /**
-     * Adds an injected setting to the root with status "Loading...".
+     * Adds an injected setting to the root with its last known status, or "Loading..." if
+     * there is none.
      */
     private Preference addServiceSetting(List<Preference> prefs, InjectedSetting info) {
         Preference pref = new Preference(mContext);
         pref.setTitle(info.title);
-        pref.setSummary(R.string.location_loading_injected_setting);
+        final String key = getPrefsKey(info);
+        if (mPrefs.contains(key + KEY_SUMMARY_SUFFIX)) {
+            pref.setSummary(mPrefs.getString(key + KEY_SUMMARY_SUFFIX, null));
+            pref.setEnabled(mPrefs.getBoolean(key + KEY_ENABLED_SUFFIX, true));
+        } else {
+            pref.setSummary(R.string.location_loading_injected_setting);
+        }
         PackageManager pm = mContext.getPackageManager();
         Drawable icon = pm.getDrawable(info.packageName, info.iconId, null);
         pref.setIcon(icon);
@@ -262,28 +291,59 @@ class SettingsInjector {
         return pref;
     }
 
+    private static String getPrefsKey(InjectedSetting info) {
+        return info.packageName + "/" + info.className;
+    }
+
     /**
-     * Loads the setting status values one at a time. Each load starts a subclass of {@link
+     * Remembers the status of the given setting for the next time the screen opens.
+     */
+    private void saveStatus(InjectedSetting info, String summary, boolean enabled) {
+        final String key = getPrefsKey(info);
+        mPrefs.edit()
+                .putString(key + KEY_SUMMARY_SUFFIX, summary)
+                .putBoolean(key + KEY_ENABLED_SUFFIX, enabled)
+                .apply();
+    }
+
+    /**
+     * Remembers how long the given setting took to reply, or has waited for so far.
+     */
+    private void saveLatency(InjectedSetting info, long latency) {
+        mPrefs.edit().putLong(getPrefsKey(info) + KEY_LATENCY_SUFFIX, latency).apply();
+    }
+
+    /**
+     * Returns how long the given setting took to reply last time, or 0 if unknown.
+     */
+    private long getLatency(InjectedSetting info) {
+        return mPrefs.getLong(getPrefsKey(info) + KEY_LATENCY_SUFFIX, 0);
+    }
+
+    /**
+     * Loads the setting status values at most {@link #mMaxConcurrentLoads} at a time, fastest
+     * first according to the last load times. Each load starts a subclass of {@link
      * SettingInjectorService}, so to reduce memory pressure we don't want to load too many at
      * once.
      */
     private final class StatusLoadingHandler extends Handler {
 
         /**
-         * Settings whose status values need to be loaded. A set is used to prevent redundant loads.
+         * Settings whose status values need to be loaded, in the order to load them. Only contains
+         * each setting once to prevent redundant loads.
          */
-        private Set<Setting> mSettingsToLoad = new HashSet<Setting>();
+        private List<Setting> mSettingsToLoad = new ArrayList<Setting>();
 
         /**
-         * Settings that are being loaded now and haven't timed out. In practice this should have
-         * zero or one elements.
+         * Settings that are being loaded now and haven't timed out. Has at most
+         * {@link #mMaxConcurrentLoads} elements.
          */
         private Set<Setting> mSettingsBeingLoaded = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded but have timed out. If only one setting has timed out, we
-         * will go ahead and start loading the next setting so that one slow load won't delay the
-         * load of the other settings.
+         * Settings that are being loaded but have timed out. While fewer than
+         * {@link #mMaxConcurrentLoads} settings are live, we go ahead and start loading the next
+         * setting so that slow loads won't delay the load of the other settings.
          */
         private Set<Setting> mTimedOutSettings = new HashSet<Setting>();
 
@@ -303,6 +363,7 @@ class SettingsInjector {
                 case WHAT_RECEIVED_STATUS:
                     final Setting receivedSetting = (Setting) msg.obj;
                     receivedSetting.maybeLogElapsedTime();
+                    saveLatency(receivedSetting.setting, receivedSetting.getElapsedTime());
                     mSettingsBeingLoaded.remove(receivedSetting);
                     mTimedOutSettings.remove(receivedSetting);
                     removeMessages(WHAT_TIMEOUT, receivedSetting);
@@ -311,6 +372,8 @@ class SettingsInjector {
                     final Setting timedOutSetting = (Setting) msg.obj;
                     mSettingsBeingLoaded.remove(timedOutSetting);
                     mTimedOutSettings.add(timedOutSetting);
+                    // Load it last next time, even if it never replies
+                    saveLatency(timedOutSetting.setting, timedOutSetting.getElapsedTime());
                     if (Log.isLoggable(TAG, Log.WARN)) {
                         Log.w(TAG, "Timed out after " + timedOutSetting.getElapsedTime()
                                 + " millis trying to get status for: " + timedOutSetting);
@@ -320,53 +383,66 @@ class SettingsInjector {
                     Log.wtf(TAG, "Unexpected what: " + msg);
             }
 
-            // Decide whether to load additional settings based on the new state. Start by seeing
-            // if we have headroom to load another setting.
-            if (mSettingsBeingLoaded.size() > 0 || mTimedOutSettings.size() > 1) {
-                // Don't load any more settings until one of the pending settings has completed.
-                // To reduce memory pressure, we want to be loading at most one setting (plus at
-                // most one timed-out setting) at a time. This means we'll be responsible for
-                // bringing in at most two services.
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "too many services already live for " + msg + ", " + this);
-                }
-                return;
-            }
-
             if (mReloadRequested && mSettingsToLoad.isEmpty() && mSettingsBeingLoaded.isEmpty()
                     && mTimedOutSettings.isEmpty()) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     Log.v(TAG, "reloading because idle and reload requesteed " + msg + ", " + this);
                 }
-                // Reload requested, so must reload all settings
+                // Reload requested, so must reload all settings, fastest first
                 mSettingsToLoad.addAll(mSettings);
+                sortByLatency(mSettingsToLoad);
                 mReloadRequested = false;
             }
 
-            // Remove the next setting to load from the queue, if any
-            Iterator<Setting> iter = mSettingsToLoad.iterator();
-            if (!iter.hasNext()) {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "nothing left to do for " + msg + ", " + this);
+            // Load additional settings as long as we have headroom. To reduce memory pressure,
+            // we want to be loading at most mMaxConcurrentLoads settings, including the ones that
+            // timed out but are still live.
+            while (mSettingsBeingLoaded.size() < mMaxConcurrentLoads
+                    && mSettingsBeingLoaded.size() + mTimedOutSettings.size()
+                            <= mMaxConcurrentLoads) {
+                if (mSettingsToLoad.isEmpty()) {
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "nothing left to do for " + msg + ", " + this);
+                    }
+                    return;
                 }
-                return;
-            }
-            Setting setting = iter.next();
-            iter.remove();
 
-            // Request the status value
-            setting.startService();
-            mSettingsBeingLoaded.add(setting);
+                // Remove the next setting to load from the queue
+                Setting setting = mSettingsToLoad.remove(0);
 
-            // Ensure that if receiving the status value takes too long, we start loading the
-            // next value anyway
-            Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
-            sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
+                // Request the status value
+                setting.startService();
+                mSettingsBeingLoaded.add(setting);
 
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "handleMessage end " + msg + ", " + this
-                        + ", started loading " + setting);
+                // Ensure that if receiving the status value takes too long, we start loading the
+                // next value anyway
+                Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
+                sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
+
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "handleMessage " + msg + ", " + this
+                            + ", started loading " + setting);
+                }
             }
+
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "too many services already live for " + msg + ", " + this);
+            }
+        }
+
+        private void sortByLatency(List<Setting> settings) {
+            final HashMap<Setting, Long> latencies = new HashMap<Setting, Long>();
+            for (Setting setting : settings) {
+                latencies.put(setting, getLatency(setting.setting));
+            }
+            Collections.sort(settings, new Comparator<Setting>() {
+                @Override
+                public int compare(Setting lhs, Setting rhs) {
+                    final long lhsLatency = latencies.get(lhs);
+                    final long rhsLatency = latencies.get(rhs);
+                    return lhsLatency < rhsLatency ? -1 : (lhsLatency == rhsLatency ? 0 : 1);
+                }
+            });
         }
 
         @Override
@@ -432,6 +508,7 @@ class SettingsInjector {
                     }
                     preference.setSummary(summary);
                     preference.setEnabled(enabled);
+                    saveStatus(setting, summary, enabled);
                     mHandler.sendMessage(
                             mHandler.obtainMessage(WHAT_RECEIVED_STATUS, Setting.this));
                 }
@@ -444,10 +521,8 @@ class SettingsInjector {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, setting + ": sending update intent: " + intent
                         + ", handler: " + handler);
-                startMillis = SystemClock.elapsedRealtime();
-            } else {
-                startMillis = 0;
             }
+            startMillis = SystemClock.elapsedRealtime();
 
             // Start the service, making sure that this is attributed to the current user rather
             // than the system user.
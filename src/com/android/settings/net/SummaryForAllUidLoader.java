@@ -16,6 +16,7 @@
 
 package com.android.settings.net;
 
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
@@ -24,12 +25,17 @@ import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loads the per-app usage summary of a network over one cycle, going through
+ * the given {@link UidUsageSummary.Cache} first.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<UidUsageSummary> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
     private final INetworkStatsSession mSession;
+    private final UidUsageSummary.Cache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -40,29 +46,55 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         return args;
     }
 
-    public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public SummaryForAllUidLoader(Context context, INetworkStatsSession session,
+            UidUsageSummary.Cache cache, Bundle args) {
         super(context);
         mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+        final UidUsageSummary cached = mCache.get(getTemplate(), getStart(), getEnd(),
+                ActivityManager.getCurrentUser());
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
-    public NetworkStats loadInBackground() {
-        final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
-        final long start = mArgs.getLong(KEY_START);
-        final long end = mArgs.getLong(KEY_END);
+    public UidUsageSummary loadInBackground() {
+        final NetworkTemplate template = getTemplate();
+        final long start = getStart();
+        final long end = getEnd();
+        final int currentUserId = ActivityManager.getCurrentUser();
+        final int generation = mCache.getGeneration();
 
+        final NetworkStats stats;
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            stats = mSession.getSummaryForAllUid(template, start, end, false);
         } catch (RemoteException e) {
             return null;
         }
+        final UidUsageSummary summary = UidUsageSummary.build(stats, currentUserId);
+        mCache.put(generation, template, start, end, currentUserId, summary);
+        return summary;
+    }
+
+    private NetworkTemplate getTemplate() {
+        return mArgs.getParcelable(KEY_TEMPLATE);
+    }
+
+    private long getStart() {
+        return mArgs.getLong(KEY_START);
+    }
+
+    private long getEnd() {
+        return mArgs.getLong(KEY_END);
     }
 
     @Override
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.UserHandle;
+import android.util.SparseIntArray;
+
+import com.android.internal.util.Objects;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Usage of a network over one cycle, collapsed into one item per app (or per
+ * other user, or removed apps, tethering and the system) and sorted by total
+ * usage descending.  Kept in primitive arrays, so it is cheap to build and to
+ * hold on to in a {@link Cache}.
+ */
+public class UidUsageSummary {
+    private final int mSize;
+    private final int[] mKeys;
+    private final long[] mTotals;
+    // UIDs of item i are mUids[mUidStart[i]] to mUids[mUidStart[i + 1] - 1]
+    private final int[] mUids;
+    private final int[] mUidStart;
+    private final SparseIntArray mIndexOfKey;
+
+    private UidUsageSummary(int size, int[] keys, long[] totals, int[] uids, int[] uidStart) {
+        mSize = size;
+        mKeys = keys;
+        mTotals = totals;
+        mUids = uids;
+        mUidStart = uidStart;
+        mIndexOfKey = new SparseIntArray(size);
+        for (int i = 0; i < size; i++) {
+            mIndexOfKey.put(keys[i], i);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getKey(int index) {
+        return mKeys[index];
+    }
+
+    public long getTotal(int index) {
+        return mTotals[index];
+    }
+
+    public int getUidCount(int index) {
+        return mUidStart[index + 1] - mUidStart[index];
+    }
+
+    public int getUid(int index, int uidIndex) {
+        return mUids[mUidStart[index] + uidIndex];
+    }
+
+    /**
+     * Returns the index of the item with the given key, or -1.
+     */
+    public int indexOfKey(int key) {
+        return mIndexOfKey.get(key, -1);
+    }
+
+    /**
+     * Decides which item the traffic of the given UID is shown under.
+     */
+    public static int collapseKey(int uid, int currentUserId) {
+        if (UserHandle.isApp(uid)) {
+            if (UserHandle.getUserId(uid) == currentUserId) {
+                return uid;
+            } else {
+                return UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
+            }
+        } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+            return uid;
+        } else {
+            return android.os.Process.SYSTEM_UID;
+        }
+    }
+
+    /**
+     * Collapses the given per-UID stats, which may be {@code null}.
+     */
+    public static UidUsageSummary build(NetworkStats stats, int currentUserId) {
+        final int statsSize = stats != null ? stats.size() : 0;
+
+        // Items in order of appearance, and the item each UID belongs to
+        final SparseIntArray itemOfKey = new SparseIntArray();
+        final SparseIntArray itemOfUid = new SparseIntArray();
+        int[] keys = new int[16];
+        long[] totals = new long[16];
+        int[] uidCounts = new int[16];
+        int[] uids = new int[16];
+        int[] uidItems = new int[16];
+        int size = 0;
+        int uidCount = 0;
+
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < statsSize; i++) {
+            entry = stats.getValues(i, entry);
+            final int uid = entry.uid;
+
+            int item = itemOfUid.get(uid, -1);
+            if (item < 0) {
+                final int key = collapseKey(uid, currentUserId);
+                item = itemOfKey.get(key, -1);
+                if (item < 0) {
+                    if (size == keys.length) {
+                        keys = Arrays.copyOf(keys, size * 2);
+                        totals = Arrays.copyOf(totals, size * 2);
+                        uidCounts = Arrays.copyOf(uidCounts, size * 2);
+                    }
+                    item = size++;
+                    keys[item] = key;
+                    itemOfKey.put(key, item);
+                }
+                if (uidCount == uids.length) {
+                    uids = Arrays.copyOf(uids, uidCount * 2);
+                    uidItems = Arrays.copyOf(uidItems, uidCount * 2);
+                }
+                uids[uidCount] = uid;
+                uidItems[uidCount] = item;
+                uidCount++;
+                uidCounts[item]++;
+                itemOfUid.put(uid, item);
+            }
+            totals[item] += entry.rxBytes + entry.txBytes;
+        }
+
+        // Order items by total descending
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sortByTotalDescending(order, totals);
+
+        final int[] rank = new int[size];
+        final int[] sortedKeys = new int[size];
+        final long[] sortedTotals = new long[size];
+        final int[] uidStart = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            final int item = order[i];
+            rank[item] = i;
+            sortedKeys[i] = keys[item];
+            sortedTotals[i] = totals[item];
+            uidStart[i + 1] = uidStart[i] + uidCounts[item];
+        }
+
+        // Bucket the UIDs by the rank of their item
+        final int[] sortedUids = new int[uidCount];
+        final int[] fill = Arrays.copyOf(uidStart, size);
+        for (int i = 0; i < uidCount; i++) {
+            sortedUids[fill[rank[uidItems[i]]]++] = uids[i];
+        }
+
+        return new UidUsageSummary(size, sortedKeys, sortedTotals, sortedUids, uidStart);
+    }
+
+    private static void sortByTotalDescending(int[] order, long[] totals) {
+        // Insertion sort; lists are a few hundred items at most, and stable
+        // so equal totals keep the order the stats reported them in.
+        for (int i = 1; i < order.length; i++) {
+            final int item = order[i];
+            final long total = totals[item];
+            int j = i - 1;
+            while (j >= 0 && totals[order[j]] < total) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = item;
+        }
+    }
+
+    /**
+     * Summaries already built for a stats session, by template and cycle.
+     * Must be invalidated whenever the session may return newer stats.
+     */
+    public static class Cache {
+        private static final int MAX_ENTRIES = 16;
+
+        private final LinkedHashMap<Key, UidUsageSummary> mEntries =
+                new LinkedHashMap<Key, UidUsageSummary>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, UidUsageSummary> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        private int mGeneration;
+
+        private static class Key {
+            final NetworkTemplate template;
+            final long start;
+            final long end;
+            final int userId;
+
+            Key(NetworkTemplate template, long start, long end, int userId) {
+                this.template = template;
+                this.start = start;
+                this.end = end;
+                this.userId = userId;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) {
+                    return false;
+                }
+                final Key other = (Key) o;
+                return start == other.start && end == other.end && userId == other.userId
+                        && Objects.equal(template, other.template);
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hashCode(template, start, end, userId);
+            }
+        }
+
+        public synchronized UidUsageSummary get(NetworkTemplate template, long start, long end,
+                int userId) {
+            return mEntries.get(new Key(template, start, end, userId));
+        }
+
+        /**
+         * Returns a token to pass to {@link #put}, so that a summary built
+         * from stats read before an invalidation isn't cached.
+         */
+        public synchronized int getGeneration() {
+            return mGeneration;
+        }
+
+        public synchronized void put(int generation, NetworkTemplate template, long start,
+                long end, int userId, UidUsageSummary summary) {
+            if (generation == mGeneration) {
+                mEntries.put(new Key(template, start, end, userId), summary);
+            }
+        }
+
+        public synchronized void invalidate() {
+            mGeneration++;
+            mEntries.clear();
+        }
+    }
+}
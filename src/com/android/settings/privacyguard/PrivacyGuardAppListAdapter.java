@@ -17,9 +17,10 @@
 package com.android.settings.privacyguard;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
+import android.os.UserHandle;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,44 +30,67 @@ import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.android.settings.R;
+import com.android.settings.applications.AppIconCache;
 import com.android.settings.privacyguard.PrivacyGuardManager.AppInfo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIndexer {
 
     private LayoutInflater mInflater;
-    private PackageManager mPm;
 
     private List<AppInfo> mApps;
     private String[] mSections;
     private int[] mPositions;
-    private ConcurrentHashMap<String, Drawable> mIcons;
+    private AppIconCache mIconCache;
     private Drawable mDefaultImg;
 
+    // Every view holder created, so that icons are only loaded for the rows bound to one
+    private final ArrayList<PrivacyGuardAppViewHolder> mHolders =
+            new ArrayList<PrivacyGuardAppViewHolder>();
+    private LoadIconTask mLoadIconTask;
+
     private Context mContext;
 
     //constructor
-    public PrivacyGuardAppListAdapter(Context context, List<AppInfo> apps,
-            List<String> sections, List<Integer> positions) {
+    public PrivacyGuardAppListAdapter(Context context, List<AppInfo> apps) {
         mContext = context;
         mInflater = LayoutInflater.from(mContext);
-        mPm = context.getPackageManager();
 
         mApps = apps;
+        buildSections();
+
+        // set the default icon till the actual app icon is loaded in async task
+        mDefaultImg = mContext.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
+        mIconCache = AppIconCache.getInstance(mContext);
+    }
+
+    private void buildSections() {
+        String lastSectionIndex = null;
+        ArrayList<String> sections = new ArrayList<String>();
+        ArrayList<Integer> positions = new ArrayList<Integer>();
+        int count = mApps.size();
+
+        for (int i = 0; i < count; i++) {
+            String sectionIndex = mApps.get(i).section;
+            if (lastSectionIndex == null) {
+                lastSectionIndex = sectionIndex;
+            }
+
+            if (!TextUtils.equals(sectionIndex, lastSectionIndex)) {
+                sections.add(sectionIndex);
+                positions.add(i);
+                lastSectionIndex = sectionIndex;
+            }
+        }
+
         mSections = sections.toArray(new String[sections.size()]);
         mPositions = new int[positions.size()];
         for (int i = 0; i < positions.size(); i++) {
             mPositions[i] = positions.get(i);
         }
-
-        // set the default icon till the actual app icon is loaded in async task
-        mDefaultImg = mContext.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
-        mIcons = new ConcurrentHashMap<String, Drawable>();
-
-        new LoadIconsTask().execute(apps.toArray(new PrivacyGuardManager.AppInfo[]{}));
     }
 
     @Override
@@ -97,6 +121,7 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
             appHolder.icon = (ImageView) convertView.findViewById(R.id.app_icon);
             appHolder.privacyGuardIcon = (ImageView) convertView.findViewById(R.id.app_privacy_guard_icon);
             convertView.setTag(appHolder);
+            mHolders.add(appHolder);
         } else {
             appHolder = (PrivacyGuardAppViewHolder) convertView.getTag();
         }
@@ -105,8 +130,13 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
 
         appHolder.title.setText(app.title);
 
-        Drawable icon = mIcons.get(app.packageName);
+        appHolder.app = app;
+        Drawable icon = mIconCache.peekIcon(app.packageName, UserHandle.getUserId(app.uid));
         appHolder.icon.setImageDrawable(icon != null ? icon : mDefaultImg);
+        appHolder.iconLoaded = icon != null;
+        if (!appHolder.iconLoaded) {
+            loadNextIcon();
+        }
 
         int privacyGuardDrawableResId = app.privacyGuardEnabled
                 ? com.android.internal.R.drawable.ic_privacy_guard :
@@ -150,27 +180,50 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
     }
 
     /**
-     * An asynchronous task to load the icons of the installed applications.
+     * Starts loading the icon of a row that is showing the default one, unless an icon is
+     * being loaded already. Rows scrolled past before their turn came are never loaded.
      */
-    private class LoadIconsTask extends AsyncTask<PrivacyGuardManager.AppInfo, Void, Void> {
-        @Override
-        protected Void doInBackground(PrivacyGuardManager.AppInfo... apps) {
-            for (PrivacyGuardManager.AppInfo app : apps) {
-                try {
-                    Drawable icon = mPm.getApplicationIcon(app.packageName);
-                    mIcons.put(app.packageName, icon);
-                    publishProgress();
-                } catch (PackageManager.NameNotFoundException e) {
-                    // ignored; app will show up with default image
-                }
+    private void loadNextIcon() {
+        if (mLoadIconTask != null) {
+            return;
+        }
+        for (PrivacyGuardAppViewHolder holder : mHolders) {
+            if (holder.app != null && !holder.iconLoaded) {
+                mLoadIconTask = new LoadIconTask(holder.app);
+                mLoadIconTask.execute();
+                return;
             }
+        }
+    }
 
-            return null;
+    /**
+     * An asynchronous task to load the icon of an application into the shared cache.
+     */
+    private class LoadIconTask extends AsyncTask<Void, Void, Drawable> {
+        private final AppInfo mApp;
+
+        LoadIconTask(AppInfo app) {
+            mApp = app;
         }
 
         @Override
-        protected void onProgressUpdate(Void... progress) {
-            notifyDataSetChanged();
+        protected Drawable doInBackground(Void... params) {
+            return mIconCache.getIcon(mApp.info);
+        }
+
+        @Override
+        protected void onPostExecute(Drawable icon) {
+            for (PrivacyGuardAppViewHolder holder : mHolders) {
+                if (holder.app == mApp) {
+                    // Apps without an icon keep the default one
+                    if (icon != null) {
+                        holder.icon.setImageDrawable(icon);
+                    }
+                    holder.iconLoaded = true;
+                }
+            }
+            mLoadIconTask = null;
+            loadNextIcon();
         }
     }
 
@@ -181,5 +234,7 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
         TextView title;
         ImageView icon;
         ImageView privacyGuardIcon;
+        AppInfo app;
+        boolean iconLoaded;
     }
 }
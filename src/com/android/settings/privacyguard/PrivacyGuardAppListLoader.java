@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.privacyguard;
+
+import android.app.Activity;
+import android.app.AppOpsManager;
+import android.content.AsyncTaskLoader;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+
+import com.android.settings.privacyguard.PrivacyGuardManager.AppInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Loads the apps listed by {@link PrivacyGuardManager}, sorted and with
+ * their section, in the background.
+ *
+ * The last list is kept for the whole process, so that opening the screen
+ * again shows it right away while it is loaded again, as the privacy guard
+ * settings may have changed since; it is dropped when a package or the
+ * locale changes.
+ */
+public class PrivacyGuardAppListLoader extends AsyncTaskLoader<List<AppInfo>> {
+    static final String PREFS_NAME = "privacy_guard_manager";
+    static final String KEY_SHOW_SYSTEM_APPS = "show_system_apps";
+
+    private static final Object sLock = new Object();
+    private static BroadcastReceiver sCacheInvalidator;
+    // Guarded by sLock
+    private static List<AppInfo> sCachedApps;
+    private static boolean sCachedShowSystemApps;
+
+    private final PackageManager mPm;
+    private final AppOpsManager mAppOps;
+
+    private List<AppInfo> mApps;
+    private PackageIntentReceiver mPackageObserver;
+
+    /**
+     * Reloads the loader when packages change, while it is started.
+     */
+    private static class PackageIntentReceiver extends BroadcastReceiver {
+        final PrivacyGuardAppListLoader mLoader;
+
+        PackageIntentReceiver(PrivacyGuardAppListLoader loader) {
+            mLoader = loader;
+            registerPackageReceiver(mLoader.getContext(), this);
+        }
+
+        @Override public void onReceive(Context context, Intent intent) {
+            mLoader.onContentChanged();
+        }
+    }
+
+    public PrivacyGuardAppListLoader(Context context) {
+        super(context);
+        mPm = context.getPackageManager();
+        mAppOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+    }
+
+    private static void registerPackageReceiver(Context context, BroadcastReceiver receiver) {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(receiver, filter);
+        // Register for events related to sdcard installation.
+        IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(receiver, sdFilter);
+    }
+
+    private boolean shouldShowSystemApps() {
+        return getContext().getSharedPreferences(PREFS_NAME, Activity.MODE_PRIVATE)
+                .getBoolean(KEY_SHOW_SYSTEM_APPS, false);
+    }
+
+    @Override public List<AppInfo> loadInBackground() {
+        final boolean showSystemApps = shouldShowSystemApps();
+        final List<AppInfo> apps = loadInstalledApps(showSystemApps);
+        synchronized (sLock) {
+            if (sCacheInvalidator == null) {
+                sCacheInvalidator = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        synchronized (sLock) {
+                            sCachedApps = null;
+                        }
+                    }
+                };
+                final Context appContext = getContext().getApplicationContext();
+                registerPackageReceiver(appContext, sCacheInvalidator);
+                // Labels and sections are localized
+                appContext.registerReceiver(sCacheInvalidator,
+                        new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+            }
+            sCachedApps = apps;
+            sCachedShowSystemApps = showSystemApps;
+        }
+        return apps;
+    }
+
+    /**
+    * Uses the package manager to query for all currently installed apps
+    * for the list.
+    *
+    * @return the complete List off installed applications (@code PrivacyGuardAppInfo)
+    */
+    private List<AppInfo> loadInstalledApps(boolean showSystemApps) {
+        List<AppInfo> apps = new ArrayList<AppInfo>();
+        List<PackageInfo> packages = mPm.getInstalledPackages(
+            PackageManager.GET_PERMISSIONS | PackageManager.GET_SIGNATURES);
+        Signature platformCert;
+
+        try {
+            PackageInfo sysInfo = mPm.getPackageInfo("android", PackageManager.GET_SIGNATURES);
+            platformCert = sysInfo.signatures[0];
+        } catch (PackageManager.NameNotFoundException e) {
+            platformCert = null;
+        }
+
+        for (PackageInfo info : packages) {
+            final ApplicationInfo appInfo = info.applicationInfo;
+
+            // hide apps signed with the platform certificate to avoid the user
+            // shooting himself in the foot
+            if (platformCert != null && info.signatures != null
+                    && platformCert.equals(info.signatures[0])) {
+                continue;
+            }
+
+            // skip all system apps if they shall not be included
+            if (!showSystemApps && (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
+                continue;
+            }
+
+            AppInfo app = new AppInfo();
+            app.title = appInfo.loadLabel(mPm).toString();
+            app.packageName = info.packageName;
+            app.enabled = appInfo.enabled;
+            app.uid = info.applicationInfo.uid;
+            app.info = appInfo;
+            app.privacyGuardEnabled = mAppOps.getPrivacyGuardSettingForPackage(
+                    app.uid, app.packageName);
+
+            if (!app.enabled) {
+                app.section = "--"; //XXX
+            } else if (app.title.isEmpty()) {
+                app.section = "";
+            } else {
+                app.section = app.title.substring(0, 1).toUpperCase();
+            }
+            apps.add(app);
+        }
+
+        // sort the apps by their enabled state, then by title
+        Collections.sort(apps, new Comparator<AppInfo>() {
+            @Override
+            public int compare(AppInfo lhs, AppInfo rhs) {
+                if (lhs.enabled != rhs.enabled) {
+                    return lhs.enabled ? -1 : 1;
+                }
+                return lhs.title.compareToIgnoreCase(rhs.title);
+            }
+        });
+
+        return apps;
+    }
+
+    @Override public void deliverResult(List<AppInfo> apps) {
+        mApps = apps;
+        if (isStarted()) {
+            super.deliverResult(apps);
+        }
+    }
+
+    @Override protected void onStartLoading() {
+        boolean fromCache = false;
+        if (mApps == null) {
+            // Show the list of the last load, if still valid, while loading
+            synchronized (sLock) {
+                if (sCachedApps != null && sCachedShowSystemApps == shouldShowSystemApps()) {
+                    mApps = sCachedApps;
+                    fromCache = true;
+                }
+            }
+        }
+        if (mApps != null) {
+            deliverResult(mApps);
+        }
+
+        // Start watching for changes in the app data.
+        if (mPackageObserver == null) {
+            mPackageObserver = new PackageIntentReceiver(this);
+        }
+
+        if (takeContentChanged() || mApps == null || fromCache) {
+            forceLoad();
+        }
+    }
+
+    @Override protected void onStopLoading() {
+        // Attempt to cancel the current load task if possible.
+        cancelLoad();
+    }
+
+    @Override protected void onReset() {
+        super.onReset();
+
+        // Ensure the loader is stopped
+        onStopLoading();
+
+        mApps = null;
+
+        // Stop monitoring for changes.
+        if (mPackageObserver != null) {
+            getContext().unregisterReceiver(mPackageObserver);
+            mPackageObserver = null;
+        }
+    }
+}
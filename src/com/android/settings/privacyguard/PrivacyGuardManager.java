@@ -23,20 +23,18 @@ import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
 import android.app.FragmentManager;
+import android.app.LoaderManager;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.Signature;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
-import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -56,13 +54,11 @@ import com.android.settings.applications.AppOpsDetails;
 import com.android.settings.applications.AppOpsState;
 import com.android.settings.applications.AppOpsState.OpsTemplate;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public class PrivacyGuardManager extends Fragment
-        implements OnItemClickListener, OnItemLongClickListener {
+        implements OnItemClickListener, OnItemLongClickListener,
+        LoaderManager.LoaderCallbacks<List<PrivacyGuardManager.AppInfo>> {
 
     private static final String TAG = "PrivacyGuardManager";
 
@@ -71,7 +67,6 @@ public class PrivacyGuardManager extends Fragment
     private PrivacyGuardAppListAdapter mAdapter;
     private List<AppInfo> mApps;
 
-    private PackageManager mPm;
     private Activity mActivity;
 
     private SharedPreferences mPreferences;
@@ -80,6 +75,10 @@ public class PrivacyGuardManager extends Fragment
     private int mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
     private int mSavedFirstItemOffset;
 
+    // Whether to reload when resumed, because the privacy guard settings may have been
+    // changed by the screens we started
+    private boolean mReloadOnResume;
+
     // keys for extras and icicles
     private final static String LAST_LIST_POS = "last_list_pos";
     private final static String LAST_LIST_OFFSET = "last_list_offset";
@@ -91,6 +90,8 @@ public class PrivacyGuardManager extends Fragment
         boolean enabled;
         boolean privacyGuardEnabled;
         int uid;
+        ApplicationInfo info;
+        String section;
     }
 
     @Override
@@ -98,7 +99,6 @@ public class PrivacyGuardManager extends Fragment
             Bundle savedInstanceState) {
 
         mActivity = getActivity();
-        mPm = mActivity.getPackageManager();
         mAppOps = (AppOpsManager)getActivity().getSystemService(Context.APP_OPS_SERVICE);
 
         return inflater.inflate(R.layout.privacy_guard_manager, container, false);
@@ -125,7 +125,8 @@ public class PrivacyGuardManager extends Fragment
         mAppsList.setOnItemLongClickListener(this);
 
         // get shared preference
-        mPreferences = mActivity.getSharedPreferences("privacy_guard_manager", Activity.MODE_PRIVATE);
+        mPreferences = mActivity.getSharedPreferences(PrivacyGuardAppListLoader.PREFS_NAME,
+                Activity.MODE_PRIVATE);
         if (!mPreferences.getBoolean("first_help_shown", false)) {
             showHelp();
         }
@@ -139,8 +140,8 @@ public class PrivacyGuardManager extends Fragment
             mSavedFirstItemOffset = 0;
         }
 
-        // load apps and construct the list
-        loadApps();
+        // load apps in the background and construct the list once loaded
+        getLoaderManager().initLoader(0, null, this);
 
         setHasOptionsMenu(true);
     }
@@ -174,17 +175,38 @@ public class PrivacyGuardManager extends Fragment
     public void onResume() {
         super.onResume();
 
-        // rebuild the list; the user might have changed settings inbetween
-        loadApps();
-
-        if (mSavedFirstVisiblePosition != AdapterView.INVALID_POSITION) {
-            mAppsList.setSelectionFromTop(mSavedFirstVisiblePosition, mSavedFirstItemOffset);
+        // rebuild the list if the user might have changed settings inbetween
+        if (mReloadOnResume) {
+            mReloadOnResume = false;
+            reloadApps();
+        } else if (mAdapter != null) {
+            // The list is still there, and so is its scroll position
             mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
         }
     }
 
-    private void loadApps() {
-        mApps = loadInstalledApps();
+    private void reloadApps() {
+        Loader<List<AppInfo>> loader = getLoaderManager().getLoader(0);
+        if (loader != null) {
+            loader.onContentChanged();
+        }
+    }
+
+    @Override
+    public Loader<List<AppInfo>> onCreateLoader(int id, Bundle args) {
+        return new PrivacyGuardAppListLoader(mActivity);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<List<AppInfo>> loader, List<AppInfo> apps) {
+        // Keep the scroll position when the list is reloaded
+        if (mAdapter != null && mSavedFirstVisiblePosition == AdapterView.INVALID_POSITION) {
+            mSavedFirstVisiblePosition = mAppsList.getFirstVisiblePosition();
+            View firstChild = mAppsList.getChildAt(0);
+            mSavedFirstItemOffset = (firstChild == null) ? 0 : firstChild.getTop();
+        }
+
+        mApps = apps;
 
         // if app list is empty inform the user
         // else go ahead and construct the list
@@ -196,42 +218,22 @@ public class PrivacyGuardManager extends Fragment
         } else {
             mNoUserAppsInstalled.setVisibility(View.GONE);
             mAppsList.setVisibility(View.VISIBLE);
-            mAdapter = createAdapter();
+            mAdapter = new PrivacyGuardAppListAdapter(mActivity, mApps);
             mAppsList.setAdapter(mAdapter);
             mAppsList.setFastScrollEnabled(true);
         }
-    }
 
-    private PrivacyGuardAppListAdapter createAdapter() {
-        String lastSectionIndex = null;
-        ArrayList<String> sections = new ArrayList<String>();
-        ArrayList<Integer> positions = new ArrayList<Integer>();
-        int count = mApps.size(), offset = 0;
-
-        for (int i = 0; i < count; i++) {
-            AppInfo app = mApps.get(i);
-            String sectionIndex;
-
-            if (!app.enabled) {
-                sectionIndex = "--"; //XXX
-            } else if (app.title.isEmpty()) {
-                sectionIndex = "";
-            } else {
-                sectionIndex = app.title.substring(0, 1).toUpperCase();
-            }
-            if (lastSectionIndex == null) {
-                lastSectionIndex = sectionIndex;
-            }
-
-            if (!TextUtils.equals(sectionIndex, lastSectionIndex)) {
-                sections.add(sectionIndex);
-                positions.add(offset);
-                lastSectionIndex = sectionIndex;
-            }
-            offset++;
+        if (mSavedFirstVisiblePosition != AdapterView.INVALID_POSITION) {
+            mAppsList.setSelectionFromTop(mSavedFirstVisiblePosition, mSavedFirstItemOffset);
+            mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
         }
+    }
 
-        return new PrivacyGuardAppListAdapter(mActivity, mApps, sections, positions);
+    @Override
+    public void onLoaderReset(Loader<List<AppInfo>> loader) {
+        mApps = null;
+        mAdapter = null;
+        mAppsList.setAdapter(null);
     }
 
     private void resetPrivacyGuard() {
@@ -260,73 +262,15 @@ public class PrivacyGuardManager extends Fragment
         Bundle args = new Bundle();
         args.putString(AppOpsDetails.ARG_PACKAGE_NAME, app.packageName);
 
+        mReloadOnResume = true;
         PreferenceActivity pa = (PreferenceActivity)getActivity();
         pa.startPreferencePanel(AppOpsDetails.class.getName(), args,
                 R.string.app_ops_settings, null, this, 2);
         return true;
     }
 
-    /**
-    * Uses the package manager to query for all currently installed apps
-    * for the list.
-    *
-    * @return the complete List off installed applications (@code PrivacyGuardAppInfo)
-    */
-    private List<AppInfo> loadInstalledApps() {
-        List<AppInfo> apps = new ArrayList<AppInfo>();
-        List<PackageInfo> packages = mPm.getInstalledPackages(
-            PackageManager.GET_PERMISSIONS | PackageManager.GET_SIGNATURES);
-        boolean showSystemApps = shouldShowSystemApps();
-        Signature platformCert;
-
-        try {
-            PackageInfo sysInfo = mPm.getPackageInfo("android", PackageManager.GET_SIGNATURES);
-            platformCert = sysInfo.signatures[0];
-        } catch (PackageManager.NameNotFoundException e) {
-            platformCert = null;
-        }
-
-        for (PackageInfo info : packages) {
-            final ApplicationInfo appInfo = info.applicationInfo;
-
-            // hide apps signed with the platform certificate to avoid the user
-            // shooting himself in the foot
-            if (platformCert != null && info.signatures != null
-                    && platformCert.equals(info.signatures[0])) {
-                continue;
-            }
-
-            // skip all system apps if they shall not be included
-            if (!showSystemApps && (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
-                continue;
-            }
-
-            AppInfo app = new AppInfo();
-            app.title = appInfo.loadLabel(mPm).toString();
-            app.packageName = info.packageName;
-            app.enabled = appInfo.enabled;
-            app.uid = info.applicationInfo.uid;
-            app.privacyGuardEnabled = mAppOps.getPrivacyGuardSettingForPackage(
-                    app.uid, app.packageName);
-            apps.add(app);
-        }
-
-        // sort the apps by their enabled state, then by title
-        Collections.sort(apps, new Comparator<AppInfo>() {
-            @Override
-            public int compare(AppInfo lhs, AppInfo rhs) {
-                if (lhs.enabled != rhs.enabled) {
-                    return lhs.enabled ? -1 : 1;
-                }
-                return lhs.title.compareToIgnoreCase(rhs.title);
-            }
-        });
-
-        return apps;
-    }
-
     private boolean shouldShowSystemApps() {
-        return mPreferences.getBoolean("show_system_apps", false);
+        return mPreferences.getBoolean(PrivacyGuardAppListLoader.KEY_SHOW_SYSTEM_APPS, false);
     }
 
     private class HelpDialogFragment extends DialogFragment {
@@ -404,16 +348,17 @@ public class PrivacyGuardManager extends Fragment
                 resetPrivacyGuard();
                 return true;
             case R.id.show_system_apps:
-                final String prefName = "show_system_apps";
+                final String prefName = PrivacyGuardAppListLoader.KEY_SHOW_SYSTEM_APPS;
                 // set the menu checkbox and save it in
                 // shared preference and rebuild the list
                 item.setChecked(!item.isChecked());
                 mPreferences.edit().putBoolean(prefName, item.isChecked()).commit();
-                loadApps();
+                reloadApps();
                 return true;
             case R.id.advanced:
                 Intent i = new Intent(Intent.ACTION_MAIN);
                 i.setClass(mActivity, AppOpsSummaryActivity.class);
+                mReloadOnResume = true;
                 mActivity.startActivity(i);
                 return true;
             default:
@@ -25,12 +25,13 @@ public final class DatabaseContract {
 
     public static final String TABLE_NAME = "settings";
 
+    public static final String SOURCES_TABLE_NAME = "sources";
+
     private DatabaseContract() {}
 
     public static class Settings implements BaseColumns {
         public static String ACTION_TITLE = "title";
 
-        public static String ACTION_HEADER = "header";
 
         public static String ACTION_ICON = "icon";
 
@@ -41,5 +42,43 @@ public final class DatabaseContract {
         public static String ACTION_PARENT_TITLE = "parent_title";
 
         public static String ACTION_KEY = "key";
+
+        public static String ACTION_SOURCE = "source";
+
+        // Header of a top level entry, decoded only when the entry is opened
+        public static String HEADER_ID = "header_id";
+
+        public static String HEADER_TITLE_RES = "header_title_res";
+
+        public static String HEADER_BREADCRUMB_TITLE_RES = "header_breadcrumb_title_res";
+
+        public static String HEADER_BREADCRUMB_SHORT_TITLE_RES =
+                "header_breadcrumb_short_title_res";
+
+        public static String HEADER_INTENT = "header_intent";
+
+        public static String HEADER_ARGUMENTS = "header_arguments";
+
+        public static String HEADER_SUMMARY_RES = "header_summary_res";
+
+        public static String HEADER_SUMMARY = "header_summary";
+
+        public static String HEADER_BREADCRUMB_TITLE = "header_breadcrumb_title";
+
+        public static String HEADER_BREADCRUMB_SHORT_TITLE = "header_breadcrumb_short_title";
+
+        public static String HEADER_EXTRAS = "header_extras";
+    }
+
+    public static class Sources {
+        public static String SOURCE = "source";
+
+        public static String HASH = "hash";
+
+        // What the source was parsed from; if unchanged, it isn't parsed again
+        public static String FINGERPRINT = "fingerprint";
+
+        // The source that includes this one, if any
+        public static String PARENT = "parent";
     }
 }
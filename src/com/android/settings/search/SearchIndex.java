@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import com.android.settings.search.SettingsSearchFilterAdapter.SearchInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Prefix index over the titles of all searchable settings.
+ *
+ * Titles are normalized by lower-casing them and dropping everything but
+ * letters and digits.  For every word of a title the index holds the rest of
+ * the normalized title starting at that word, so that a query matches a title
+ * if it is a prefix of one of those keys.  The keys are kept in one sorted
+ * array, so a lookup is a binary search followed by a scan over the matches.
+ */
+public class SearchIndex {
+    // Match quality, lower is better.
+    private static final int RANK_TITLE_START = 0;
+    private static final int RANK_WORD_START = 1;
+
+    private final List<SearchInfo> mInfos;
+
+    // Maps each character of an entry's normalized title to its offset in
+    // the original title, for highlighting.
+    private final int[][] mOffsets;
+
+    // Sorted keys and, for each key, the entry and normalized offset it
+    // starts at.
+    private final String[] mKeys;
+    private final int[] mKeyEntries;
+    private final int[] mKeyStarts;
+
+    /**
+     * A single match of a query, in terms of the original title.
+     */
+    public static class Match {
+        public final int start;
+        public final int end;
+
+        Match(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * An entry matching a query, with the spans of its title to highlight.
+     */
+    public static class Result {
+        public final SearchInfo info;
+        public final ArrayList<Match> matches = new ArrayList<Match>(1);
+        final int index;
+        int rank = Integer.MAX_VALUE;
+
+        Result(SearchInfo info, int index) {
+            this.info = info;
+            this.index = index;
+        }
+    }
+
+    private static final Comparator<Result> RANK_COMPARATOR = new Comparator<Result>() {
+        @Override
+        public int compare(Result lhs, Result rhs) {
+            if (lhs.rank != rhs.rank) {
+                return lhs.rank < rhs.rank ? -1 : 1;
+            }
+            // Prefer short titles, which match the query more closely.
+            final int lhsLen = lhs.info.title.length();
+            final int rhsLen = rhs.info.title.length();
+            if (lhsLen != rhsLen) {
+                return lhsLen < rhsLen ? -1 : 1;
+            }
+            if (lhs.info.level != rhs.info.level) {
+                return lhs.info.level < rhs.info.level ? -1 : 1;
+            }
+            return lhs.index - rhs.index;
+        }
+    };
+
+    private static class Key {
+        final String key;
+        final int entry;
+        final int start;
+
+        Key(String key, int entry, int start) {
+            this.key = key;
+            this.entry = entry;
+            this.start = start;
+        }
+    }
+
+    public SearchIndex(List<SearchInfo> infos) {
+        mInfos = infos;
+        mOffsets = new int[infos.size()][];
+
+        ArrayList<Key> keys = new ArrayList<Key>();
+        StringBuilder normalized = new StringBuilder();
+        for (int i = 0; i < infos.size(); i++) {
+            final String title = infos.get(i).title;
+            final int len = title.length();
+            int[] offsets = new int[len];
+            int[] wordStarts = new int[len];
+            int numWords = 0;
+            boolean inWord = false;
+
+            normalized.setLength(0);
+            for (int j = 0; j < len; j++) {
+                final char c = Character.toLowerCase(title.charAt(j));
+                if (Character.isLetter(c) || Character.isDigit(c)) {
+                    if (!inWord) {
+                        wordStarts[numWords++] = normalized.length();
+                        inWord = true;
+                    }
+                    offsets[normalized.length()] = j;
+                    normalized.append(c);
+                } else {
+                    inWord = false;
+                }
+            }
+            mOffsets[i] = Arrays.copyOf(offsets, normalized.length());
+
+            final String normalizedTitle = normalized.toString();
+            for (int w = 0; w < numWords; w++) {
+                keys.add(new Key(normalizedTitle.substring(wordStarts[w]), i, wordStarts[w]));
+            }
+        }
+
+        Collections.sort(keys, new Comparator<Key>() {
+            @Override
+            public int compare(Key lhs, Key rhs) {
+                return lhs.key.compareTo(rhs.key);
+            }
+        });
+
+        final int count = keys.size();
+        mKeys = new String[count];
+        mKeyEntries = new int[count];
+        mKeyStarts = new int[count];
+        for (int i = 0; i < count; i++) {
+            Key key = keys.get(i);
+            mKeys[i] = key.key;
+            mKeyEntries[i] = key.entry;
+            mKeyStarts[i] = key.start;
+        }
+    }
+
+    public List<SearchInfo> getInfos() {
+        return mInfos;
+    }
+
+    /**
+     * Returns the entries whose title has a word, or a run of words, starting
+     * with the given query.  Results are ordered by match quality.
+     */
+    public ArrayList<Result> query(CharSequence constraint) {
+        ArrayList<Result> results = new ArrayList<Result>();
+        final String query = normalize(constraint);
+        if (query.isEmpty()) {
+            return results;
+        }
+
+        Result[] byEntry = new Result[mInfos.size()];
+        int pos = Arrays.binarySearch(mKeys, query);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        final int queryLen = query.length();
+        for (; pos < mKeys.length && mKeys[pos].startsWith(query); pos++) {
+            final int entry = mKeyEntries[pos];
+            final int start = mKeyStarts[pos];
+            Result result = byEntry[entry];
+            if (result == null) {
+                result = new Result(mInfos.get(entry), entry);
+                byEntry[entry] = result;
+                results.add(result);
+            }
+            final int[] offsets = mOffsets[entry];
+            result.matches.add(new Match(offsets[start], offsets[start + queryLen - 1] + 1));
+            result.rank = Math.min(result.rank,
+                    start == 0 ? RANK_TITLE_START : RANK_WORD_START);
+        }
+
+        Collections.sort(results, RANK_COMPARATOR);
+        return results;
+    }
+
+    static String normalize(CharSequence s) {
+        if (s == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = Character.toLowerCase(s.charAt(i));
+            if (Character.isLetter(c) || Character.isDigit(c)) {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
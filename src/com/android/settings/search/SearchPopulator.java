@@ -27,7 +27,6 @@ import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
-import android.os.Parcel;
 import android.os.ResultReceiver;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceActivity.Header;
@@ -48,6 +47,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -57,9 +57,41 @@ public class SearchPopulator extends IntentService {
     public static final String EXTRA_NOTIFIER = "notifier";
     public static final String EXTRA_PREF_KEY = "pref_key";
 
+    /** Result code sent to the notifier if the search data changed. */
+    public static final int RESULT_CHANGED = 1;
+    /** Result code sent to the notifier if the search data is unchanged. */
+    public static final int RESULT_UNCHANGED = 0;
+
     private static final String LAST_PACKAGE_HASH = "last_package_hash";
     private static final String LAST_LOCALE = "last_locale";
 
+    // Entries are grouped by the header or XML resource they come from, so
+    // that only the groups whose content changed are rewritten.
+    private static final String HEADER_SOURCE_PREFIX = "header:";
+    private static final String XML_SOURCE_PREFIX = "xml:";
+
+    // Headers are left out; they are loaded when an entry is opened.  A title
+    // found in several sources is listed once, from the one sorted first:
+    // the shallowest, then by source name.  Sources are rewritten one by
+    // one, so the order they were written in doesn't say which one wins.
+    private static final String[] LOAD_PROJECTION = new String[] {
+        DatabaseContract.Settings._ID,
+        DatabaseContract.Settings.ACTION_LEVEL,
+        DatabaseContract.Settings.ACTION_FRAGMENT,
+        DatabaseContract.Settings.ACTION_TITLE,
+        DatabaseContract.Settings.ACTION_ICON,
+        DatabaseContract.Settings.ACTION_PARENT_TITLE,
+        DatabaseContract.Settings.ACTION_KEY
+    };
+
+    private static final String LOAD_ORDER = DatabaseContract.Settings.ACTION_TITLE + ", "
+            + DatabaseContract.Settings.ACTION_LEVEL + ", "
+            + DatabaseContract.Settings.ACTION_SOURCE;
+
+    // The APK and a fingerprint of the strings and headers, while populating
+    private ZipFile mApk;
+    private long mHeadersFingerprint;
+
     public SearchPopulator() {
         super(TAG);
     }
@@ -74,22 +106,33 @@ public class SearchPopulator extends IntentService {
         String lastLocale = sharedPreferences.getString(LAST_LOCALE, null);
         String currentLocale = getResources().getConfiguration().locale.toString();
 
+        boolean changed = false;
         if (lastHash != currentHash || !TextUtils.equals(lastLocale, currentLocale)) {
-            populateDatabase();
+            changed = populateDatabase();
             sharedPreferences.edit()
                     .putInt(LAST_PACKAGE_HASH, currentHash)
                     .putString(LAST_LOCALE, currentLocale)
                     .commit();
         }
-        notifier.send(0, null);
+        notifier.send(changed ? RESULT_CHANGED : RESULT_UNCHANGED, null);
     }
 
-    private void populateDatabase() {
+    /**
+     * Parses the headers and every preference XML included for search that
+     * changed since the last pass, and rewrites the entries of those whose
+     * content changed.
+     *
+     * @return whether the database was changed
+     */
+    private boolean populateDatabase() {
         SettingsSearchDatabaseHelper dbHelper = SettingsSearchDatabaseHelper.getInstance(this);
-        dbHelper.wipeTable();
+        SettingsSearchDatabaseHelper.Batch batch = dbHelper.newBatch();
 
         XmlResourceParser parser = null;
         try {
+            mApk = openApk();
+            mHeadersFingerprint = getXmlFingerprint(R.xml.settings_headers,
+                    getStringsFingerprint());
             parser = getResources().getXml(R.xml.settings_headers);
             AttributeSet attrs = Xml.asAttributeSet(parser);
 
@@ -135,10 +178,10 @@ public class SearchPopulator extends IntentService {
                         continue;
                     }
 
-                    dbHelper.insertHeader(header);
+                    batch.insertHeader(getHeaderSource(header), header);
                     if (xmlResId != 0) {
-                        populateFromXml(xmlResId, header, 1, header.iconRes,
-                                header.fragment, header.titleRes);
+                        populateFromXml(batch, xmlResId, header, 1, header.iconRes,
+                                header.fragment, header.titleRes, null, mHeadersFingerprint);
                     }
                 } else {
                     XmlUtils.skipCurrentTag(parser);
@@ -150,7 +193,17 @@ public class SearchPopulator extends IntentService {
             throw new RuntimeException("Error parsing headers", e);
         } finally {
             if (parser != null) parser.close();
+            closeApk();
         }
+
+        return dbHelper.applyBatch(batch);
+    }
+
+    private static String getHeaderSource(Header header) {
+        if (header.id != PreferenceActivity.HEADER_ID_UNDEFINED) {
+            return HEADER_SOURCE_PREFIX + header.id;
+        }
+        return HEADER_SOURCE_PREFIX + header.fragment;
     }
 
     private Header parseHeader(XmlResourceParser parser, AttributeSet attrs)
@@ -172,6 +225,16 @@ public class SearchPopulator extends IntentService {
             }
         }
 
+        // Fetch summary
+        tv = sa.peekValue(com.android.internal.R.styleable.PreferenceHeader_summary);
+        if (tv != null && tv.type == TypedValue.TYPE_STRING) {
+            if (tv.resourceId != 0) {
+                header.summaryRes = tv.resourceId;
+            } else {
+                header.summary = tv.string;
+            }
+        }
+
         // Fetch breadcrumb title
         tv = sa.peekValue(com.android.internal.R.styleable.PreferenceHeader_breadCrumbTitle);
         if (tv != null && tv.type == TypedValue.TYPE_STRING) {
@@ -232,10 +295,15 @@ public class SearchPopulator extends IntentService {
         return header;
     }
 
-    private void populateFromXml(int xmlResId, Header header,
-            int level, int iconRes, String prefFragment, int titleRes)
-            throws XmlPullParserException {
-        SettingsSearchDatabaseHelper dbHelper = SettingsSearchDatabaseHelper.getInstance(this);
+    private void populateFromXml(SettingsSearchDatabaseHelper.Batch batch, int xmlResId,
+            Header header, int level, int iconRes, String prefFragment, int titleRes,
+            String parentSource, long parentFingerprint) throws XmlPullParserException {
+        final String source = XML_SOURCE_PREFIX + getResources().getResourceEntryName(xmlResId);
+        final long fingerprint = getXmlFingerprint(xmlResId, parentFingerprint);
+        if (!batch.beginSource(source, parentSource, fingerprint)) {
+            // Unchanged; the entries of the last pass are kept
+            return;
+        }
         AttributeSet attributeSet;
         int type;
         XmlResourceParser xmlParser;
@@ -300,15 +368,15 @@ public class SearchPopulator extends IntentService {
                         com.android.settings.R.styleable.SearchableInfo_includeXmlForSearch, 0);
 
                 if (subXmlId != 0 && !TextUtils.isEmpty(fragment)) {
-                    populateFromXml(subXmlId, null, level + 1, header.iconRes,
-                            fragment, title.resourceId);
-                    dbHelper.insertEntry(preferenceTitle, level, fragment,
+                    populateFromXml(batch, subXmlId, null, level + 1, header.iconRes,
+                            fragment, title.resourceId, source, fingerprint);
+                    batch.insertEntry(source, preferenceTitle, level, fragment,
                             header.iconRes, titleRes, key);
                 } else if (header != null) {
                     header.title = preferenceTitle;
-                    dbHelper.insertHeader(header, titleRes, key);
+                    batch.insertHeader(source, header, titleRes, key);
                 } else {
-                    dbHelper.insertEntry(preferenceTitle, level, prefFragment,
+                    batch.insertEntry(source, preferenceTitle, level, prefFragment,
                             iconRes, titleRes, key);
                 }
 
@@ -320,35 +388,28 @@ public class SearchPopulator extends IntentService {
         }
     }
 
+    public static SearchIndex loadSearchIndex(Context context) {
+        return new SearchIndex(loadSearchData(context));
+    }
+
     public static ArrayList<SearchInfo> loadSearchData(Context context) {
         SettingsSearchDatabaseHelper dbHelper = SettingsSearchDatabaseHelper.getInstance(context);
         SQLiteDatabase database = dbHelper.getReadableDatabase();
-        Cursor c = database.query(DatabaseContract.TABLE_NAME, null, null, null, null, null, null);
+        Cursor c = database.query(DatabaseContract.TABLE_NAME, LOAD_PROJECTION,
+                null, null, null, null, LOAD_ORDER);
         ArrayList<SearchInfo> infos = new ArrayList<SearchInfo>();
 
         if (c != null) {
-            int levelIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_LEVEL);
-            int fragmentIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_FRAGMENT);
-            int titleIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_TITLE);
-            int iconIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_ICON);
-            int parentIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_PARENT_TITLE);
-            int headerIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_HEADER);
-            int keyIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_KEY);
+            String lastTitle = null;
             while (c.moveToNext()) {
-                byte[] data = c.getBlob(headerIndex);
-                Header header = null;
-                if (data != null) {
-                    Parcel p = Parcel.obtain();
-                    p.setDataPosition(0);
-                    p.unmarshall(data, 0, data.length);
-                    p.setDataPosition(0);
-                    header = new Header();
-                    header.readFromParcel(p);
+                final String title = c.getString(3);
+                if (!infos.isEmpty() && TextUtils.equals(title, lastTitle)) {
+                    continue;
                 }
-
-                SearchInfo info = new SearchInfo(header,
-                        c.getInt(levelIndex), c.getString(fragmentIndex), c.getString(titleIndex),
-                        c.getInt(iconIndex), c.getInt(parentIndex), c.getString(keyIndex));
+                lastTitle = title;
+                SearchInfo info = new SearchInfo(c.getLong(0),
+                        c.getInt(1), c.getString(2), c.getString(3),
+                        c.getInt(4), c.getInt(5), c.getString(6));
                 infos.add(info);
             }
             c.close();
@@ -357,6 +418,62 @@ public class SearchPopulator extends IntentService {
         return infos;
     }
 
+    private ZipFile openApk() {
+        try {
+            return new ZipFile(getApplicationInfo().sourceDir);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open " + getApplicationInfo().sourceDir, e);
+            return null;
+        }
+    }
+
+    private void closeApk() {
+        if (mApk != null) {
+            try {
+                mApk.close();
+            } catch (IOException e) {
+            }
+            mApk = null;
+        }
+    }
+
+    /**
+     * Returns a fingerprint of the resource table, which holds the strings
+     * and ids the preference XMLs refer to, for the current locale, or 0 if
+     * it can't be read.
+     */
+    private long getStringsFingerprint() {
+        ZipEntry entry = mApk != null ? mApk.getEntry("resources.arsc") : null;
+        if (entry == null || entry.getCrc() == -1) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(entry.getCrc()).array());
+        crc.update(getResources().getConfiguration().locale.toString().getBytes());
+        return crc.getValue();
+    }
+
+    /**
+     * Returns a fingerprint of the given XML, chained to the one of what it
+     * is included from, or 0 if it can't be told.  Entries parsed from an
+     * XML only change along with it.
+     */
+    private long getXmlFingerprint(int xmlResId, long parentFingerprint) {
+        if (mApk == null || parentFingerprint == 0) {
+            return 0;
+        }
+        TypedValue value = new TypedValue();
+        getResources().getValue(xmlResId, value, true);
+        ZipEntry entry = value.string != null ? mApk.getEntry(value.string.toString()) : null;
+        if (entry == null || entry.getCrc() == -1) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(16).putLong(parentFingerprint)
+                .putLong(entry.getCrc()).array());
+        return crc.getValue() != 0 ? crc.getValue() : 1;
+    }
+
     /**
      * Get a 32 bit hashcode for the given package.
      * @param packageName
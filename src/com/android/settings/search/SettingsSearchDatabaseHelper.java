@@ -16,21 +16,36 @@
 
 package com.android.settings.search;
 
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
 import android.os.Parcel;
 import android.preference.PreferenceActivity.Header;
 import android.text.TextUtils;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 
 public class SettingsSearchDatabaseHelper extends SQLiteOpenHelper {
+    private static final String TAG = SettingsSearchDatabaseHelper.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
     private static SettingsSearchDatabaseHelper mInstance = null;
 
     // general database configuration and tables
     private static final String sDatabaseName = "search.db";
 
-    protected static final int DATABASE_VERSION = 3;
+    protected static final int DATABASE_VERSION = 7;
     private Context mContext;
 
     public static SettingsSearchDatabaseHelper getInstance(Context context) {
@@ -44,6 +59,8 @@ public class SettingsSearchDatabaseHelper extends SQLiteOpenHelper {
     public SettingsSearchDatabaseHelper(Context context, int newVersion) {
         super(context, sDatabaseName, null, newVersion);
         mContext = context;
+        // Let searches read the old entries while they are being replaced.
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -51,74 +68,504 @@ public class SettingsSearchDatabaseHelper extends SQLiteOpenHelper {
         StringBuilder builder = new StringBuilder();
         builder.append("CREATE TABLE " + DatabaseContract.TABLE_NAME + "(" +
                 DatabaseContract.Settings._ID + " INTEGER PRIMARY KEY," +
-                DatabaseContract.Settings.ACTION_TITLE + " TEXT UNIQUE ON CONFLICT REPLACE," +
-                DatabaseContract.Settings.ACTION_HEADER + " TEXT," +
+                DatabaseContract.Settings.ACTION_TITLE + " TEXT," +
                 DatabaseContract.Settings.ACTION_ICON + " INTEGER," +
                 DatabaseContract.Settings.ACTION_LEVEL + " INTEGER," +
                 DatabaseContract.Settings.ACTION_FRAGMENT + " TEXT," +
                 DatabaseContract.Settings.ACTION_PARENT_TITLE + " INTEGER," +
-                DatabaseContract.Settings.ACTION_KEY + " TEXT" +
+                DatabaseContract.Settings.ACTION_KEY + " TEXT," +
+                DatabaseContract.Settings.ACTION_SOURCE + " TEXT," +
+                DatabaseContract.Settings.HEADER_ID + " INTEGER," +
+                DatabaseContract.Settings.HEADER_TITLE_RES + " INTEGER," +
+                DatabaseContract.Settings.HEADER_BREADCRUMB_TITLE_RES + " INTEGER," +
+                DatabaseContract.Settings.HEADER_BREADCRUMB_SHORT_TITLE_RES + " INTEGER," +
+                DatabaseContract.Settings.HEADER_INTENT + " TEXT," +
+                DatabaseContract.Settings.HEADER_ARGUMENTS + " BLOB," +
+                DatabaseContract.Settings.HEADER_SUMMARY_RES + " INTEGER," +
+                DatabaseContract.Settings.HEADER_SUMMARY + " TEXT," +
+                DatabaseContract.Settings.HEADER_BREADCRUMB_TITLE + " TEXT," +
+                DatabaseContract.Settings.HEADER_BREADCRUMB_SHORT_TITLE + " TEXT," +
+                DatabaseContract.Settings.HEADER_EXTRAS + " BLOB," +
+                // Titles repeated across sources are merged when loading
+                "UNIQUE (" + DatabaseContract.Settings.ACTION_SOURCE + "," +
+                DatabaseContract.Settings.ACTION_TITLE + ") ON CONFLICT REPLACE" +
                 ");");
         db.execSQL(builder.toString());
+        db.execSQL("CREATE INDEX " + DatabaseContract.Settings.ACTION_SOURCE + "_index ON " +
+                DatabaseContract.TABLE_NAME + "(" + DatabaseContract.Settings.ACTION_SOURCE +
+                ");");
+        db.execSQL("CREATE TABLE " + DatabaseContract.SOURCES_TABLE_NAME + "(" +
+                DatabaseContract.Sources.SOURCE + " TEXT PRIMARY KEY," +
+                DatabaseContract.Sources.HASH + " INTEGER," +
+                DatabaseContract.Sources.FINGERPRINT + " INTEGER," +
+                DatabaseContract.Sources.PARENT + " TEXT" +
+                ");");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         db.execSQL("DROP TABLE IF EXISTS settings");
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseContract.SOURCES_TABLE_NAME);
         onCreate(db);
     }
 
     public void wipeTable() {
         SQLiteDatabase database = getWritableDatabase();
-        database.delete(DatabaseContract.TABLE_NAME, null, null);
+        database.beginTransaction();
+        try {
+            database.delete(DatabaseContract.TABLE_NAME, null, null);
+            database.delete(DatabaseContract.SOURCES_TABLE_NAME, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 
-    public void insertHeader(Header header) {
-        insertHeader(header, 0, null);
+    /**
+     * A searchable entry, waiting to be written to the database.
+     */
+    private static class Entry {
+        // Header fields, only set for top level entries
+        boolean hasHeader;
+        long headerId;
+        int headerTitleRes;
+        int headerBreadCrumbTitleRes;
+        int headerBreadCrumbShortTitleRes;
+        int headerSummaryRes;
+        String headerSummary;
+        String headerBreadCrumbTitle;
+        String headerBreadCrumbShortTitle;
+        String headerIntent;
+        byte[] headerArguments;
+        byte[] headerExtras;
+
+        String title;
+        int level;
+        String fragment;
+        int iconRes;
+        int parentTitle;
+        String key;
     }
 
-    public void insertHeader(Header header, int parentTitle, String key) {
-        if (header == null) {
-            return;
+    /**
+     * A source as stored by the last indexing pass.
+     */
+    private static class StoredSource {
+        long hash;
+        long fingerprint;
+        String parent;
+    }
+
+    /**
+     * Collects the entries of a full indexing pass, grouped by the header or
+     * preference XML they come from.  Applying it only touches the groups
+     * whose content changed since the last pass.
+     */
+    public class Batch {
+        private final HashMap<String, StoredSource> mStoredSources;
+        private final LinkedHashMap<String, ArrayList<Entry>> mSources =
+                new LinkedHashMap<String, ArrayList<Entry>>();
+        private final HashMap<String, StoredSource> mNewSources =
+                new HashMap<String, StoredSource>();
+        private final HashSet<String> mKeptSources = new HashSet<String>();
+
+        private Batch(HashMap<String, StoredSource> storedSources) {
+            mStoredSources = storedSources;
         }
-        String title = null;
-        if (!TextUtils.isEmpty(header.title)) {
-            title = header.title.toString();
-        } else if (header.titleRes != 0) {
-            title = mContext.getString(header.titleRes);
+
+        /**
+         * Starts a source that is included from another one, if any.  If it
+         * was last indexed with the same fingerprint, its stored entries and
+         * those of the sources it includes are kept, and it doesn't need to
+         * be parsed again.  A fingerprint of 0 means unknown.
+         *
+         * @return whether the source needs to be parsed
+         */
+        public boolean beginSource(String source, String parent, long fingerprint) {
+            if (mKeptSources.contains(source)) {
+                return false;
+            }
+            final StoredSource stored = mStoredSources.get(source);
+            if (fingerprint != 0 && !mSources.containsKey(source)
+                    && stored != null && stored.fingerprint == fingerprint) {
+                keepSource(source);
+                return false;
+            }
+            final StoredSource newSource = new StoredSource();
+            newSource.fingerprint = fingerprint;
+            newSource.parent = parent;
+            mNewSources.put(source, newSource);
+            if (!mSources.containsKey(source)) {
+                mSources.put(source, new ArrayList<Entry>());
+            }
+            return true;
         }
-        if (TextUtils.isEmpty(title)) {
-            return;
+
+        private void keepSource(String source) {
+            mKeptSources.add(source);
+            for (Map.Entry<String, StoredSource> child : mStoredSources.entrySet()) {
+                if (source.equals(child.getValue().parent)
+                        && !mKeptSources.contains(child.getKey())) {
+                    keepSource(child.getKey());
+                }
+            }
         }
-        insertEntry(header, title, 0, null, header.iconRes, parentTitle, key);
-    }
 
-    public void insertEntry(String title, int level, String fragment,
-            int iconRes, int parentTitle, String key) {
-        if (TextUtils.isEmpty(title)) {
-            return;
+        public void insertHeader(String source, Header header) {
+            insertHeader(source, header, 0, null);
+        }
+
+        public void insertHeader(String source, Header header, int parentTitle, String key) {
+            if (header == null) {
+                return;
+            }
+            String title = null;
+            if (!TextUtils.isEmpty(header.title)) {
+                title = header.title.toString();
+            } else if (header.titleRes != 0) {
+                title = mContext.getString(header.titleRes);
+            }
+            if (TextUtils.isEmpty(title)) {
+                return;
+            }
+            // The header is copied now, as callers reuse it for several entries
+            Entry entry = addEntry(source, title, 0, header.fragment,
+                    header.iconRes, parentTitle, key);
+            entry.hasHeader = true;
+            entry.headerId = header.id;
+            entry.headerTitleRes = header.titleRes;
+            entry.headerBreadCrumbTitleRes = header.breadCrumbTitleRes;
+            entry.headerBreadCrumbShortTitleRes = header.breadCrumbShortTitleRes;
+            entry.headerSummaryRes = header.summaryRes;
+            entry.headerSummary = toString(header.summary);
+            entry.headerBreadCrumbTitle = toString(header.breadCrumbTitle);
+            entry.headerBreadCrumbShortTitle = toString(header.breadCrumbShortTitle);
+            if (header.intent != null) {
+                entry.headerIntent = header.intent.toUri(Intent.URI_INTENT_SCHEME);
+            }
+            // Marshalling will not cause an issue if the definition changes,
+            // since the content hash of the source changes along with it
+            entry.headerArguments = marshallBundle(header.fragmentArguments);
+            entry.headerExtras = marshallBundle(header.extras);
+        }
+
+        public void insertEntry(String source, String title, int level, String fragment,
+                int iconRes, int parentTitle, String key) {
+            if (TextUtils.isEmpty(title)) {
+                return;
+            }
+            addEntry(source, title, level, fragment, iconRes, parentTitle, key);
+        }
+
+        private Entry addEntry(String source, String title, int level,
+                String fragment, int iconRes, int parentTitle, String key) {
+            Entry entry = new Entry();
+            entry.title = title;
+            entry.level = level;
+            entry.fragment = fragment;
+            entry.iconRes = iconRes;
+            entry.parentTitle = parentTitle;
+            entry.key = key;
+
+            ArrayList<Entry> entries = mSources.get(source);
+            if (entries == null) {
+                entries = new ArrayList<Entry>();
+                mSources.put(source, entries);
+            }
+            entries.add(entry);
+            return entry;
         }
-        insertEntry(null, title, level, fragment, iconRes, parentTitle, key);
     }
 
-    private void insertEntry(Header header, String title, int level, String fragment,
-            int iconRes, int parentTitle, String key) {
+    public Batch newBatch() {
+        return new Batch(loadSources(getReadableDatabase()));
+    }
+
+    /**
+     * Replaces the entries of every source in the batch whose content hash
+     * differs from the stored one, and drops the sources that are gone, in
+     * a single transaction.  Sources kept by {@link Batch#beginSource} are
+     * left alone.
+     *
+     * @return whether anything was changed
+     */
+    public boolean applyBatch(Batch batch) {
         SQLiteDatabase database = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        if (header != null) {
-            Parcel p = Parcel.obtain();
-            p.setDataPosition(0);
-            header.writeToParcel(p, 0);
-            // Marshalling will not cause an issue if the definition changes,
-            // since we wipe data on hash changes and recreate it
-            values.put(DatabaseContract.Settings.ACTION_HEADER, p.marshall());
-        }
-        values.put(DatabaseContract.Settings.ACTION_TITLE, title);
-        values.put(DatabaseContract.Settings.ACTION_LEVEL, level);
-        values.put(DatabaseContract.Settings.ACTION_ICON, iconRes);
-        values.put(DatabaseContract.Settings.ACTION_FRAGMENT, fragment);
-        values.put(DatabaseContract.Settings.ACTION_PARENT_TITLE, parentTitle);
-        values.put(DatabaseContract.Settings.ACTION_KEY, key);
-        database.insert(DatabaseContract.TABLE_NAME, null, values);
+        HashMap<String, StoredSource> oldSources =
+                new HashMap<String, StoredSource>(batch.mStoredSources);
+        oldSources.keySet().removeAll(batch.mKeptSources);
+        int changed = 0;
+        int removed = 0;
+
+        database.beginTransaction();
+        try {
+            SQLiteStatement insertEntry = database.compileStatement(
+                    "INSERT INTO " + DatabaseContract.TABLE_NAME + "(" +
+                    DatabaseContract.Settings.ACTION_TITLE + "," +
+                    DatabaseContract.Settings.ACTION_LEVEL + "," +
+                    DatabaseContract.Settings.ACTION_ICON + "," +
+                    DatabaseContract.Settings.ACTION_FRAGMENT + "," +
+                    DatabaseContract.Settings.ACTION_PARENT_TITLE + "," +
+                    DatabaseContract.Settings.ACTION_KEY + "," +
+                    DatabaseContract.Settings.ACTION_SOURCE + "," +
+                    DatabaseContract.Settings.HEADER_ID + "," +
+                    DatabaseContract.Settings.HEADER_TITLE_RES + "," +
+                    DatabaseContract.Settings.HEADER_BREADCRUMB_TITLE_RES + "," +
+                    DatabaseContract.Settings.HEADER_BREADCRUMB_SHORT_TITLE_RES + "," +
+                    DatabaseContract.Settings.HEADER_INTENT + "," +
+                    DatabaseContract.Settings.HEADER_ARGUMENTS + "," +
+                    DatabaseContract.Settings.HEADER_SUMMARY_RES + "," +
+                    DatabaseContract.Settings.HEADER_SUMMARY + "," +
+                    DatabaseContract.Settings.HEADER_BREADCRUMB_TITLE + "," +
+                    DatabaseContract.Settings.HEADER_BREADCRUMB_SHORT_TITLE + "," +
+                    DatabaseContract.Settings.HEADER_EXTRAS +
+                    ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+            SQLiteStatement deleteEntries = database.compileStatement(
+                    "DELETE FROM " + DatabaseContract.TABLE_NAME + " WHERE " +
+                    DatabaseContract.Settings.ACTION_SOURCE + "=?");
+            SQLiteStatement replaceSource = database.compileStatement(
+                    "INSERT OR REPLACE INTO " + DatabaseContract.SOURCES_TABLE_NAME + "(" +
+                    DatabaseContract.Sources.SOURCE + "," +
+                    DatabaseContract.Sources.HASH + "," +
+                    DatabaseContract.Sources.FINGERPRINT + "," +
+                    DatabaseContract.Sources.PARENT + ") VALUES (?,?,?,?)");
+            SQLiteStatement deleteSource = database.compileStatement(
+                    "DELETE FROM " + DatabaseContract.SOURCES_TABLE_NAME + " WHERE " +
+                    DatabaseContract.Sources.SOURCE + "=?");
+
+            for (Map.Entry<String, ArrayList<Entry>> source : batch.mSources.entrySet()) {
+                final String name = source.getKey();
+                final ArrayList<Entry> entries = source.getValue();
+                final long hash = hashEntries(entries);
+                final StoredSource oldSource = oldSources.remove(name);
+                final StoredSource newSource = batch.mNewSources.get(name);
+                final long fingerprint = newSource != null ? newSource.fingerprint : 0;
+                final String parent = newSource != null ? newSource.parent : null;
+                if (oldSource != null && oldSource.hash == hash
+                        && oldSource.fingerprint == fingerprint
+                        && TextUtils.equals(oldSource.parent, parent)) {
+                    continue;
+                }
+
+                deleteEntries.bindString(1, name);
+                deleteEntries.executeUpdateDelete();
+                for (Entry entry : entries) {
+                    insertEntry.clearBindings();
+                    insertEntry.bindString(1, entry.title);
+                    insertEntry.bindLong(2, entry.level);
+                    insertEntry.bindLong(3, entry.iconRes);
+                    if (entry.fragment != null) {
+                        insertEntry.bindString(4, entry.fragment);
+                    }
+                    insertEntry.bindLong(5, entry.parentTitle);
+                    if (entry.key != null) {
+                        insertEntry.bindString(6, entry.key);
+                    }
+                    insertEntry.bindString(7, name);
+                    if (entry.hasHeader) {
+                        insertEntry.bindLong(8, entry.headerId);
+                        insertEntry.bindLong(9, entry.headerTitleRes);
+                        insertEntry.bindLong(10, entry.headerBreadCrumbTitleRes);
+                        insertEntry.bindLong(11, entry.headerBreadCrumbShortTitleRes);
+                        if (entry.headerIntent != null) {
+                            insertEntry.bindString(12, entry.headerIntent);
+                        }
+                        if (entry.headerArguments != null) {
+                            insertEntry.bindBlob(13, entry.headerArguments);
+                        }
+                        insertEntry.bindLong(14, entry.headerSummaryRes);
+                        if (entry.headerSummary != null) {
+                            insertEntry.bindString(15, entry.headerSummary);
+                        }
+                        if (entry.headerBreadCrumbTitle != null) {
+                            insertEntry.bindString(16, entry.headerBreadCrumbTitle);
+                        }
+                        if (entry.headerBreadCrumbShortTitle != null) {
+                            insertEntry.bindString(17, entry.headerBreadCrumbShortTitle);
+                        }
+                        if (entry.headerExtras != null) {
+                            insertEntry.bindBlob(18, entry.headerExtras);
+                        }
+                    }
+                    insertEntry.executeInsert();
+                }
+                replaceSource.clearBindings();
+                replaceSource.bindString(1, name);
+                replaceSource.bindLong(2, hash);
+                replaceSource.bindLong(3, fingerprint);
+                if (parent != null) {
+                    replaceSource.bindString(4, parent);
+                }
+                replaceSource.executeInsert();
+                changed++;
+            }
+
+            // Whatever is left no longer exists.
+            for (String name : oldSources.keySet()) {
+                deleteEntries.bindString(1, name);
+                deleteEntries.executeUpdateDelete();
+                deleteSource.bindString(1, name);
+                deleteSource.executeUpdateDelete();
+                removed++;
+            }
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (DEBUG) Log.d(TAG, "Updated " + changed + " sources, removed " + removed);
+        return changed > 0 || removed > 0;
+    }
+
+    /**
+     * Rebuilds the header of a top level entry from its row, or returns null
+     * if the entry has none.
+     */
+    public Header loadHeader(long id) {
+        SQLiteDatabase database = getReadableDatabase();
+        Cursor c = database.query(DatabaseContract.TABLE_NAME, new String[] {
+                    DatabaseContract.Settings.HEADER_ID,
+                    DatabaseContract.Settings.HEADER_TITLE_RES,
+                    DatabaseContract.Settings.HEADER_BREADCRUMB_TITLE_RES,
+                    DatabaseContract.Settings.HEADER_BREADCRUMB_SHORT_TITLE_RES,
+                    DatabaseContract.Settings.HEADER_INTENT,
+                    DatabaseContract.Settings.HEADER_ARGUMENTS,
+                    DatabaseContract.Settings.ACTION_TITLE,
+                    DatabaseContract.Settings.ACTION_ICON,
+                    DatabaseContract.Settings.ACTION_FRAGMENT,
+                    DatabaseContract.Settings.HEADER_SUMMARY_RES,
+                    DatabaseContract.Settings.HEADER_SUMMARY,
+                    DatabaseContract.Settings.HEADER_BREADCRUMB_TITLE,
+                    DatabaseContract.Settings.HEADER_BREADCRUMB_SHORT_TITLE,
+                    DatabaseContract.Settings.HEADER_EXTRAS
+                }, DatabaseContract.Settings._ID + "=?", new String[] { Long.toString(id) },
+                null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst() || c.isNull(0)) {
+                return null;
+            }
+            Header header = new Header();
+            header.id = c.getLong(0);
+            header.titleRes = c.getInt(1);
+            header.breadCrumbTitleRes = c.getInt(2);
+            header.breadCrumbShortTitleRes = c.getInt(3);
+            if (!c.isNull(4)) {
+                try {
+                    header.intent = Intent.parseUri(c.getString(4), Intent.URI_INTENT_SCHEME);
+                } catch (java.net.URISyntaxException e) {
+                    Log.w(TAG, "Invalid intent for search entry " + id, e);
+                }
+            }
+            if (!c.isNull(5)) {
+                header.fragmentArguments = unmarshallBundle(c.getBlob(5));
+            }
+            header.title = c.getString(6);
+            header.iconRes = c.getInt(7);
+            header.fragment = c.getString(8);
+            header.summaryRes = c.getInt(9);
+            header.summary = c.getString(10);
+            header.breadCrumbTitle = c.getString(11);
+            header.breadCrumbShortTitle = c.getString(12);
+            if (!c.isNull(13)) {
+                header.extras = unmarshallBundle(c.getBlob(13));
+            }
+            return header;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String toString(CharSequence value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static byte[] marshallBundle(Bundle bundle) {
+        if (bundle == null || bundle.isEmpty()) {
+            return null;
+        }
+        Parcel p = Parcel.obtain();
+        bundle.writeToParcel(p, 0);
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    private static Bundle unmarshallBundle(byte[] data) {
+        Parcel p = Parcel.obtain();
+        p.unmarshall(data, 0, data.length);
+        p.setDataPosition(0);
+        Bundle bundle = p.readBundle();
+        p.recycle();
+        return bundle;
+    }
+
+    private static HashMap<String, StoredSource> loadSources(SQLiteDatabase database) {
+        HashMap<String, StoredSource> sources = new HashMap<String, StoredSource>();
+        Cursor c = database.query(DatabaseContract.SOURCES_TABLE_NAME, new String[] {
+                    DatabaseContract.Sources.SOURCE,
+                    DatabaseContract.Sources.HASH,
+                    DatabaseContract.Sources.FINGERPRINT,
+                    DatabaseContract.Sources.PARENT
+                }, null, null, null, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                StoredSource source = new StoredSource();
+                source.hash = c.getLong(1);
+                source.fingerprint = c.getLong(2);
+                source.parent = c.getString(3);
+                sources.put(c.getString(0), source);
+            }
+            c.close();
+        }
+        return sources;
+    }
+
+    private static long hashEntries(ArrayList<Entry> entries) {
+        CRC32 crc = new CRC32();
+        for (Entry entry : entries) {
+            if (entry.hasHeader) {
+                updateCrc(crc, (int) entry.headerId);
+                updateCrc(crc, entry.headerTitleRes);
+                updateCrc(crc, entry.headerBreadCrumbTitleRes);
+                updateCrc(crc, entry.headerBreadCrumbShortTitleRes);
+                updateCrc(crc, entry.headerSummaryRes);
+                updateCrc(crc, entry.headerSummary);
+                updateCrc(crc, entry.headerBreadCrumbTitle);
+                updateCrc(crc, entry.headerBreadCrumbShortTitle);
+                updateCrc(crc, entry.headerIntent);
+                if (entry.headerArguments != null) {
+                    crc.update(entry.headerArguments);
+                }
+                crc.update(0);
+                if (entry.headerExtras != null) {
+                    crc.update(entry.headerExtras);
+                }
+            }
+            updateCrc(crc, entry.title);
+            updateCrc(crc, entry.level);
+            updateCrc(crc, entry.fragment);
+            updateCrc(crc, entry.iconRes);
+            updateCrc(crc, entry.parentTitle);
+            updateCrc(crc, entry.key);
+        }
+        return crc.getValue();
+    }
+
+    private static void updateCrc(CRC32 crc, String value) {
+        if (value != null) {
+            crc.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        crc.update(0);
+    }
+
+    private static void updateCrc(CRC32 crc, int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
     }
 }
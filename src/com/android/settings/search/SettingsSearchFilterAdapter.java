@@ -45,20 +45,26 @@ import java.util.List;
 
 public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterable {
     private Context mContext;
-    private List<SearchInfo> mSearchInfo;
-    private List<SearchInfo> mFilteredInfo;
+    private SearchIndex mSearchIndex;
+    private List<SearchIndex.Result> mFilteredInfo;
     private LayoutInflater mInflater;
     private Resources mResources;
     private Drawable mDefaultIcon;
     private int mMatchHighlightColor;
     private CharSequence mLastConstraint;
+    private boolean mPopulated;
 
     private SparseArray<Drawable> mIconCache = new SparseArray<Drawable>();
 
     private ResultReceiver mPopulateDoneReceiver = new ResultReceiver(new Handler()) {
         @Override
         protected void onReceiveResult(int resultCode, Bundle resultData) {
-            new LoadSearchInfoTask().execute();
+            mPopulated = true;
+            // The entries already in the database were loaded when the
+            // adapter was created; only reload if indexing changed them.
+            if (resultCode == SearchPopulator.RESULT_CHANGED || mSearchIndex == null) {
+                new LoadSearchInfoTask().execute();
+            }
         }
     };
 
@@ -70,7 +76,7 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
                 results.values = null;
                 results.count = 1;
             } else {
-                ArrayList<SearchInfo> filtered = filterInfos(constraint);
+                ArrayList<SearchIndex.Result> filtered = filterInfos(constraint);
                 results.values = filtered;
                 results.count = filtered.size();
             }
@@ -81,44 +87,42 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         @SuppressWarnings("unchecked")
         @Override
         protected void publishResults(CharSequence constraint, Filter.FilterResults results) {
-            mFilteredInfo = (List<SearchInfo>) results.values;
-            if (mFilteredInfo != null) {
-                applyFilteredMatchSpans();
-            }
+            mFilteredInfo = (List<SearchIndex.Result>) results.values;
             notifyDataSetChanged();
         }
     };
 
-    private class LoadSearchInfoTask extends AsyncTask<Void, Void, List<SearchInfo>> {
+    private class LoadSearchInfoTask extends AsyncTask<Void, Void, SearchIndex> {
         @Override
-        protected List<SearchInfo> doInBackground(Void... param) {
-            return SearchPopulator.loadSearchData(mContext);
+        protected SearchIndex doInBackground(Void... param) {
+            return SearchPopulator.loadSearchIndex(mContext);
         }
 
         @Override
-        protected void onPostExecute(List<SearchInfo> infos) {
-            mSearchInfo = infos;
+        protected void onPostExecute(SearchIndex index) {
+            mSearchIndex = index;
+            if (index.getInfos().isEmpty() && !mPopulated) {
+                // Nothing indexed yet; keep showing the busy view until
+                // the populator is done.
+                return;
+            }
             if (mLastConstraint == null) {
-                mFilteredInfo = new ArrayList<SearchInfo>(infos);
+                List<SearchInfo> infos = index.getInfos();
+                ArrayList<SearchIndex.Result> all =
+                        new ArrayList<SearchIndex.Result>(infos.size());
+                for (int i = 0; i < infos.size(); i++) {
+                    all.add(new SearchIndex.Result(infos.get(i), i));
+                }
+                mFilteredInfo = all;
             } else {
                 mFilteredInfo = filterInfos(mLastConstraint);
-                applyFilteredMatchSpans();
             }
             notifyDataSetChanged();
         }
     };
 
-    private static class MatchInfo {
-        int start;
-        int end;
-
-        public MatchInfo() {
-            start = end = -1;
-        }
-    }
-
     public static class SearchInfo {
-        public final Header header;
+        public final long id;
         public final int level;
         public final String fragment;
         public final String title;
@@ -126,23 +130,26 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         public final int parentTitle;
         public final String key;
 
-        private String mNormalizedTitle;
-        // used in main thread
-        private final ArrayList<MatchInfo> mMatches = new ArrayList<MatchInfo>();
-        // updated in filter thread
-        private final ArrayList<MatchInfo> mPendingMatches = new ArrayList<MatchInfo>();
-
-        public SearchInfo(Header header, int level, String fragment, String title,
+        public SearchInfo(long id, int level, String fragment, String title,
                 int iconRes, int parentTitle, String key) {
-            this.header = header;
+            this.id = id;
             this.level = level;
             this.fragment = fragment;
             this.title = title;
             this.iconRes = iconRes;
             this.parentTitle = parentTitle;
             this.key = key;
+        }
 
-            mNormalizedTitle = removeNonAlphaNumeric(title.toLowerCase());
+        /**
+         * Loads the header of a top level entry.  Only needed once the
+         * entry is opened, so it isn't kept in memory for every result.
+         */
+        public Header loadHeader(Context context) {
+            if (level != 0) {
+                return null;
+            }
+            return SettingsSearchDatabaseHelper.getInstance(context).loadHeader(id);
         }
     }
 
@@ -154,6 +161,8 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         mDefaultIcon = mResources.getDrawable(R.drawable.default_search_icon);
         mMatchHighlightColor = mResources.getColor(R.color.search_match_highlight_foreground);
 
+        new LoadSearchInfoTask().execute();
+
         Intent i = new Intent(context, SearchPopulator.class);
         i.putExtra(SearchPopulator.EXTRA_NOTIFIER, mPopulateDoneReceiver);
         context.startService(i);
@@ -172,7 +181,7 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         if (mFilteredInfo == null) {
             return null;
         }
-        return mFilteredInfo.get(position);
+        return mFilteredInfo.get(position).info;
     }
 
     @Override
@@ -212,7 +221,8 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
             holder = (ViewHolder) convertView.getTag();
         }
 
-        SearchInfo info = mFilteredInfo.get(position);
+        SearchIndex.Result result = mFilteredInfo.get(position);
+        SearchInfo info = result.info;
         Drawable d = mIconCache.get(info.iconRes);
         if (info.iconRes != 0) {
             d = mResources.getDrawable(info.iconRes);
@@ -223,9 +233,9 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         }
         holder.imageView.setImageDrawable(d);
 
-        if (!info.mMatches.isEmpty()) {
+        if (!result.matches.isEmpty()) {
             SpannableStringBuilder titleSpan = new SpannableStringBuilder(info.title);
-            for (MatchInfo match : info.mMatches) {
+            for (SearchIndex.Match match : result.matches) {
                 ForegroundColorSpan span = new ForegroundColorSpan(mMatchHighlightColor);
                 titleSpan.setSpan(span, match.start, match.end,
                         SpannableStringBuilder.SPAN_INCLUSIVE_EXCLUSIVE);
@@ -250,68 +260,11 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         return mFilter;
     }
 
-    private ArrayList<SearchInfo> filterInfos(CharSequence constraint) {
-        ArrayList<SearchInfo> filteredValues = new ArrayList<SearchInfo>();
+    private ArrayList<SearchIndex.Result> filterInfos(CharSequence constraint) {
         if (constraint == null) {
-            return filteredValues;
-        }
-
-        String actualConstraint = constraint.toString().trim().toLowerCase();
-        if (actualConstraint.isEmpty()) {
-            return filteredValues;
+            return new ArrayList<SearchIndex.Result>();
         }
-
-        String filteredConstraint = removeNonAlphaNumeric(actualConstraint);
-
-        for (SearchInfo item : mSearchInfo) {
-            String title = item.title.toLowerCase();
-            String filteredTitle = item.mNormalizedTitle;
-
-            item.mPendingMatches.clear();
-
-            int pos = filteredTitle.indexOf(filteredConstraint);
-            while (pos != -1) {
-                int unfilteredLen = title.length();
-                int filteredLen = filteredTitle.length();
-                int constraintLen = filteredConstraint.length();
-                MatchInfo match = new MatchInfo();
-                for (int ufIndex = 0, fIndex = 0;
-                        ufIndex < unfilteredLen && fIndex < filteredLen; ufIndex++) {
-                    if (title.charAt(ufIndex) != filteredTitle.charAt(fIndex)) {
-                        continue;
-                    }
-                    if (fIndex == pos) {
-                        match.start = ufIndex;
-                    }
-                    if (fIndex == pos + constraintLen - 1) {
-                        match.end = ufIndex + 1;
-                        break;
-                    }
-                    fIndex++;
-                }
-
-                if (match.start != -1 && match.end != -1) {
-                    item.mPendingMatches.add(match);
-                }
-                pos = filteredTitle.indexOf(filteredConstraint, pos + 1);
-            }
-            if (!item.mPendingMatches.isEmpty()) {
-                filteredValues.add(item);
-            }
-        }
-
-        return filteredValues;
-    }
-
-    private void applyFilteredMatchSpans() {
-        for (SearchInfo info : mFilteredInfo) {
-            info.mMatches.clear();
-            info.mMatches.addAll(info.mPendingMatches);
-        }
-    }
-
-    private static String removeNonAlphaNumeric(String s) {
-        return s.replaceAll("[^\\p{L}\\p{Nd}]+", "");
+        return mSearchIndex.query(constraint.toString().trim());
     }
 
     private static class ViewHolder {
@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.ArrayList;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -46,6 +48,9 @@ public class ChartNetworkSeriesView extends View {
 
     private static final boolean ESTIMATE_ENABLED = false;
 
+    /** Number of downsampled ranges to keep around, most recent first. */
+    private static final int MAX_CACHED_SERIES = 4;
+
     private ChartAxis mHoriz;
     private ChartAxis mVert;
 
@@ -55,6 +60,8 @@ public class ChartNetworkSeriesView extends View {
     private Paint mPaintEstimate;
 
     private NetworkStatsHistory mStats;
+    private final ArrayList<DownsampledSeries> mSeriesCache =
+            new ArrayList<DownsampledSeries>(MAX_CACHED_SERIES);
 
     private Path mPathStroke;
     private Path mPathFill;
@@ -136,6 +143,7 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mSeriesCache.clear();
         invalidatePath();
         invalidate();
     }
@@ -182,55 +190,21 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
+        final DownsampledSeries series = getSeries(width);
+        long totalData = series.totalData;
+        long lastTime = series.lastTime;
         float lastX = 0;
         float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
 
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
         mPathFill.moveTo(lastX, lastY);
 
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+        for (int i = 1; i < series.size; i++) {
+            lastX = series.x[i];
+            lastY = mVert.convertToPoint(series.total[i]);
+            mPathStroke.lineTo(lastX, lastY);
+            mPathFill.lineTo(lastX, lastY);
         }
 
         // when data falls short, extend to requested end time
@@ -290,6 +264,33 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Return the bound stats downsampled to the current range and the given
+     * width, reusing a recent result when the chart returns to a range it
+     * already showed.
+     */
+    private DownsampledSeries getSeries(int width) {
+        for (int i = 0; i < mSeriesCache.size(); i++) {
+            final DownsampledSeries series = mSeriesCache.get(i);
+            if (series.matches(mStart, mEnd, width)) {
+                if (i > 0) {
+                    mSeriesCache.remove(i);
+                    mSeriesCache.add(0, series);
+                }
+                return series;
+            }
+        }
+
+        final DownsampledSeries series = DownsampledSeries.build(
+                mStats, mHoriz, mStart, mEnd, width);
+        if (LOGD) Log.d(TAG, "downsampled to " + series.size + " points");
+        if (mSeriesCache.size() == MAX_CACHED_SERIES) {
+            mSeriesCache.remove(MAX_CACHED_SERIES - 1);
+        }
+        mSeriesCache.add(0, series);
+        return series;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
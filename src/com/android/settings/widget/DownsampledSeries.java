@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import android.net.NetworkStatsHistory;
+
+import java.util.Arrays;
+
+/**
+ * Cumulative usage of a {@link NetworkStatsHistory} over a visible range,
+ * reduced to at most two points per pixel column of the chart.
+ *
+ * The series is cumulative and so never decreases, which means the first and
+ * last point falling into a column are its minimum and maximum; keeping just
+ * those two draws the same outline as every bucket would.  Points keep their
+ * raw totals rather than screen positions, so the vertical axis can change
+ * without walking the history again.
+ */
+class DownsampledSeries {
+    final long start;
+    final long end;
+    final int width;
+
+    /** Number of points, including the starting point at the left edge. */
+    int size;
+    float[] x = new float[16];
+    long[] total = new long[16];
+
+    /** End time of the last bucket drawn. */
+    long lastTime;
+    /** Total of all buckets drawn. */
+    long totalData;
+
+    private DownsampledSeries(long start, long end, int width) {
+        this.start = start;
+        this.end = end;
+        this.width = width;
+    }
+
+    boolean matches(long start, long end, int width) {
+        return this.start == start && this.end == end && this.width == width;
+    }
+
+    /**
+     * Walks the buckets of the given history between {@code start} and
+     * {@code end}, mapped onto the screen with the given horizontal axis.
+     */
+    static DownsampledSeries build(NetworkStatsHistory stats, ChartAxis horiz, long start,
+            long end, int width) {
+        final DownsampledSeries series = new DownsampledSeries(start, end, width);
+
+        // start at the bottom left corner
+        series.lastTime = horiz.convertToValue(0);
+        series.add(0, 0);
+
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
+
+        NetworkStatsHistory.Entry entry = null;
+        final int first = stats.getIndexBefore(start);
+        final int last = stats.getIndexAfter(end);
+        for (int i = first; i <= last; i++) {
+            entry = stats.getValues(i, entry);
+
+            final long startTime = entry.bucketStart;
+            final long endTime = startTime + entry.bucketDuration;
+
+            final float startX = horiz.convertToPoint(startTime);
+            final float endX = horiz.convertToPoint(endTime);
+
+            // skip until we find first stats on screen
+            if (endX < 0) continue;
+
+            if (series.lastTime != startTime) {
+                // gap in buckets; line to start of current bucket
+                series.add(startX, series.totalData);
+            }
+
+            // increment by current bucket total
+            series.totalData += entry.rxBytes + entry.txBytes;
+
+            // always draw to end of current bucket
+            series.add(endX, series.totalData);
+            series.lastTime = endTime;
+        }
+
+        return series;
+    }
+
+    private void add(float pointX, long pointTotal) {
+        // replace the last point when it and the one before are in the same
+        // column as this one; the column keeps its first and last point.
+        if (size >= 2) {
+            final int column = (int) Math.floor(pointX);
+            if ((int) Math.floor(x[size - 1]) == column
+                    && (int) Math.floor(x[size - 2]) == column) {
+                x[size - 1] = pointX;
+                total[size - 1] = pointTotal;
+                return;
+            }
+        }
+        if (size == x.length) {
+            x = Arrays.copyOf(x, size * 2);
+            total = Arrays.copyOf(total, size * 2);
+        }
+        x[size] = pointX;
+        total[size] = pointTotal;
+        size++;
+    }
+}
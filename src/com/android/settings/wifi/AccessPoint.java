@@ -96,6 +96,23 @@ class AccessPoint extends Preference {
         return SECURITY_NONE;
     }
 
+    /**
+     * Returns the key identifying the access point of a saved network across
+     * scans.  The network id tells apart saved networks sharing an SSID.
+     */
+    static String getKey(WifiConfiguration config) {
+        final String ssid = (config.SSID == null ? "" : removeDoubleQuotes(config.SSID));
+        return ssid + ',' + getSecurity(config) + ',' + config.networkId;
+    }
+
+    /**
+     * Returns the key identifying the access point of an unsaved network
+     * across scans.
+     */
+    static String getKey(ScanResult result) {
+        return result.SSID + ',' + getSecurity(result);
+    }
+
     public String getSecurityString(boolean concise) {
         Context context = getContext();
         switch(security) {
@@ -209,6 +226,27 @@ class AccessPoint extends Preference {
         mScanResult = result;
     }
 
+    /**
+     * Reloads a saved network from a new scan, keeping the connection state
+     * so that {@link #update(WifiInfo, DetailedState)} can tell whether it
+     * changed.
+     */
+    void reload(WifiConfiguration config) {
+        mScanResult = null;
+        loadConfig(config);
+        refresh();
+    }
+
+    /**
+     * Reloads an unsaved network from the first result of a new scan; the
+     * other results for it are merged with {@link #update(ScanResult)}.
+     */
+    void reload(ScanResult result) {
+        mConfig = null;
+        loadResult(result);
+        refresh();
+    }
+
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
@@ -250,7 +288,20 @@ class AccessPoint extends Preference {
             return difference;
         }
         // Sort by ssid.
-        return ssid.compareToIgnoreCase(other.ssid);
+        difference = ssid.compareToIgnoreCase(other.ssid);
+        if (difference != 0) {
+            return difference;
+        }
+        // Tell apart networks that only differ in case, security or saved
+        // copy, since PreferenceGroup removes by equals().
+        difference = ssid.compareTo(other.ssid);
+        if (difference != 0) {
+            return difference;
+        }
+        if (security != other.security) {
+            return security < other.security ? -1 : 1;
+        }
+        return networkId < other.networkId ? -1 : (networkId == other.networkId ? 0 : 1);
     }
 
     @Override
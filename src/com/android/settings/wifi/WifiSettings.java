@@ -76,9 +76,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -138,6 +138,9 @@ public class WifiSettings extends RestrictedSettingsFragment
     private DetailedState mLastState;
     private WifiInfo mLastInfo;
 
+    /** Access points of the last scan by key, reused by the next one. */
+    private HashMap<String, AccessPoint> mAccessPoints = new HashMap<String, AccessPoint>();
+
     private final AtomicBoolean mConnected = new AtomicBoolean(false);
 
     private WifiDialog mDialog;
@@ -719,14 +722,11 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints = constructAccessPoints();
-                getPreferenceScreen().removeAll();
+                final List<AccessPoint> accessPoints = constructAccessPoints();
                 if(accessPoints.size() == 0) {
                     addMessagePreference(R.string.wifi_empty_list_wifi_on);
-                }
-                for (AccessPoint accessPoint : accessPoints) {
-                    getPreferenceScreen().addPreference(accessPoint);
+                } else {
+                    syncAccessPoints(accessPoints);
                 }
                 break;
 
@@ -739,11 +739,97 @@ public class WifiSettings extends RestrictedSettingsFragment
                 break;
 
             case WifiManager.WIFI_STATE_DISABLED:
+                mAccessPoints.clear();
                 setOffMessage();
                 break;
         }
     }
 
+    /**
+     * Brings the preference screen in line with the given sorted access
+     * points, leaving the ones that are already shown in the right order
+     * alone.  Rows of access points that are kept are only rebound, never
+     * inflated again.
+     */
+    private void syncAccessPoints(List<AccessPoint> accessPoints) {
+        final PreferenceScreen screen = getPreferenceScreen();
+        final IdentityHashMap<AccessPoint, Integer> rank =
+                new IdentityHashMap<AccessPoint, Integer>(accessPoints.size());
+        for (int i = 0; i < accessPoints.size(); i++) {
+            rank.put(accessPoints.get(i), i);
+        }
+
+        // Drop what is gone, and note the new rank of what is shown
+        final ArrayList<AccessPoint> shown = new ArrayList<AccessPoint>();
+        for (int i = screen.getPreferenceCount() - 1; i >= 0; --i) {
+            final Preference preference = screen.getPreference(i);
+            if (preference instanceof AccessPoint && rank.containsKey(preference)) {
+                shown.add(0, (AccessPoint) preference);
+            } else {
+                screen.removePreference(preference);
+            }
+        }
+
+        // Keep the longest run of shown access points that is still in order
+        // and move the rest; PreferenceGroup only sorts on insertion.
+        final boolean[] keep = new boolean[accessPoints.size()];
+        final int[] ranks = new int[shown.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = rank.get(shown.get(i));
+        }
+        for (int i : longestIncreasingRun(ranks)) {
+            keep[ranks[i]] = true;
+        }
+        for (int i = 0; i < shown.size(); i++) {
+            final AccessPoint accessPoint = shown.get(i);
+            if (!keep[rank.get(accessPoint)]) {
+                screen.removePreference(accessPoint);
+            }
+        }
+
+        for (int i = 0; i < accessPoints.size(); i++) {
+            if (!keep[i]) {
+                screen.addPreference(accessPoints.get(i));
+            }
+        }
+    }
+
+    /**
+     * Returns the indices of a longest strictly increasing subsequence of
+     * the given values, in order.
+     */
+    private static int[] longestIncreasingRun(int[] values) {
+        final int n = values.length;
+        // tails[k] is the index ending the best run of length k + 1
+        final int[] tails = new int[n];
+        final int[] previous = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            int lo = 0;
+            int hi = length;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[i] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if (lo == length) {
+                length++;
+            }
+        }
+
+        final int[] run = new int[length];
+        for (int k = length - 1, i = length > 0 ? tails[length - 1] : -1; k >= 0;
+                k--, i = previous[i]) {
+            run[k] = i;
+        }
+        return run;
+    }
+
     private void setOffMessage() {
         if (mEmptyView != null) {
             mEmptyView.setText(R.string.wifi_empty_list_wifi_off);
@@ -769,20 +855,33 @@ public class WifiSettings extends RestrictedSettingsFragment
         getPreferenceScreen().removeAll();
     }
 
-    /** Returns sorted list of access points */
+    /**
+     * Returns sorted list of access points.  Access points of the previous
+     * scan are reloaded rather than created again, so that their rows can be
+     * kept.
+     */
     private List<AccessPoint> constructAccessPoints() {
         ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
         /** Lookup table to more quickly update AccessPoints by only considering objects with the
          * correct SSID.  Maps SSID -> List of AccessPoints with the given SSID.  */
         Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
+        final HashMap<String, AccessPoint> previous = mAccessPoints;
+        mAccessPoints = new HashMap<String, AccessPoint>();
 
         final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
         if (configs != null) {
             for (WifiConfiguration config : configs) {
-                AccessPoint accessPoint = new AccessPoint(getActivity(), config);
+                final String key = AccessPoint.getKey(config);
+                AccessPoint accessPoint = previous.remove(key);
+                if (accessPoint != null) {
+                    accessPoint.reload(config);
+                } else {
+                    accessPoint = new AccessPoint(getActivity(), config);
+                }
                 accessPoint.update(mLastInfo, mLastState);
                 accessPoints.add(accessPoint);
                 apMap.put(accessPoint.ssid, accessPoint);
+                mAccessPoints.put(key, accessPoint);
             }
         }
 
@@ -805,9 +904,16 @@ public class WifiSettings extends RestrictedSettingsFragment
                         found = true;
                 }
                 if (!found) {
-                    AccessPoint accessPoint = new AccessPoint(getActivity(), result);
+                    final String key = AccessPoint.getKey(result);
+                    AccessPoint accessPoint = previous.remove(key);
+                    if (accessPoint != null) {
+                        accessPoint.reload(result);
+                    } else {
+                        accessPoint = new AccessPoint(getActivity(), result);
+                    }
                     accessPoints.add(accessPoint);
                     apMap.put(accessPoint.ssid, accessPoint);
+                    mAccessPoints.put(key, accessPoint);
                 }
             }
         }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class ApplicationsStateTest extends AndroidTestCase {
+    private long mNextId;
+
+    private AppEntry newEntry(String packageName, long size) {
+        ApplicationInfo info = new ApplicationInfo();
+        info.packageName = packageName;
+        info.sourceDir = "/nonexistent/" + packageName + ".apk";
+        AppEntry entry = new AppEntry(getContext(), info, mNextId++);
+        entry.size = size;
+        return entry;
+    }
+
+    private static void assertSorted(ArrayList<AppEntry> apps) {
+        for (int i=1; i<apps.size(); i++) {
+            assertTrue("out of order at " + i, ApplicationsState.SIZE_COMPARATOR.compare(
+                    apps.get(i-1), apps.get(i)) <= 0);
+        }
+    }
+
+    public void testRepositionSingleEntry() {
+        AppEntry a = newEntry("a", 100);
+        AppEntry b = newEntry("b", 90);
+        AppEntry c = newEntry("c", 80);
+        ArrayList<AppEntry> apps = new ArrayList<AppEntry>(Arrays.asList(a, b, c));
+
+        a.size = 70;
+        ApplicationsState.repositionSorted(apps, Arrays.asList(a),
+                ApplicationsState.SIZE_COMPARATOR);
+
+        assertEquals(Arrays.asList(b, c, a), apps);
+    }
+
+    public void testRepositionEntriesPassingEachOther() {
+        AppEntry a = newEntry("a", 100);
+        AppEntry b = newEntry("b", 90);
+        AppEntry c = newEntry("c", 80);
+        AppEntry d = newEntry("d", 70);
+        AppEntry e = newEntry("e", 60);
+        AppEntry f = newEntry("f", 50);
+        AppEntry g = newEntry("g", 40);
+        ArrayList<AppEntry> apps = new ArrayList<AppEntry>(
+                Arrays.asList(a, b, c, d, e, f, g));
+
+        // Both drop below g, and f ends up ahead of b.
+        b.size = 35;
+        f.size = 30;
+        ApplicationsState.repositionSorted(apps, Arrays.asList(b, f),
+                ApplicationsState.SIZE_COMPARATOR);
+
+        assertSorted(apps);
+        assertEquals(Arrays.asList(a, c, d, e, g, b, f), apps);
+    }
+
+    public void testRepositionIgnoresEntriesNotInList() {
+        AppEntry a = newEntry("a", 100);
+        AppEntry b = newEntry("b", 90);
+        AppEntry other = newEntry("other", 10);
+        ArrayList<AppEntry> apps = new ArrayList<AppEntry>(Arrays.asList(a, b));
+
+        a.size = 80;
+        ApplicationsState.repositionSorted(apps, Arrays.asList(a, other),
+                ApplicationsState.SIZE_COMPARATOR);
+
+        assertEquals(Arrays.asList(b, a), apps);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.RemoteException;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class ProcessMemorySamplerTest extends AndroidTestCase {
+    private static final long PAGE_SIZE = 4096;
+
+    private File mProcDir;
+    private FakePssSource mPssSource;
+    private ProcessMemorySampler mSampler;
+
+    private static class FakePssSource implements ProcessMemorySampler.PssSource {
+        long mPssKb;
+        int mCalls;
+        int mLastCount;
+
+        @Override
+        public long[] getProcessPss(int[] pids) throws RemoteException {
+            mCalls++;
+            mLastCount = pids.length;
+            final long[] pss = new long[pids.length];
+            for (int i = 0; i < pids.length; i++) {
+                pss[i] = mPssKb;
+            }
+            return pss;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProcDir = new File(getContext().getCacheDir(), "fake_proc");
+        deleteRecursively(mProcDir);
+        mProcDir.mkdirs();
+        mPssSource = new FakePssSource();
+        mSampler = new ProcessMemorySampler(mProcDir, PAGE_SIZE, mPssSource);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mProcDir);
+        super.tearDown();
+    }
+
+    public void testReadRss() throws IOException {
+        writeStatm(100, "2000 512 100 10 0 300 0\n");
+        assertEquals(512 * 4, mSampler.readRssKb(100));
+    }
+
+    public void testReadRssOfMissingProcess() {
+        assertEquals(0, mSampler.readRssKb(12345));
+    }
+
+    public void testReadRssOfGarbage() throws IOException {
+        writeStatm(101, "garbage");
+        assertEquals(0, mSampler.readRssKb(101));
+    }
+
+    public void testFirstSampleTakesPss() throws IOException {
+        writeStatm(100, "2000 500 0 0 0 0 0\n");
+        mPssSource.mPssKb = 1000;
+
+        long[] sizes = mSampler.sample(new int[] { 100 }, new String[] { "a" },
+                new long[] { 10000 }, 0);
+        assertEquals(1, mPssSource.mCalls);
+        assertEquals(1000, sizes[0]);
+    }
+
+    public void testEstimatesFromRssBetweenSamples() throws IOException {
+        writeStatm(100, "2000 500 0 0 0 0 0\n");
+        mPssSource.mPssKb = 1000;
+        mSampler.sample(new int[] { 100 }, new String[] { "a" }, new long[] { 10000 }, 0);
+
+        // RSS doubled; PSS is estimated to have doubled too
+        writeStatm(100, "2000 1000 0 0 0 0 0\n");
+        long[] sizes = mSampler.sample(new int[] { 100 }, new String[] { "a" },
+                new long[] { 10000 }, 5000);
+        assertEquals(1, mPssSource.mCalls);
+        assertEquals(2000, sizes[0]);
+    }
+
+    public void testResamplesWhenDue() throws IOException {
+        writeStatm(100, "2000 500 0 0 0 0 0\n");
+        writeStatm(200, "2000 500 0 0 0 0 0\n");
+        mPssSource.mPssKb = 1000;
+        mSampler.sample(new int[] { 100, 200 }, new String[] { "a", "b" },
+                new long[] { 10000, 60000 }, 0);
+
+        mPssSource.mPssKb = 3000;
+        long[] sizes = mSampler.sample(new int[] { 100, 200 }, new String[] { "a", "b" },
+                new long[] { 10000, 60000 }, 10000);
+        assertEquals(2, mPssSource.mCalls);
+        assertEquals(1, mPssSource.mLastCount);
+        assertEquals(3000, sizes[0]);
+        assertEquals(1000, sizes[1]);
+    }
+
+    public void testIgnoresRssJitter() throws IOException {
+        writeStatm(100, "2000 500 0 0 0 0 0\n");
+        mPssSource.mPssKb = 1000;
+        mSampler.sample(new int[] { 100 }, new String[] { "a" }, new long[] { 10000 }, 0);
+
+        // RSS moved by less than the threshold; the estimate stays put
+        writeStatm(100, "2000 510 0 0 0 0 0\n");
+        long[] sizes = mSampler.sample(new int[] { 100 }, new String[] { "a" },
+                new long[] { 10000 }, 1000);
+        assertEquals(1000, sizes[0]);
+    }
+
+    public void testStartsOverForReusedPid() throws IOException {
+        writeStatm(100, "2000 500 0 0 0 0 0\n");
+        mPssSource.mPssKb = 1000;
+        mSampler.sample(new int[] { 100 }, new String[] { "a" }, new long[] { 10000 }, 0);
+
+        // Same pid, other process: its PSS is taken right away
+        mPssSource.mPssKb = 3000;
+        long[] sizes = mSampler.sample(new int[] { 100 }, new String[] { "b" },
+                new long[] { 10000 }, 1000);
+        assertEquals(2, mPssSource.mCalls);
+        assertEquals(3000, sizes[0]);
+    }
+
+    public void testForgetsGoneProcesses() throws IOException {
+        writeStatm(100, "2000 500 0 0 0 0 0\n");
+        mPssSource.mPssKb = 1000;
+        mSampler.sample(new int[] { 100 }, new String[] { "a" }, new long[] { 10000 }, 0);
+        assertNotNull(mSampler.getSample(100));
+
+        mSampler.sample(new int[0], new String[0], new long[0], 1000);
+        assertNull(mSampler.getSample(100));
+    }
+
+    private void writeStatm(int pid, String content) throws IOException {
+        File dir = new File(mProcDir, Integer.toString(pid));
+        dir.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(dir, "statm"));
+        try {
+            out.write(content.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.cyanogenmod;
+
+import android.test.AndroidTestCase;
+
+import com.android.settings.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class CpuFreqApplierTest extends AndroidTestCase {
+    private static final int CORES = 4;
+    private static final String GOVERNOR = "cpufreq/scaling_governor";
+
+    private File mCpuDir;
+    private FakeHotplug mHotplug;
+
+    private static class FakeHotplug implements CpuFreqApplier.Hotplug {
+        boolean mRunning = true;
+        int mStops;
+        int mStarts;
+
+        @Override
+        public boolean stop() {
+            mStops++;
+            final boolean wasRunning = mRunning;
+            mRunning = false;
+            return wasRunning;
+        }
+
+        @Override
+        public void start() {
+            mStarts++;
+            mRunning = true;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCpuDir = new File(getContext().getCacheDir(), "fake_cpu");
+        deleteRecursively(mCpuDir);
+        for (int i = 0; i < CORES; i++) {
+            write(i, "online", "1");
+            write(i, GOVERNOR, "ondemand");
+        }
+        mHotplug = new FakeHotplug();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mCpuDir);
+        super.tearDown();
+    }
+
+    public void testAppliesToAllOtherCores() {
+        int[] results = newApplier(100).apply(path(0, GOVERNOR), "performance");
+
+        assertEquals(CORES, results.length);
+        for (int i = 1; i < CORES; i++) {
+            assertEquals(CpuFreqApplier.RESULT_OK, results[i]);
+            assertEquals("performance", Utils.fileReadOneLine(path(i, GOVERNOR)));
+        }
+        // cpu0 is written by the caller
+        assertEquals("ondemand", Utils.fileReadOneLine(path(0, GOVERNOR)));
+    }
+
+    public void testRestartsHotplugOnlyIfItWasRunning() {
+        newApplier(100).apply(path(0, GOVERNOR), "performance");
+        assertEquals(1, mHotplug.mStops);
+        assertEquals(1, mHotplug.mStarts);
+
+        mHotplug.mRunning = false;
+        newApplier(100).apply(path(0, GOVERNOR), "performance");
+        assertEquals(2, mHotplug.mStops);
+        assertEquals(1, mHotplug.mStarts);
+    }
+
+    public void testRestoresOfflineCores() throws IOException {
+        write(2, "online", "0");
+
+        int[] results = newApplier(100).apply(path(0, GOVERNOR), "performance");
+
+        assertEquals(CpuFreqApplier.RESULT_OK, results[2]);
+        assertEquals("performance", Utils.fileReadOneLine(path(2, GOVERNOR)));
+        assertEquals("0", Utils.fileReadOneLine(path(2, "online")));
+    }
+
+    public void testWaitsForFileToAppear() throws Exception {
+        final File governor = new File(path(3, GOVERNOR));
+        governor.delete();
+        final Exception[] failure = new Exception[1];
+        Thread creator = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(50);
+                    // Appears with its contents at once, so that the
+                    // applier can't write to it before the creator does
+                    File temp = new File(governor.getPath() + ".tmp");
+                    writeFile(temp, "ondemand");
+                    if (!temp.renameTo(governor)) {
+                        throw new IOException("Could not rename " + temp);
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        creator.start();
+
+        int[] results = newApplier(2000).apply(path(0, GOVERNOR), "performance");
+        creator.join();
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        assertEquals(CpuFreqApplier.RESULT_OK, results[3]);
+        assertEquals("performance", Utils.fileReadOneLine(path(3, GOVERNOR)));
+    }
+
+    public void testReportsMissingFile() {
+        new File(path(1, GOVERNOR)).delete();
+
+        long start = System.currentTimeMillis();
+        int[] results = newApplier(100).apply(path(0, GOVERNOR), "performance");
+
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(CpuFreqApplier.RESULT_TIMEOUT, results[1]);
+        assertEquals(CpuFreqApplier.RESULT_OK, results[2]);
+        assertEquals(CpuFreqApplier.RESULT_OK, results[3]);
+    }
+
+    public void testSingleCore() {
+        CpuFreqApplier applier = new CpuFreqApplier(mCpuDir.getPath(), 1, mHotplug, 100);
+        int[] results = applier.apply(path(0, GOVERNOR), "performance");
+        assertEquals(1, results.length);
+        assertEquals(0, mHotplug.mStops);
+    }
+
+    private CpuFreqApplier newApplier(long maxWait) {
+        return new CpuFreqApplier(mCpuDir.getPath(), CORES, mHotplug, maxWait);
+    }
+
+    private String path(int core, String name) {
+        return mCpuDir.getPath() + "/cpu" + core + "/" + name;
+    }
+
+    private void write(int core, String name, String value) throws IOException {
+        File file = new File(path(core, name));
+        file.getParentFile().mkdirs();
+        writeFile(file, value);
+    }
+
+    private static void writeFile(File file, String value) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(value.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}